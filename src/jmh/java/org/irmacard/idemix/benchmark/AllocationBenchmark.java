@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.benchmark;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.ProtocolCommands;
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+import org.irmacard.credentials.Attributes;
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.IdemixCredentials;
+import org.irmacard.credentials.idemix.NonceGenerator;
+import org.irmacard.credentials.idemix.descriptions.IdemixCredentialDescription;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.info.IdemixKeyStore;
+import org.irmacard.credentials.idemix.irma.IRMAIdemixDisclosureProof;
+import org.irmacard.credentials.idemix.irma.IRMAIdemixIssuer;
+import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.credentials.util.log.LogEntry;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The operations of which the allocations are watched. Run these with the
+ * GC profiler to see the bytes allocated per operation,
+ *
+ * <pre>
+ *   gradle jmh -PjmhArgs="AllocationBenchmark -prof gc"
+ * </pre>
+ *
+ * while {@link AllocationBudgets} checks them against the recorded budgets.
+ *
+ * The terminal variants only run the terminal side of a protocol, building
+ * the commands and processing responses recorded from the emulated card,
+ * as a server using the asynchronous API does. The others also include the
+ * work of the emulated card, the issuer and the verifier.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+	@Param({ "1", "2", "3", "4" })
+	public int attributes;
+
+	private SmartCardEmulatorService emulator;
+	private IdemixService service;
+	private IdemixCredentials credentials;
+	private CardVersion cv;
+	private CredentialDescription cd;
+	private IdemixCredentialDescription icd;
+	private IdemixVerificationDescription vd;
+	private Attributes values;
+	private BigInteger nonce;
+
+	// Recorded from the emulated card for the terminal variants
+	private ProtocolResponses proofResponses;
+	private ProtocolResponses commitmentResponses;
+	private IssueSignatureMessage signature;
+
+	@Setup
+	public void setup() throws InfoException, CardServiceException, CredentialsException {
+		BenchmarkCredentials.initialize();
+		cd = BenchmarkCredentials.getCredential(attributes);
+		icd = new IdemixCredentialDescription(cd);
+		vd = BenchmarkCredentials.getVerification(attributes);
+		values = BenchmarkCredentials.getAttributes(cd);
+		values.setCredentialID(cd.getId());
+		nonce = NonceGenerator.getInstance().next();
+
+		emulator = new SmartCardEmulatorService();
+		service = BenchmarkCredentials.connect(emulator);
+		credentials = new IdemixCredentials(service);
+		cv = service.getCardVersion();
+
+		commitmentResponses = service.execute(
+				IdemixSmartcard.requestIssueCommitmentCommands(cv, icd, values, nonce));
+		IssueCommitmentMessage commitment =
+				IdemixSmartcard.processIssueCommitmentCommands(cv, commitmentResponses);
+		signature = new IRMAIdemixIssuer(icd.getPublicKey(),
+				IdemixKeyStore.getInstance().getSecretKey(cd), icd.getContext())
+				.issueSignature(commitment, icd, values, nonce);
+		service.execute(IdemixSmartcard.requestIssueSignatureCommands(cv, icd, signature));
+
+		proofResponses = service.execute(IdemixSmartcard.buildProofCommands(cv, nonce, vd));
+	}
+
+	@Benchmark
+	public void issue() throws CredentialsException, InfoException {
+		BenchmarkCredentials.issue(service, cd);
+	}
+
+	@Benchmark
+	public ProtocolCommands issueTerminal() throws CredentialsException {
+		IdemixSmartcard.requestIssueCommitmentCommands(cv, icd, values, nonce);
+		IdemixSmartcard.processIssueCommitmentCommands(cv, commitmentResponses);
+		return IdemixSmartcard.requestIssueSignatureCommands(cv, icd, signature);
+	}
+
+	@Benchmark
+	public Attributes verify() throws CredentialsException {
+		return new IdemixCredentials(emulator).verify(vd);
+	}
+
+	@Benchmark
+	public IRMAIdemixDisclosureProof verifyTerminal() {
+		IdemixSmartcard.buildProofCommands(cv, nonce, vd);
+		return IdemixSmartcard.processBuildProofResponses(cv, proofResponses, vd);
+	}
+
+	@Benchmark
+	public List<LogEntry> readLog() throws CardServiceException, InfoException {
+		return credentials.getLog();
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.benchmark;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Checks the bytes allocated per operation of {@link AllocationBenchmark}
+ * against the budgets recorded in allocation-budgets.properties, and exits
+ * with a non-zero status if an operation allocates more than its budget or
+ * has no budget at all. Allocations are counted for all threads, using the
+ * allocation counters of the HotSpot ThreadMXBean, so that work handed off to
+ * other threads, such as refilling the pools of the NonceGenerator, counts
+ * towards the operation that caused it.
+ *
+ * Run it using
+ *
+ * <pre>
+ *   gradle allocationCheck
+ * </pre>
+ *
+ * Allocations differ between JVMs, so the budgets are recorded and checked
+ * on the release machine, as described in the README. After an intended
+ * change in allocations, record new budgets there by passing
+ * -PallocationArgs="--record src/jmh/resources/org/irmacard/idemix/benchmark/allocation-budgets.properties".
+ * The recorded budgets leave {@link #HEADROOM} for noise in the measurements.
+ */
+public class AllocationBudgets {
+	enum Operation { ISSUE, ISSUE_TERMINAL, VERIFY, VERIFY_TERMINAL, READ_LOG }
+
+	static final String BUDGETS = "allocation-budgets.properties";
+
+	static final double HEADROOM = 0.10;
+
+	private static final int WARMUP = 50;
+	private static final int ITERATIONS = 100;
+
+	private final com.sun.management.ThreadMXBean threads;
+
+	// Keeps the results alive, so that their allocation cannot be optimised away
+	private static volatile Object sink;
+
+	AllocationBudgets() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			throw new UnsupportedOperationException(
+					"This JVM cannot count the memory allocated by a thread");
+		}
+		threads = (com.sun.management.ThreadMXBean) bean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String record = null;
+		if (args.length == 2 && args[0].equals("--record")) {
+			record = args[1];
+		} else if (args.length != 0) {
+			System.err.println("Usage: AllocationBudgets [--record FILE]");
+			System.exit(1);
+		}
+
+		AllocationBudgets budgets = new AllocationBudgets();
+		Properties measured = budgets.measure();
+
+		if (record != null) {
+			Properties recorded = new Properties();
+			for (String key : measured.stringPropertyNames()) {
+				long bytes = Long.parseLong(measured.getProperty(key));
+				recorded.setProperty(key, Long.toString(budget(bytes)));
+			}
+			OutputStream out = new FileOutputStream(record);
+			try {
+				recorded.store(out, "Bytes allocated per operation, see AllocationBudgets");
+			} finally {
+				out.close();
+			}
+			System.out.println("Recorded budgets in " + record);
+			return;
+		}
+
+		Properties recorded = load();
+		if (recorded.isEmpty()) {
+			System.err.println("No budgets have been recorded in " + BUDGETS
+					+ ", record them using --record");
+		}
+		if (!check(measured, recorded)) {
+			System.exit(1);
+		}
+	}
+
+	static Properties load() throws IOException {
+		Properties budgets = new Properties();
+		InputStream in = AllocationBudgets.class.getResourceAsStream(BUDGETS);
+		if (in != null) {
+			try {
+				budgets.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return budgets;
+	}
+
+	/**
+	 * The budget recorded for a measurement, with headroom and rounded up to
+	 * whole kilobytes.
+	 */
+	static long budget(long bytes) {
+		long budget = (long) Math.ceil(bytes * (1 + HEADROOM));
+		return (budget + 1023) / 1024 * 1024;
+	}
+
+	/**
+	 * Compare the measurements to the budgets and report on each operation.
+	 *
+	 * @return whether all operations are within their budget.
+	 */
+	static boolean check(Properties measured, Properties budgets) {
+		boolean passed = true;
+		for (String key : new TreeSet<String>(measured.stringPropertyNames())) {
+			long bytes = Long.parseLong(measured.getProperty(key));
+			String budget = budgets.getProperty(key);
+			String status;
+			if (budget == null) {
+				status = "NO BUDGET";
+				passed = false;
+			} else if (bytes > Long.parseLong(budget)) {
+				status = "OVER BUDGET";
+				passed = false;
+			} else {
+				status = "ok";
+			}
+			System.out.println(String.format(Locale.ENGLISH, "%-24s %10d bytes, budget %10s  %s",
+					key, bytes, budget == null ? "-" : budget, status));
+		}
+		return passed;
+	}
+
+	/**
+	 * Measure the average number of bytes allocated by each operation, for
+	 * credentials of all supported numbers of attributes.
+	 *
+	 * @return the measurements keyed by operation and number of attributes,
+	 *         for example verify_terminal.2
+	 */
+	Properties measure() throws Exception {
+		Properties measured = new Properties();
+		for (int attributes = 1; attributes <= BenchmarkCredentials.MAX_ATTRIBUTES; attributes++) {
+			AllocationBenchmark benchmark = new AllocationBenchmark();
+			benchmark.attributes = attributes;
+			benchmark.setup();
+
+			for (Operation operation : Operation.values()) {
+				for (int i = 0; i < WARMUP; i++) {
+					sink = run(benchmark, operation);
+				}
+
+				long[] ids = threads.getAllThreadIds();
+				long start = allocated(ids);
+				for (int i = 0; i < ITERATIONS; i++) {
+					sink = run(benchmark, operation);
+				}
+				long bytes = (allocated(ids) - start) / ITERATIONS;
+
+				measured.setProperty(operation.name().toLowerCase(Locale.ENGLISH)
+						+ "." + attributes, Long.toString(bytes));
+			}
+		}
+		return measured;
+	}
+
+	/**
+	 * The bytes allocated so far by the given threads. Threads started after
+	 * the ids were taken are not counted, but the threads used by the
+	 * operations, like the nonce refill thread, live as long as the JVM.
+	 */
+	private long allocated(long[] ids) {
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(ids)) {
+			// Threads that have exited report -1
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+
+	private static Object run(AllocationBenchmark benchmark, Operation operation)
+			throws Exception {
+		switch (operation) {
+		case ISSUE:
+			benchmark.issue();
+			return null;
+		case ISSUE_TERMINAL:
+			return benchmark.issueTerminal();
+		case VERIFY:
+			return benchmark.verify();
+		case VERIFY_TERMINAL:
+			return benchmark.verifyTerminal();
+		case READ_LOG:
+			return benchmark.readLog();
+		default:
+			throw new IllegalArgumentException("Unknown operation " + operation);
+		}
+	}
+}
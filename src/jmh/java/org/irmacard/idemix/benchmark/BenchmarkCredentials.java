@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.benchmark;
+
+import java.io.File;
+import java.net.URI;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+import org.irmacard.credentials.Attributes;
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.IdemixCredentials;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.info.IdemixKeyStore;
+import org.irmacard.credentials.idemix.info.IdemixKeyStoreDeserializer;
+import org.irmacard.credentials.idemix.smartcard.PinCode;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.DescriptionStore;
+import org.irmacard.credentials.info.DescriptionStoreDeserializer;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.credentials.info.IssuerIdentifier;
+import org.irmacard.idemix.IdemixService;
+
+/**
+ * The credentials of the irma-demo scheme used by the benchmarks, chosen by
+ * their number of attributes. As for the tests, the descriptions and keys are
+ * read from irma_configuration in the working directory.
+ */
+final class BenchmarkCredentials {
+	static final String SCHEME_MANAGER = "irma-demo";
+
+	/** Issuer, credential and verification of 1 up to 4 attributes */
+	private static final String[][] CREDENTIALS = {
+		{ "MijnOverheid", "root", "rootAll" },
+		{ "Surfnet", "root", "rootAll" },
+		{ "IRMATube", "member", "memberAll" },
+		{ "RU", "studentCard", "studentCardAll" },
+	};
+
+	static final int MAX_ATTRIBUTES = CREDENTIALS.length;
+
+	private static boolean initialized = false;
+
+	private BenchmarkCredentials() {
+	}
+
+	static synchronized void initialize() throws InfoException {
+		if (!initialized) {
+			URI core = new File(System.getProperty("user.dir")).toURI()
+					.resolve("irma_configuration/");
+			DescriptionStore.initialize(new DescriptionStoreDeserializer(core));
+			IdemixKeyStore.initialize(new IdemixKeyStoreDeserializer(core));
+			initialized = true;
+		}
+	}
+
+	static CredentialDescription getCredential(int attributes)
+			throws InfoException {
+		String[] credential = lookup(attributes);
+		return DescriptionStore.getInstance().getCredentialDescriptionByName(
+				SCHEME_MANAGER, credential[0], credential[1]);
+	}
+
+	static IdemixVerificationDescription getVerification(int attributes)
+			throws InfoException {
+		String[] credential = lookup(attributes);
+		return new IdemixVerificationDescription(
+				new IssuerIdentifier(SCHEME_MANAGER, credential[0]), credential[2]);
+	}
+
+	/**
+	 * Get values for all attributes of the credential, each attribute is
+	 * simply given its own name.
+	 */
+	static Attributes getAttributes(CredentialDescription cd) {
+		Attributes attributes = new Attributes();
+		for (String name : cd.getAttributeNames()) {
+			attributes.add(name, name.getBytes());
+		}
+		return attributes;
+	}
+
+	/**
+	 * Open a service on the emulated card, with both PINs verified.
+	 */
+	static IdemixService connect(SmartCardEmulatorService emulator)
+			throws CardServiceException {
+		IdemixService service = new IdemixService(emulator);
+		service.open();
+		service.sendCredentialPin(PinCode.DEFAULT_CRED_PIN);
+		service.sendCardPin(PinCode.DEFAULT_CARD_PIN);
+		return service;
+	}
+
+	static void issue(IdemixService service, CredentialDescription cd)
+			throws CredentialsException, InfoException {
+		new IdemixCredentials(service).issue(cd,
+				IdemixKeyStore.getInstance().getSecretKey(cd), getAttributes(cd), null);
+	}
+
+	private static String[] lookup(int attributes) {
+		if (attributes < 1 || attributes > MAX_ATTRIBUTES) {
+			throw new IllegalArgumentException("No credential with "
+					+ attributes + " attributes, at most " + MAX_ATTRIBUTES
+					+ " are supported");
+		}
+		return CREDENTIALS[attributes - 1];
+	}
+}
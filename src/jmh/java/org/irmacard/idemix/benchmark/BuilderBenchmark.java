@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.benchmark;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.ProtocolCommands;
+
+import org.irmacard.credentials.idemix.descriptions.IdemixCredentialDescription;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the commands of the protocols, without talking to a card.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuilderBenchmark {
+	@State(Scope.Benchmark)
+	public static class Descriptions {
+		@Param({ "1", "2", "3", "4" })
+		public int attributes;
+
+		CardVersion cv;
+		IdemixCredentialDescription cd;
+		IdemixVerificationDescription vd;
+		BigInteger nonce;
+
+		@Setup
+		public void setup() throws InfoException, CardServiceException {
+			BenchmarkCredentials.initialize();
+			cd = new IdemixCredentialDescription(
+					BenchmarkCredentials.getCredential(attributes));
+			vd = BenchmarkCredentials.getVerification(attributes);
+			nonce = vd.generateNonce();
+
+			IdemixService service = new IdemixService(new SmartCardEmulatorService());
+			service.open();
+			cv = service.getCardVersion();
+			service.close();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Numbers {
+		@Param({ "1024", "2048", "4096" })
+		public int keySize;
+
+		BigInteger value;
+
+		@Setup
+		public void setup() {
+			// Leading zero bytes are the case fixLength pads for
+			value = new BigInteger(keySize - 12, new SecureRandom());
+		}
+	}
+
+	@Benchmark
+	public ProtocolCommands buildProofCommands(Descriptions d) {
+		return IdemixSmartcard.buildProofCommands(d.cv, d.nonce, d.vd);
+	}
+
+	@Benchmark
+	public ProtocolCommands setPublicKeyCommands(Descriptions d) {
+		return IdemixSmartcard.setPublicKeyCommands(d.cv, d.cd);
+	}
+
+	@Benchmark
+	public byte[] fixLength(Numbers n) {
+		return IdemixSmartcard.fixLength(n.value, n.keySize);
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.benchmark;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ProtocolCommand;
+import net.sf.scuba.smartcards.ProtocolCommands;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+import org.irmacard.credentials.Attributes;
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.NonceGenerator;
+import org.irmacard.credentials.idemix.descriptions.IdemixCredentialDescription;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.info.IdemixKeyStore;
+import org.irmacard.credentials.idemix.irma.IRMAIdemixIssuer;
+import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+import org.irmacard.credentials.idemix.smartcard.PinCode;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Processing of a single command by the emulated card, for each instruction.
+ * The card is first brought into the state in which it accepts the
+ * instruction, which is then sent to it over and over again.
+ *
+ * Instructions that end a protocol or change the credentials on the card
+ * (INS_ISSUE_VERIFY, INS_ADMIN_REMOVE) cannot be repeated, and are not
+ * measured here; their cost shows in {@link ProtocolBenchmark}. The same
+ * holds for INS_GENERATE_SECRET, which the card accepts only once, when it
+ * has no master secret yet. INS_AUTHENTICATION_SECRET is not supported by
+ * the emulated card. INS_ADMIN_FLAGS is measured reading the flags, and
+ * INS_MANAGE_CHANNEL opening a channel, which is closed again before the
+ * next invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CardBenchmark {
+	@Param({ "SELECT", "VERIFY", "ISSUE_CREDENTIAL", "ISSUE_PUBLIC_KEY",
+			"ISSUE_ATTRIBUTES", "ISSUE_COMMITMENT", "ISSUE_COMMITMENT_PROOF",
+			"ISSUE_CHALLENGE", "ISSUE_SIGNATURE", "PROVE_CREDENTIAL",
+			"PROVE_COMMITMENT", "PROVE_SIGNATURE", "PROVE_ATTRIBUTE",
+			"ADMIN_CREDENTIAL", "ADMIN_ATTRIBUTE", "ADMIN_CREDENTIALS",
+			"ADMIN_FLAGS", "ADMIN_LOG", "MANAGE_CHANNEL" })
+	public String instruction;
+
+	@Param({ "1", "2", "3", "4" })
+	public int attributes;
+
+	private SmartCardEmulatorService emulator;
+	private CommandAPDU command;
+
+	// Command that brings the card back in the state accepting the command
+	private CommandAPDU rearm;
+
+	@Setup
+	public void setup() throws InfoException, CardServiceException, CredentialsException {
+		BenchmarkCredentials.initialize();
+		CredentialDescription cd = BenchmarkCredentials.getCredential(attributes);
+		IdemixCredentialDescription icd = new IdemixCredentialDescription(cd);
+		IdemixVerificationDescription vd = BenchmarkCredentials.getVerification(attributes);
+
+		emulator = new SmartCardEmulatorService();
+		IdemixService service = BenchmarkCredentials.connect(emulator);
+		BenchmarkCredentials.issue(service, cd);
+		CardVersion cv = service.getCardVersion();
+
+		Attributes values = BenchmarkCredentials.getAttributes(cd);
+		values.setCredentialID(cd.getId());
+		BigInteger nonce = NonceGenerator.getInstance().next();
+
+		if ("SELECT".equals(instruction)) {
+			command = IdemixSmartcard.selectApplicationCommand.getAPDU();
+		} else if ("VERIFY".equals(instruction)) {
+			command = IdemixSmartcard.sendPinCommand(cv,
+					IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CRED_PIN).getAPDU();
+		} else if ("ISSUE_SIGNATURE".equals(instruction)) {
+			IssueCommitmentMessage commit_msg =
+					IdemixSmartcard.processIssueCommitmentCommands(cv,
+					service.execute(IdemixSmartcard.requestIssueCommitmentCommands(
+							cv, icd, values, nonce)));
+			IssueSignatureMessage signature_msg = new IRMAIdemixIssuer(
+					icd.getPublicKey(), IdemixKeyStore.getInstance().getSecretKey(cd),
+					icd.getContext()).issueSignature(commit_msg, icd, values, nonce);
+			command = prepare(service, IdemixSmartcard.requestIssueSignatureCommands(
+					cv, icd, signature_msg), IdemixSmartcard.INS_ISSUE_SIGNATURE);
+		} else if (instruction.startsWith("ISSUE_")) {
+			command = prepare(service, IdemixSmartcard.requestIssueCommitmentCommands(
+					cv, icd, values, nonce), instruction(instruction));
+		} else if (instruction.startsWith("PROVE_")) {
+			command = prepare(service, IdemixSmartcard.buildProofCommands(cv, nonce, vd),
+					instruction(instruction));
+			if ("PROVE_COMMITMENT".equals(instruction)) {
+				// The commitment can only be computed once per proof
+				rearm = IdemixSmartcard.startProofCommand(cv, vd).getAPDU();
+			}
+		} else if ("ADMIN_CREDENTIALS".equals(instruction)) {
+			command = IdemixSmartcard.getCredentialsCommand(cv).getAPDU();
+		} else if ("ADMIN_FLAGS".equals(instruction)) {
+			service.selectCredential(cd.getId());
+			command = IdemixSmartcard.getCredentialFlagsCommand(cv).getAPDU();
+		} else if ("ADMIN_LOG".equals(instruction)) {
+			command = IdemixSmartcard.getLogCommand(cv, (byte) 0).getAPDU();
+		} else if ("MANAGE_CHANNEL".equals(instruction)) {
+			// The card assigns the first free channel, close it again
+			command = IdemixSmartcard.openChannelCommand(cv).getAPDU();
+			rearm = IdemixSmartcard.closeChannelCommand(cv, 1).getAPDU();
+		} else {
+			command = prepare(service, IdemixSmartcard.requestGetAttributesCommands(cv, icd),
+					instruction(instruction));
+		}
+
+		// Fail now, rather than measuring an error response
+		rearm();
+		ResponseAPDU response = emulator.transmit(command);
+		if (response.getSW() != 0x00009000) {
+			throw new IllegalStateException(instruction + " cannot be repeated, card returned "
+					+ Integer.toHexString(response.getSW()));
+		}
+	}
+
+	/**
+	 * Execute the commands up to the first one with the given instruction,
+	 * and return that one.
+	 */
+	private static CommandAPDU prepare(IdemixService service, ProtocolCommands commands,
+			byte ins) throws CardServiceException {
+		for (ProtocolCommand command : commands) {
+			if ((byte) command.getAPDU().getINS() == ins) {
+				return command.getAPDU();
+			}
+			service.execute(command);
+		}
+		throw new IllegalArgumentException("No command with instruction " + ins);
+	}
+
+	private static byte instruction(String name) {
+		try {
+			return IdemixSmartcard.class.getField("INS_" + name).getByte(null);
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			throw new IllegalArgumentException("Unknown instruction " + name, e);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void rearm() throws CardServiceException {
+		if (rearm != null) {
+			emulator.transmit(rearm);
+		}
+	}
+
+	@Benchmark
+	public ResponseAPDU processAPDU() throws CardServiceException {
+		return emulator.transmit(command);
+	}
+}
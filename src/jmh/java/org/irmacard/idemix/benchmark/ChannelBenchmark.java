@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+import org.irmacard.credentials.idemix.smartcard.FixedLatencyModel;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of multiplexing a single emulated card over its logical
+ * channels. Every benchmark thread reads the log of the same card over its
+ * own channel, the first one over the basic channel. Compare the throughput
+ * for one up to four threads (the card has four channels), for example
+ *
+ * <pre>
+ *   gradle jmh -PjmhArgs="ChannelBenchmark -t 1"
+ *   gradle jmh -PjmhArgs="ChannelBenchmark -t 4"
+ * </pre>
+ *
+ * The card processes one command at a time, whatever channel it arrives
+ * on, so without latency the throughput does not grow with the number of
+ * channels. With latency, the time spent waiting for the card overlaps
+ * between channels. The emulator spends the latency outside of the card,
+ * so this shows an upper bound of what multiplexing gains on a reader.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelBenchmark {
+	@State(Scope.Benchmark)
+	public static class Card {
+		/** Latency of every command, in microseconds */
+		@Param({ "0", "1000" })
+		public long latency;
+
+		private IdemixService basic;
+
+		// Only used to open the logical channels
+		private IdemixService opener;
+
+		@Setup
+		public void setup() throws CardServiceException {
+			SmartCardEmulatorService emulator = new SmartCardEmulatorService();
+			if (latency > 0) {
+				emulator.setLatencyModel(new FixedLatencyModel(
+						TimeUnit.MICROSECONDS.toNanos(latency)));
+			}
+			basic = BenchmarkCredentials.connect(emulator);
+			opener = new IdemixService(emulator);
+			opener.open();
+		}
+
+		/**
+		 * Get a service for a benchmark thread, the basic channel for the
+		 * first thread and a new logical channel for the others.
+		 */
+		synchronized IdemixService next() throws CardServiceException {
+			if (basic != null) {
+				IdemixService service = basic;
+				basic = null;
+				return service;
+			}
+			return opener.openLogicalChannel();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Channel {
+		private IdemixService service;
+
+		@Setup
+		public void setup(Card card) throws CardServiceException {
+			service = card.next();
+		}
+	}
+
+	@Benchmark
+	public List<IdemixLogEntry> readLog(Channel channel) throws CardServiceException {
+		return channel.service.getNewestLogEntries();
+	}
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.benchmark;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.IdemixCredentials;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.smartcard.FixedLatencyModel;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.idemix.IdemixService;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Command line load generator, which runs a mix of operations through
+ * {@link IdemixCredentials} on a number of emulated cards from a number of
+ * concurrent workers. A worker takes an idle card, runs one operation on it
+ * and returns it, so a card is never used by two workers at the same time.
+ *
+ * Afterwards the throughput and latency percentiles of each operation are
+ * written as JSON or CSV. Run it using, for example,
+ *
+ * <pre>
+ *   gradle loadgen -PloadgenArgs="--cards 16 --workers 8 --mix issue=1,verify=8"
+ * </pre>
+ *
+ * Options:
+ * <ul>
+ *   <li>--cards N: number of emulated cards (default 4)
+ *   <li>--workers M: number of concurrent workers (default 4)
+ *   <li>--mix op=weight,...: relative weights of the operations issue, verify,
+ *       log and remove (default issue=1,verify=4,log=2,remove=1)
+ *   <li>--attributes K: attributes of the credential used, 1 up to 4 (default 2)
+ *   <li>--warmup S: seconds to run before measuring (default 5)
+ *   <li>--duration S: seconds to measure (default 30)
+ *   <li>--latency MS: emulated latency of every command in milliseconds
+ *       (default 0)
+ *   <li>--format json|csv: output format (default json)
+ *   <li>--output FILE: file to write the results to (default standard output)
+ * </ul>
+ *
+ * Verifying or removing on a card without the credential would only measure
+ * the error, so those operations issue the credential instead.
+ *
+ * Failed operations are counted as errors. The first error of each
+ * operation is printed to standard error, and included in the JSON output.
+ */
+public class LoadGenerator {
+	enum Operation { ISSUE, VERIFY, LOG, REMOVE }
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private int cards = 4;
+	private int workers = 4;
+	private final Map<Operation, Integer> mix = new EnumMap<Operation, Integer>(Operation.class);
+	private int attributes = 2;
+	private long warmup = 5;
+	private long duration = 30;
+	private long latency = 0;
+	private String format = "json";
+	private String output = null;
+
+	private CredentialDescription cd;
+	private IdemixVerificationDescription vd;
+
+	/**
+	 * An emulated card, with a connection on which both PINs are verified.
+	 */
+	private class Card {
+		final SmartCardEmulatorService emulator = new SmartCardEmulatorService();
+		final IdemixService service;
+		final IdemixCredentials credentials;
+		boolean issued = false;
+
+		Card() throws CardServiceException {
+			if (latency > 0) {
+				emulator.setLatencyModel(new FixedLatencyModel(
+						TimeUnit.MILLISECONDS.toNanos(latency)));
+			}
+			service = BenchmarkCredentials.connect(emulator);
+			credentials = new IdemixCredentials(service);
+		}
+
+		Operation run(Operation operation) throws CredentialsException,
+				CardServiceException, InfoException {
+			if (!issued && (operation == Operation.VERIFY || operation == Operation.REMOVE)) {
+				operation = Operation.ISSUE;
+			}
+
+			switch (operation) {
+			case ISSUE:
+				BenchmarkCredentials.issue(service, cd);
+				issued = true;
+				break;
+			case VERIFY:
+				if (new IdemixCredentials(emulator).verify(vd) == null) {
+					throw new CredentialsException("The proof does not verify");
+				}
+				break;
+			case LOG:
+				credentials.getLog();
+				break;
+			case REMOVE:
+				credentials.removeCredential(cd);
+				issued = false;
+				break;
+			}
+			return operation;
+		}
+	}
+
+	/**
+	 * Latencies of one operation as recorded by one worker, in nanoseconds.
+	 */
+	static class Latencies {
+		long[] values = new long[1024];
+		int count = 0;
+		int errors = 0;
+
+		// The first error, kept to report why the operation failed
+		Exception firstError = null;
+
+		void add(long value) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = value;
+		}
+
+		void addAll(Latencies other) {
+			for (int i = 0; i < other.count; i++) {
+				add(other.values[i]);
+			}
+			errors += other.errors;
+			if (firstError == null) {
+				firstError = other.firstError;
+			}
+		}
+	}
+
+	private class Worker extends Thread {
+		final BlockingQueue<Card> idle;
+		final Operation[] choices;
+		final long warmupEnd;
+		final long end;
+		final Map<Operation, Latencies> latencies =
+				new EnumMap<Operation, Latencies>(Operation.class);
+
+		Worker(int id, BlockingQueue<Card> idle, Operation[] choices,
+				long warmupEnd, long end) {
+			super("loadgen-worker-" + id);
+			this.idle = idle;
+			this.choices = choices;
+			this.warmupEnd = warmupEnd;
+			this.end = end;
+			for (Operation operation : Operation.values()) {
+				latencies.put(operation, new Latencies());
+			}
+		}
+
+		@Override
+		public void run() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			try {
+				while (System.nanoTime() < end) {
+					Operation operation = choices[random.nextInt(choices.length)];
+					Card card = idle.take();
+					long start = System.nanoTime();
+					Exception failed = null;
+					try {
+						operation = card.run(operation);
+					} catch (Exception e) {
+						failed = e;
+					} finally {
+						idle.put(card);
+					}
+					long stop = System.nanoTime();
+
+					if (start >= warmupEnd && stop <= end) {
+						if (failed != null) {
+							Latencies failures = latencies.get(operation);
+							failures.errors++;
+							if (failures.firstError == null) {
+								failures.firstError = failed;
+							}
+						} else {
+							latencies.get(operation).add(stop - start);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("See the documentation of " + LoadGenerator.class.getName()
+					+ " for the available options");
+			System.exit(1);
+		}
+
+		Map<Operation, Latencies> results = generator.run();
+		for (Map.Entry<String, String> error : firstErrors(results).entrySet()) {
+			System.err.println("First error of " + error.getKey() + ": " + error.getValue());
+		}
+
+		Writer writer = generator.output == null
+				? new OutputStreamWriter(System.out, "UTF-8")
+				: new FileWriter(generator.output);
+		try {
+			if (generator.format.equals("csv")) {
+				generator.writeCsv(results, writer);
+			} else {
+				generator.writeJson(results, writer);
+			}
+		} finally {
+			writer.flush();
+			if (generator.output != null) {
+				writer.close();
+			}
+		}
+	}
+
+	void parse(String[] args) {
+		mix.put(Operation.ISSUE, 1);
+		mix.put(Operation.VERIFY, 4);
+		mix.put(Operation.LOG, 2);
+		mix.put(Operation.REMOVE, 1);
+
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value for " + option);
+			}
+			String value = args[++i];
+
+			if (option.equals("--cards")) {
+				cards = positive(option, value);
+			} else if (option.equals("--workers")) {
+				workers = positive(option, value);
+			} else if (option.equals("--attributes")) {
+				attributes = positive(option, value);
+			} else if (option.equals("--warmup")) {
+				warmup = nonNegative(option, value);
+			} else if (option.equals("--duration")) {
+				duration = positive(option, value);
+			} else if (option.equals("--latency")) {
+				latency = nonNegative(option, value);
+			} else if (option.equals("--output")) {
+				output = value;
+			} else if (option.equals("--format")) {
+				if (!value.equals("json") && !value.equals("csv")) {
+					throw new IllegalArgumentException("Unknown format " + value);
+				}
+				format = value;
+			} else if (option.equals("--mix")) {
+				mix.clear();
+				for (String part : value.split(",")) {
+					String[] weight = part.split("=");
+					if (weight.length != 2) {
+						throw new IllegalArgumentException("Malformed mix " + part);
+					}
+					Operation operation;
+					try {
+						operation = Operation.valueOf(weight[0].trim().toUpperCase(Locale.ENGLISH));
+					} catch (IllegalArgumentException e) {
+						throw new IllegalArgumentException("Unknown operation " + weight[0]);
+					}
+					mix.put(operation, nonNegative(option, weight[1].trim()));
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+	}
+
+	private static int positive(String option, String value) {
+		int number = nonNegative(option, value);
+		if (number == 0) {
+			throw new IllegalArgumentException(option + " must be positive");
+		}
+		return number;
+	}
+
+	private static int nonNegative(String option, String value) {
+		int number;
+		try {
+			number = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(option + " expects a number, not " + value);
+		}
+		if (number < 0) {
+			throw new IllegalArgumentException(option + " cannot be negative");
+		}
+		return number;
+	}
+
+	/**
+	 * The operations to choose from uniformly, each operation repeated
+	 * according to its weight.
+	 */
+	Operation[] choices() {
+		List<Operation> choices = new ArrayList<Operation>();
+		for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+			for (int i = 0; i < entry.getValue(); i++) {
+				choices.add(entry.getKey());
+			}
+		}
+		if (choices.isEmpty()) {
+			throw new IllegalArgumentException("The mix contains no operations");
+		}
+		return choices.toArray(new Operation[choices.size()]);
+	}
+
+	Map<Operation, Latencies> run() throws InfoException, CardServiceException,
+			InterruptedException {
+		Operation[] choices = choices();
+		BenchmarkCredentials.initialize();
+		cd = BenchmarkCredentials.getCredential(attributes);
+		vd = BenchmarkCredentials.getVerification(attributes);
+
+		BlockingQueue<Card> idle = new ArrayBlockingQueue<Card>(cards);
+		for (int i = 0; i < cards; i++) {
+			idle.add(new Card());
+		}
+
+		long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup);
+		long end = warmupEnd + TimeUnit.SECONDS.toNanos(duration);
+		List<Worker> running = new ArrayList<Worker>();
+		for (int i = 0; i < workers; i++) {
+			Worker worker = new Worker(i, idle, choices, warmupEnd, end);
+			worker.start();
+			running.add(worker);
+		}
+
+		Map<Operation, Latencies> results = new EnumMap<Operation, Latencies>(Operation.class);
+		for (Operation operation : Operation.values()) {
+			results.put(operation, new Latencies());
+		}
+		for (Worker worker : running) {
+			worker.join();
+			for (Operation operation : Operation.values()) {
+				results.get(operation).addAll(worker.latencies.get(operation));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Summarise the latencies of each operation: count, errors, throughput
+	 * per second and the mean, percentiles and maximum in milliseconds.
+	 */
+	Map<String, Map<String, Number>> summarise(Map<Operation, Latencies> results) {
+		Map<String, Map<String, Number>> summary =
+				new LinkedHashMap<String, Map<String, Number>>();
+		for (Map.Entry<Operation, Latencies> entry : results.entrySet()) {
+			Latencies latencies = entry.getValue();
+			long[] sorted = Arrays.copyOf(latencies.values, latencies.count);
+			Arrays.sort(sorted);
+
+			Map<String, Number> stats = new LinkedHashMap<String, Number>();
+			stats.put("count", latencies.count);
+			stats.put("errors", latencies.errors);
+			stats.put("throughput", (double) latencies.count / duration);
+			long total = 0;
+			for (long value : sorted) {
+				total += value;
+			}
+			stats.put("mean_ms", sorted.length == 0 ? 0 : millis(total / sorted.length));
+			for (double percentile : PERCENTILES) {
+				stats.put(percentileName(percentile), millis(percentile(sorted, percentile)));
+			}
+			stats.put("max_ms", sorted.length == 0 ? 0 : millis(sorted[sorted.length - 1]));
+			summary.put(entry.getKey().name().toLowerCase(Locale.ENGLISH), stats);
+		}
+		return summary;
+	}
+
+	/**
+	 * The first error of each operation that failed.
+	 */
+	static Map<String, String> firstErrors(Map<Operation, Latencies> results) {
+		Map<String, String> errors = new LinkedHashMap<String, String>();
+		for (Map.Entry<Operation, Latencies> entry : results.entrySet()) {
+			Exception error = entry.getValue().firstError;
+			if (error != null) {
+				errors.put(entry.getKey().name().toLowerCase(Locale.ENGLISH), error.toString());
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * Nearest-rank percentile of the sorted values, 0 if there are none.
+	 */
+	static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	private static String percentileName(double percentile) {
+		String name = Double.toString(percentile).replace(".0", "").replace(".", "");
+		return "p" + name + "_ms";
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	void writeJson(Map<Operation, Latencies> results, Writer writer) throws IOException {
+		Map<String, Object> document = new LinkedHashMap<String, Object>();
+		Map<String, Object> settings = new LinkedHashMap<String, Object>();
+		settings.put("cards", cards);
+		settings.put("workers", workers);
+		settings.put("attributes", attributes);
+		settings.put("duration", duration);
+		settings.put("latency_ms", latency);
+		Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+			weights.put(entry.getKey().name().toLowerCase(Locale.ENGLISH), entry.getValue());
+		}
+		settings.put("mix", weights);
+		document.put("settings", settings);
+		document.put("operations", summarise(results));
+		document.put("first_errors", firstErrors(results));
+		new GsonBuilder().setPrettyPrinting().create().toJson(document, writer);
+		writer.write('\n');
+	}
+
+	void writeCsv(Map<Operation, Latencies> results, Writer writer) throws IOException {
+		Map<String, Map<String, Number>> summary = summarise(results);
+		StringBuilder header = new StringBuilder("operation");
+		for (String column : summary.values().iterator().next().keySet()) {
+			header.append(',').append(column);
+		}
+		writer.write(header.append('\n').toString());
+
+		for (Map.Entry<String, Map<String, Number>> entry : summary.entrySet()) {
+			StringBuilder line = new StringBuilder(entry.getKey());
+			for (Number value : entry.getValue().values()) {
+				line.append(',').append(value);
+			}
+			writer.write(line.append('\n').toString());
+		}
+	}
+}
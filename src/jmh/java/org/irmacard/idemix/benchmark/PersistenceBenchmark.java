@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.benchmark;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.smartcard.CredentialMap;
+import org.irmacard.credentials.idemix.smartcard.IRMACard;
+import org.irmacard.credentials.idemix.smartcard.IRMACardHelper;
+import org.irmacard.credentials.idemix.smartcard.IRMAIdemixCredential;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.IdemixSmartcard;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Measures storing and loading card states with {@link IRMACardHelper} in
+ * each of its formats, for synthetic states of different sizes. For every
+ * combination of the number of credentials on a card, the number of log
+ * entries and the number of cards in the fleet, it reports per card
+ *
+ * <ul>
+ *   <li>the time to serialize and to deserialize a card, in milliseconds,
+ *   <li>the size of the stored card, in bytes,
+ *   <li>the peak heap used while storing and while loading the whole fleet,
+ *       in bytes, over the heap in use before.
+ * </ul>
+ *
+ * The peak heap includes garbage, and is only as precise as the usage the
+ * heap pools report, so it is only meaningful for larger fleets.
+ *
+ * The credentials are copies of a demo credential, issued on an emulated
+ * card, so they have the size of real credentials. The log of a card holds
+ * at most {@link IRMACard#LOG_ENTRIES} entries. Run it using, for example,
+ *
+ * <pre>
+ *   gradle persistenceBenchmark -PpersistenceArgs="--credentials 1,10,100 --cards 1,100 --format csv"
+ * </pre>
+ *
+ * Options:
+ * <ul>
+ *   <li>--credentials N,...: credentials per card (default 1,4,16)
+ *   <li>--log N,...: log entries per card (default 0,30)
+ *   <li>--cards N,...: cards in the fleet (default 1,32)
+ *   <li>--iterations N: measured rounds, after as many warmup rounds (default 5)
+ *   <li>--format json|csv: output format (default json)
+ *   <li>--output FILE: file to write the results to (default standard output)
+ * </ul>
+ */
+public class PersistenceBenchmark {
+	private int[] credentials = { 1, 4, 16 };
+	private int[] logs = { 0, 30 };
+	private int[] fleets = { 1, 32 };
+	private int iterations = 5;
+	private String format = "json";
+	private String output = null;
+
+	private CredentialDescription cd;
+	private IdemixVerificationDescription vd;
+	private IRMAIdemixCredential template;
+	private BigInteger masterSecret;
+
+	public static void main(String[] args) throws Exception {
+		PersistenceBenchmark benchmark = new PersistenceBenchmark();
+		try {
+			benchmark.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("See the documentation of " + PersistenceBenchmark.class.getName()
+					+ " for the available options");
+			System.exit(1);
+		}
+
+		List<Map<String, Object>> results = benchmark.run();
+
+		Writer writer = benchmark.output == null
+				? new OutputStreamWriter(System.out, "UTF-8")
+				: new FileWriter(benchmark.output);
+		try {
+			if (benchmark.format.equals("csv")) {
+				writeCsv(results, writer);
+			} else {
+				new GsonBuilder().setPrettyPrinting().create().toJson(results, writer);
+				writer.write('\n');
+			}
+		} finally {
+			writer.flush();
+			if (benchmark.output != null) {
+				writer.close();
+			}
+		}
+	}
+
+	void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value for " + option);
+			}
+			String value = args[++i];
+
+			if (option.equals("--credentials")) {
+				credentials = numbers(option, value, 0);
+			} else if (option.equals("--log")) {
+				logs = numbers(option, value, 0);
+				for (int entries : logs) {
+					if (entries > IRMACard.LOG_ENTRIES) {
+						throw new IllegalArgumentException(
+								option + " must be at most " + IRMACard.LOG_ENTRIES);
+					}
+				}
+			} else if (option.equals("--cards")) {
+				fleets = numbers(option, value, 1);
+			} else if (option.equals("--iterations")) {
+				iterations = numbers(option, value, 1)[0];
+			} else if (option.equals("--output")) {
+				output = value;
+			} else if (option.equals("--format")) {
+				if (!value.equals("json") && !value.equals("csv")) {
+					throw new IllegalArgumentException("Unknown format " + value);
+				}
+				format = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+	}
+
+	private static int[] numbers(String option, String value, int minimum) {
+		String[] parts = value.split(",");
+		int[] numbers = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			try {
+				numbers[i] = Integer.parseInt(parts[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(option + " expects numbers, not " + value);
+			}
+			if (numbers[i] < minimum) {
+				throw new IllegalArgumentException(option + " must be at least " + minimum);
+			}
+		}
+		return numbers;
+	}
+
+	List<Map<String, Object>> run() throws InfoException, CardServiceException,
+			CredentialsException, IOException {
+		List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+		Path directory = Files.createTempDirectory("cards");
+		try {
+			for (int count : credentials) {
+				for (int entries : logs) {
+					IRMACard card = createCard(count, entries);
+					for (int fleet : fleets) {
+						for (IRMACardHelper.Format format : IRMACardHelper.Format.values()) {
+							results.add(measure(card, count, entries, fleet, format, directory));
+						}
+					}
+				}
+			}
+		} finally {
+			try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+				for (Path path : paths) {
+					Files.delete(path);
+				}
+			}
+			Files.delete(directory);
+		}
+		return results;
+	}
+
+	/**
+	 * Create a card with the given number of credentials and log entries.
+	 */
+	IRMACard createCard(int count, int entries) throws InfoException,
+			CardServiceException, CredentialsException {
+		if (template == null) {
+			BenchmarkCredentials.initialize();
+			cd = BenchmarkCredentials.getCredential(BenchmarkCredentials.MAX_ATTRIBUTES);
+			vd = BenchmarkCredentials.getVerification(BenchmarkCredentials.MAX_ATTRIBUTES);
+
+			SmartCardEmulatorService emulator = new SmartCardEmulatorService();
+			BenchmarkCredentials.issue(BenchmarkCredentials.connect(emulator), cd);
+			template = emulator.getCard().getCredentials().get(cd.getId());
+			masterSecret = emulator.getCard().getMasterSecret();
+		}
+
+		SmartCardEmulatorService emulator = new SmartCardEmulatorService();
+		IRMACard card = emulator.getCard();
+		card.setMasterSecret(masterSecret);
+		card.getCredentials().put(cd.getId(), new IRMAIdemixCredential(template));
+
+		// Every proof that is started adds an entry to the log
+		IdemixService service = BenchmarkCredentials.connect(emulator);
+		for (int i = 0; i < entries; i++) {
+			service.execute(IdemixSmartcard.startProofCommand(service.getCardVersion(), vd));
+		}
+		service.close();
+
+		CredentialMap map = new CredentialMap();
+		for (int i = 0; i < count; i++) {
+			map.put((short) (i + 1), new IRMAIdemixCredential(template));
+		}
+		card.setCredentials(map);
+		return card;
+	}
+
+	private Map<String, Object> measure(IRMACard card, int count, int entries,
+			int fleet, IRMACardHelper.Format format, Path directory) throws IOException {
+		Path[] paths = new Path[fleet];
+		for (int i = 0; i < fleet; i++) {
+			paths[i] = directory.resolve("card" + i);
+		}
+
+		long store = 0;
+		long load = 0;
+		long storeHeap = 0;
+		long loadHeap = 0;
+		for (int round = 0; round < 2 * iterations; round++) {
+			boolean measured = round >= iterations;
+
+			long baseline = resetPeakHeap();
+			long start = System.nanoTime();
+			for (Path path : paths) {
+				IRMACardHelper.storeState(card, path, format);
+			}
+			long stored = System.nanoTime() - start;
+			long storedHeap = getPeakHeap() - baseline;
+
+			List<IRMACard> loaded = new ArrayList<IRMACard>(fleet);
+			baseline = resetPeakHeap();
+			start = System.nanoTime();
+			for (Path path : paths) {
+				loaded.add(IRMACardHelper.loadState(path));
+			}
+			long loadTime = System.nanoTime() - start;
+			long loadedHeap = getPeakHeap() - baseline;
+
+			if (loaded.get(0).getCredentials().size() != count) {
+				throw new IllegalStateException("Card did not survive " + format);
+			}
+			if (measured) {
+				store += stored;
+				load += loadTime;
+				storeHeap = Math.max(storeHeap, storedHeap);
+				loadHeap = Math.max(loadHeap, loadedHeap);
+			}
+		}
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("format", format.name().toLowerCase(Locale.ENGLISH));
+		result.put("credentials", count);
+		result.put("log_entries", entries);
+		result.put("cards", fleet);
+		result.put("serialize_ms", store / 1e6 / iterations / fleet);
+		result.put("deserialize_ms", load / 1e6 / iterations / fleet);
+		result.put("bytes", Files.size(paths[0]));
+		result.put("store_peak_heap_bytes", storeHeap);
+		result.put("load_peak_heap_bytes", loadHeap);
+		return result;
+	}
+
+	/**
+	 * Collect garbage and reset the peak usage of the heap pools.
+	 *
+	 * @return the heap in use afterwards.
+	 */
+	private static long resetPeakHeap() {
+		System.gc();
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pool.resetPeakUsage();
+				used += pool.getUsage().getUsed();
+			}
+		}
+		return used;
+	}
+
+	private static long getPeakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static void writeCsv(List<Map<String, Object>> results, Writer writer)
+			throws IOException {
+		if (results.isEmpty()) {
+			return;
+		}
+		StringBuilder header = new StringBuilder();
+		for (String column : results.get(0).keySet()) {
+			header.append(header.length() == 0 ? "" : ",").append(column);
+		}
+		writer.write(header.append('\n').toString());
+
+		for (Map<String, Object> result : results) {
+			StringBuilder line = new StringBuilder();
+			for (Object value : result.values()) {
+				line.append(line.length() == 0 ? "" : ",").append(value);
+			}
+			writer.write(line.append('\n').toString());
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.io.Closeable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irmacard.credentials.Attributes;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.irma.IRMAIdemixDisclosureProof;
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardVersion;
+
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+/**
+ * Verifies disclosure proofs received from many cards in parallel. Every
+ * request (the responses of a card to the commands of
+ * {@link IdemixSmartcard#buildProofCommands}, together with the verification
+ * description and nonce used to build them) is decoded and verified as a
+ * separate task on a fork-join pool.
+ *
+ * <p>The future of a request yields the disclosed attributes, or null if the
+ * proof does not verify, as {@link IdemixCredentials#verify} does. If the
+ * responses cannot be decoded, the future fails with the cause.
+ */
+public class BatchVerifier implements Closeable {
+	/**
+	 * A proof to be verified.
+	 */
+	public static class Request {
+		private final IdemixVerificationDescription description;
+		private final BigInteger nonce;
+		private final ProtocolResponses responses;
+		private final CardVersion cardVersion;
+
+		public Request(IdemixVerificationDescription description, BigInteger nonce,
+				ProtocolResponses responses, CardVersion cardVersion) {
+			this.description = description;
+			this.nonce = nonce;
+			this.responses = responses;
+			this.cardVersion = cardVersion;
+		}
+
+		public IdemixVerificationDescription getDescription() {
+			return description;
+		}
+
+		public BigInteger getNonce() {
+			return nonce;
+		}
+
+		public ProtocolResponses getResponses() {
+			return responses;
+		}
+
+		public CardVersion getCardVersion() {
+			return cardVersion;
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final boolean ownsPool;
+
+	private static final long NONE = Long.MIN_VALUE;
+
+	// Times of the first submission and the last completion, used for the
+	// throughput so that idle time before the first request does not count
+	private final AtomicLong firstSubmitted = new AtomicLong(NONE);
+	private final AtomicLong lastCompleted = new AtomicLong(NONE);
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong verified = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong busyNanos = new AtomicLong();
+
+	/**
+	 * Creates a verifier with its own pool, using all available processors.
+	 */
+	public BatchVerifier() {
+		this(new ForkJoinPool(), true);
+	}
+
+	/**
+	 * Creates a verifier running on the given pool, which is not shut down
+	 * when the verifier is closed.
+	 */
+	public BatchVerifier(ForkJoinPool pool) {
+		this(pool, false);
+	}
+
+	private BatchVerifier(ForkJoinPool pool, boolean ownsPool) {
+		this.pool = pool;
+		this.ownsPool = ownsPool;
+	}
+
+	public Future<Attributes> submit(Request request) {
+		firstSubmitted.compareAndSet(NONE, System.nanoTime());
+		submitted.incrementAndGet();
+		return pool.submit(new VerificationTask(request));
+	}
+
+	public Future<Attributes> submit(IdemixVerificationDescription description,
+			BigInteger nonce, ProtocolResponses responses, CardVersion cardVersion) {
+		return submit(new Request(description, nonce, responses, cardVersion));
+	}
+
+	/**
+	 * Submits a batch of requests.
+	 *
+	 * @return the futures of the requests, in the same order
+	 */
+	public List<Future<Attributes>> submitAll(List<Request> requests) {
+		List<Future<Attributes>> futures = new ArrayList<Future<Attributes>>(requests.size());
+		for (Request request : requests) {
+			futures.add(submit(request));
+		}
+		return futures;
+	}
+
+	/** Returns the number of submitted requests. */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	/** Returns the number of proofs that verified. */
+	public long getVerified() {
+		return verified.get();
+	}
+
+	/** Returns the number of proofs that did not verify. */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/** Returns the number of requests that could not be processed. */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/** Returns the number of requests completed so far, in any way. */
+	public long getCompleted() {
+		return verified.get() + rejected.get() + failed.get();
+	}
+
+	/**
+	 * Returns the average time spent on a single request, in nanoseconds.
+	 */
+	public long getAverageLatency() {
+		long completed = getCompleted();
+		return completed == 0 ? 0 : busyNanos.get() / completed;
+	}
+
+	/**
+	 * Returns the number of requests completed per second, between the first
+	 * submission and the last completion.
+	 */
+	public double getThroughput() {
+		long first = firstSubmitted.get();
+		long last = lastCompleted.get();
+		if (first == NONE || last == NONE || last <= first) {
+			return 0;
+		}
+		return getCompleted() * 1e9 / (last - first);
+	}
+
+	@Override
+	public void close() {
+		if (ownsPool) {
+			pool.shutdown();
+		}
+	}
+
+	private void updateLastCompleted(long time) {
+		long last;
+		do {
+			last = lastCompleted.get();
+		} while ((last == NONE || time - last > 0)
+				&& !lastCompleted.compareAndSet(last, time));
+	}
+
+	private class VerificationTask implements Callable<Attributes> {
+		private final Request request;
+
+		VerificationTask(Request request) {
+			this.request = request;
+		}
+
+		@Override
+		public Attributes call() throws Exception {
+			long start = System.nanoTime();
+			try {
+				IRMAIdemixDisclosureProof proof = IdemixSmartcard.processBuildProofResponses(
+						request.cardVersion, request.responses, request.description);
+				Attributes attributes = proof.verify(request.description, request.nonce);
+				if (attributes != null) {
+					verified.incrementAndGet();
+				} else {
+					rejected.incrementAndGet();
+				}
+				return attributes;
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				throw e;
+			} finally {
+				long end = System.nanoTime();
+				busyNanos.addAndGet(end - start);
+				updateLastCompleted(end);
+			}
+		}
+	}
+}
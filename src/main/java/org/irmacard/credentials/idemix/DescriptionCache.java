@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irmacard.credentials.idemix.descriptions.IdemixCredentialDescription;
+import org.irmacard.credentials.info.AttributeDescription;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.DescriptionStore;
+import org.irmacard.credentials.info.InfoException;
+
+/**
+ * Caches the credential descriptions resolved from the
+ * {@link DescriptionStore} by credential identifier, together with the
+ * attribute disclosure maps and Idemix descriptions derived from them. The
+ * cache is shared by all {@link IdemixCredentials} instances, and is
+ * discarded when the description store is replaced.
+ */
+class DescriptionCache {
+	private static volatile DescriptionCache instance;
+
+	private final DescriptionStore store;
+	private final ConcurrentMap<Short, Entry> entries = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private DescriptionCache(DescriptionStore store) {
+		this.store = store;
+	}
+
+	static DescriptionCache getInstance() throws InfoException {
+		DescriptionStore store = DescriptionStore.getInstance();
+		DescriptionCache cache = instance;
+		if (cache == null || cache.store != store) {
+			cache = new DescriptionCache(store);
+			instance = cache;
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the cache entry for the given credential, the description of
+	 * the entry is null if the store does not know the credential. Unknown
+	 * credentials are not cached, as the store may learn them later on.
+	 */
+	Entry get(short id) {
+		Entry entry = entries.get(id);
+		if (entry != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			entry = new Entry(store.getCredentialDescription(id));
+			if (entry.description == null) {
+				return entry;
+			}
+			Entry existing = entries.putIfAbsent(id, entry);
+			if (existing != null) {
+				entry = existing;
+			}
+		}
+		return entry;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	static class Entry {
+		private final CredentialDescription description;
+		private volatile IdemixCredentialDescription idemixDescription;
+		private final ConcurrentMap<Short, Map<String, Boolean>> disclosed =
+				new ConcurrentHashMap<>();
+
+		private Entry(CredentialDescription description) {
+			this.description = description;
+		}
+
+		CredentialDescription getDescription() {
+			return description;
+		}
+
+		/**
+		 * Returns the Idemix description of the credential, which includes
+		 * the public key of the issuer.
+		 */
+		IdemixCredentialDescription getIdemixDescription() throws InfoException {
+			IdemixCredentialDescription result = idemixDescription;
+			if (result == null) {
+				result = new IdemixCredentialDescription(description);
+				idemixDescription = result;
+			}
+			return result;
+		}
+
+		/**
+		 * Returns which attributes of the credential are disclosed according
+		 * to the given mask, as a map from attribute name to whether the
+		 * attribute is disclosed. Every call returns a copy of the cached
+		 * map, which the caller is free to modify.
+		 */
+		HashMap<String, Boolean> getAttributeDisclosed(short disclose) {
+			List<AttributeDescription> attributes = description.getAttributes();
+
+			// Start at 2 so we skip the master secret and metadata
+			int relevant = ((1 << (attributes.size() + 2)) - 1) & ~0x3;
+			Short mask = (short) (disclose & relevant);
+
+			Map<String, Boolean> cached = disclosed.get(mask);
+			if (cached == null) {
+				HashMap<String, Boolean> map = new HashMap<>();
+				for (int i = 2; i < attributes.size() + 2; i++) {
+					map.put(attributes.get(i-2).getName(),
+							Boolean.valueOf((mask & (1 << i)) != 0));
+				}
+
+				Map<String, Boolean> unmodifiable = Collections.unmodifiableMap(map);
+				cached = disclosed.putIfAbsent(mask, unmodifiable);
+				if (cached == null) {
+					cached = unmodifiable;
+				}
+			}
+			// The log entries require a HashMap of their own
+			return new HashMap<>(cached);
+		}
+	}
+}
@@ -31,11 +31,14 @@
 package org.irmacard.credentials.idemix;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.irmacard.credentials.Attributes;
 import org.irmacard.credentials.BaseCredentials;
@@ -46,9 +49,7 @@ import org.irmacard.credentials.idemix.irma.IRMAIdemixDisclosureProof;
 import org.irmacard.credentials.idemix.irma.IRMAIdemixIssuer;
 import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
 import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
-import org.irmacard.credentials.info.AttributeDescription;
 import org.irmacard.credentials.info.CredentialDescription;
-import org.irmacard.credentials.info.DescriptionStore;
 import org.irmacard.credentials.info.InfoException;
 import org.irmacard.credentials.info.VerificationDescription;
 import org.irmacard.credentials.util.log.IssueLogEntry;
@@ -73,6 +74,9 @@ import net.sf.scuba.smartcards.ProtocolResponses;
 public class IdemixCredentials extends BaseCredentials {
 	IdemixService service = null;
 
+	private InventoryCache inventories = new InventoryCache();
+	private String card = "";
+
 	private static final Logger logger = LoggerFactory.getLogger(IdemixCredentials.class);
 
 	public IdemixCredentials(CardService cs) {
@@ -84,6 +88,18 @@ public class IdemixCredentials extends BaseCredentials {
 		}
 	}
 
+	/**
+	 * Use the given cache for the list of credentials on the card, so that
+	 * it can be shared with other instances talking to the same card.
+	 *
+	 * @param cache the cache to use.
+	 * @param card identifies the card in the cache.
+	 */
+	public void setInventoryCache(InventoryCache cache, String card) {
+		this.inventories = cache;
+		this.card = card;
+	}
+
 	public void connect()
 	throws CredentialsException {
 		try {
@@ -119,7 +135,7 @@ public class IdemixCredentials extends BaseCredentials {
 		BigInteger nonce1 = null;
 		try {
 			icd = new IdemixCredentialDescription(cd);
-			nonce1 = icd.generateNonce();
+			nonce1 = NonceGenerator.getInstance().next();
 		} catch (InfoException e) {
 			throw new CredentialsException(e);
 		}
@@ -169,7 +185,7 @@ public class IdemixCredentials extends BaseCredentials {
 		verifyPrepare();
 
 		CardVersion cv = service.getCardVersion();
-		BigInteger nonce = desc.generateNonce();
+		BigInteger nonce = NonceGenerator.getInstance().next();
 
 		// Run the protocol
 		try {
@@ -211,10 +227,7 @@ public class IdemixCredentials extends BaseCredentials {
 
 	public BigInteger generateNonce(VerificationDescription cd) {
 		// TODO: extract public key from credential description
-		IdemixSystemParameters params = new IdemixSystemParameters();
-
-		Random rnd = new Random();
-		return new BigInteger(params.l_statzk, rnd);
+		return NonceGenerator.getInstance().next();
 	}
 
 	/**
@@ -240,6 +253,88 @@ public class IdemixCredentials extends BaseCredentials {
 				icd, responses);
 	}
 
+	/**
+	 * Get the attributes of all credentials on the card. The attributes are
+	 * requested using a single batch of commands, after which the responses
+	 * of the credentials are processed concurrently.
+	 *
+	 * @return the attributes per credential, in the order of the card.
+	 * @throws CardServiceException
+	 * @throws InfoException
+	 */
+	public Map<CredentialDescription, Attributes> getAllAttributes()
+			throws CardServiceException, InfoException {
+		List<CredentialDescription> credentials = inventories.getCredentials(card, service);
+		DescriptionCache descriptions = DescriptionCache.getInstance();
+
+		List<IdemixCredentialDescription> icds =
+				new ArrayList<IdemixCredentialDescription>(credentials.size());
+		for (CredentialDescription cd : credentials) {
+			icds.add(descriptions.get(cd.getId()).getIdemixDescription());
+		}
+
+		CardVersion cv = getCardVersion();
+		ProtocolResponses responses = service.execute(
+				IdemixSmartcard.requestCardDumpCommands(cv, icds));
+
+		Attributes[] attributes = new Attributes[icds.size()];
+		DumpTask task = new DumpTask(cv, icds, responses, attributes, 0, icds.size());
+		if (icds.size() > 1) {
+			DumpTask.pool.invoke(task);
+		} else {
+			task.compute();
+		}
+
+		Map<CredentialDescription, Attributes> result =
+				new LinkedHashMap<CredentialDescription, Attributes>();
+		for (int i = 0; i < icds.size(); i++) {
+			result.put(icds.get(i).getCredentialDescription(), attributes[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Processes the responses of a range of credentials of a card dump, by
+	 * splitting the range until single credentials remain.
+	 */
+	private static class DumpTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		// The pool starts its worker threads on demand
+		static final ForkJoinPool pool = new ForkJoinPool();
+
+		private final CardVersion cv;
+		private final List<IdemixCredentialDescription> icds;
+		private final ProtocolResponses responses;
+		private final Attributes[] attributes;
+		private final int from, to;
+
+		DumpTask(CardVersion cv, List<IdemixCredentialDescription> icds,
+				ProtocolResponses responses, Attributes[] attributes, int from, int to) {
+			this.cv = cv;
+			this.icds = icds;
+			this.responses = responses;
+			this.attributes = attributes;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= 1) {
+				for (int i = from; i < to; i++) {
+					attributes[i] = IdemixSmartcard.processCardDumpResponses(
+							cv, icds.get(i), responses);
+				}
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+			invokeAll(new DumpTask(cv, icds, responses, attributes, from, middle),
+					new DumpTask(cv, icds, responses, attributes, middle, to));
+		}
+	}
+
 	public void removeCredential(CredentialDescription cd) throws CardServiceException {
 		service.selectCredential(cd.getId());
 		service.removeCredential(cd.getId());
@@ -253,21 +348,8 @@ public class IdemixCredentials extends BaseCredentials {
 	 * @throws InfoException
 	 */
 	public List<CredentialDescription> getCredentials() throws CardServiceException, InfoException {
-		Vector<Integer> credentialIDs = service.getCredentials();
-
-		List<CredentialDescription> credentialList = new Vector<CredentialDescription>();;
-		DescriptionStore ds = DescriptionStore.getInstance();
-
-		for(Integer id : credentialIDs) {
-			CredentialDescription cd = ds.getCredentialDescription(id.shortValue());
-			if(cd != null) {
-				credentialList.add(cd);
-			} else {
-				throw new InfoException("Description for credential with ID=" + id + " not found");
-			}
-		}
-
-		return credentialList;
+		return new Vector<CredentialDescription>(
+				inventories.getCredentials(card, service));
 	}
 
 	@Override
@@ -275,14 +357,15 @@ public class IdemixCredentials extends BaseCredentials {
 		List<IdemixLogEntry> idemix_logs = service.getLogEntries();
 		Vector<LogEntry> logs = new Vector<LogEntry>();
 		LogEntry entry = null;
+		DescriptionCache descriptions = DescriptionCache.getInstance();
 
 		for(IdemixLogEntry l : idemix_logs) {
 			if(l.getAction() == IdemixLogEntry.Action.NONE)
 				continue;
 
-			DescriptionStore ds = DescriptionStore.getInstance();
 			Date timestamp = l.getTimestamp();
-			CredentialDescription credential = ds.getCredentialDescription(l.getCredential());
+			DescriptionCache.Entry cached = descriptions.get(l.getCredential());
+			CredentialDescription credential = cached.getDescription();
 			if(credential == null) {
 				logger.warn("This shouldn't happen, cannot find the description");
 				logger.warn(l.toString());
@@ -297,9 +380,8 @@ public class IdemixCredentials extends BaseCredentials {
 				entry = new RemoveLogEntry(timestamp, credential);
 				break;
 			case VERIFY:
-				entry = new VerifyLogEntry(timestamp,
-						credential, null, makeAttributeDisclosed(credential,
-								l.getDisclose()));
+				entry = new VerifyLogEntry(timestamp, credential, null,
+						cached.getAttributeDisclosed(l.getDisclose()));
 				break;
 
 			// These should not happen...
@@ -313,19 +395,6 @@ public class IdemixCredentials extends BaseCredentials {
 		return logs;
 	}
 
-	private HashMap<String, Boolean> makeAttributeDisclosed(CredentialDescription cred, short disclose) {
-		HashMap<String, Boolean> attributeDisclosed = new HashMap<String, Boolean>();
-		List<AttributeDescription> attributes = cred.getAttributes();
-
-		// Start at 2 so we skip the master secret and metadata
-		for (int i = 2; i < attributes.size() + 2; i++) {
-			attributeDisclosed.put(attributes.get(i-2).getName(), new Boolean(
-					(disclose & (1 << i)) != 0));
-		}
-
-		return attributeDisclosed;
-	}
-
 	public CardVersion getCardVersion() {
 		return service.getCardVersion();
 	}
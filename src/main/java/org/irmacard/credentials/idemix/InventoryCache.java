@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.util.IdemixLogEntry;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+/**
+ * Caches which credentials are on a card, per card. As every issuance and
+ * removal is logged by the card, the cached list is still valid as long as
+ * the entry that was newest when the list was read is still on top of the
+ * log, possibly preceded by verifications only. Validating the list thus
+ * takes a single command, instead of listing the credentials and resolving
+ * their descriptions again.
+ *
+ * Cards are identified by a key chosen by the caller, as cards do not reveal
+ * a unique identifier. Should the wrong card be presented under a key, the
+ * log of that card will not match and the list is read again.
+ */
+public class InventoryCache {
+	private final ConcurrentMap<String, Inventory> inventories =
+			new ConcurrentHashMap<String, Inventory>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static class Inventory {
+		final DescriptionCache descriptions;
+		final List<CredentialDescription> credentials;
+		final byte[] newest;
+
+		Inventory(DescriptionCache descriptions,
+				List<CredentialDescription> credentials, byte[] newest) {
+			this.descriptions = descriptions;
+			this.credentials = credentials;
+			this.newest = newest;
+		}
+	}
+
+	/**
+	 * Get the credentials on the card, from the cache if the log of the card
+	 * shows that they did not change.
+	 *
+	 * @param card identifies the card, as chosen by the caller
+	 * @param service connection to the card, with the application selected
+	 * @return unmodifiable list of the descriptions of the credentials
+	 * @throws CardServiceException
+	 * @throws InfoException if the description of a credential is unknown
+	 */
+	public List<CredentialDescription> getCredentials(String card, IdemixService service)
+			throws CardServiceException, InfoException {
+		DescriptionCache descriptions = DescriptionCache.getInstance();
+		List<IdemixLogEntry> log = service.getNewestLogEntries();
+		byte[] newest = log.isEmpty() ? null : log.get(0).getBytes();
+
+		Inventory inventory = inventories.get(card);
+		if (inventory != null && inventory.descriptions == descriptions
+				&& isUnchanged(inventory.newest, log)) {
+			hits.incrementAndGet();
+			if (!Arrays.equals(inventory.newest, newest)) {
+				inventories.replace(card, inventory, new Inventory(descriptions,
+						inventory.credentials, newest));
+			}
+			return inventory.credentials;
+		}
+
+		misses.incrementAndGet();
+		Vector<Integer> credentialIDs = service.getCredentials();
+		List<CredentialDescription> credentials =
+				new ArrayList<CredentialDescription>(credentialIDs.size());
+		for (Integer id : credentialIDs) {
+			CredentialDescription cd = descriptions.get(id.shortValue()).getDescription();
+			if (cd == null) {
+				throw new InfoException("Description for credential with ID=" + id + " not found");
+			}
+			credentials.add(cd);
+		}
+
+		credentials = Collections.unmodifiableList(credentials);
+		inventories.put(card, new Inventory(descriptions, credentials, newest));
+		return credentials;
+	}
+
+	/**
+	 * Checks whether the given entry is found in the log, with only
+	 * verifications logged after it.
+	 */
+	private static boolean isUnchanged(byte[] entry, List<IdemixLogEntry> log) {
+		if (entry == null) {
+			return false;
+		}
+
+		for (IdemixLogEntry logged : log) {
+			if (Arrays.equals(entry, logged.getBytes())) {
+				return true;
+			}
+			if (logged.getAction() != IdemixLogEntry.Action.VERIFY) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	public void invalidate(String card) {
+		inventories.remove(card);
+	}
+
+	public void clear() {
+		inventories.clear();
+	}
+
+	/** Returns the number of times the cached credentials were still valid. */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** Returns the number of times the credentials were read from the card. */
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of the nonces used in issuance and verification. Every thread takes
+ * nonces from its own pool, so threads do not contend with each other. When
+ * a pool runs low, it is refilled by a background thread; only when a pool
+ * runs dry is a nonce generated on the calling thread. All nonces come from
+ * {@link SecureRandom} instances seeded by the platform.
+ */
+public class NonceGenerator {
+	public static final int DEFAULT_POOL_SIZE = 64;
+
+	private static final NonceGenerator instance = new NonceGenerator(
+			new IdemixSystemParameters().l_statzk, DEFAULT_POOL_SIZE);
+
+	private final int bits;
+	private final int poolSize;
+	private final int lowWatermark;
+
+	private final Executor refiller;
+	private final SecureRandom refillRandom = new SecureRandom();
+
+	private final ThreadLocal<Pool> pools = new ThreadLocal<Pool>() {
+		@Override
+		protected Pool initialValue() {
+			return new Pool();
+		}
+	};
+
+	private final AtomicLong refills = new AtomicLong();
+	private final AtomicLong pregenerated = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The nonces of a single thread. Only the owning thread takes nonces from
+	 * the pool, only the refill thread adds them.
+	 */
+	private static class Pool {
+		final Queue<BigInteger> nonces = new ConcurrentLinkedQueue<BigInteger>();
+		final AtomicInteger size = new AtomicInteger();
+		final AtomicBoolean refilling = new AtomicBoolean();
+		final SecureRandom random = new SecureRandom();
+	}
+
+	/**
+	 * Creates a generator with its own refill thread.
+	 *
+	 * @param bits		the size of the nonces
+	 * @param poolSize	the number of nonces kept ready for every thread
+	 */
+	public NonceGenerator(int bits, int poolSize) {
+		if (bits <= 0 || poolSize <= 0) {
+			throw new IllegalArgumentException("Invalid nonce or pool size");
+		}
+
+		this.bits = bits;
+		this.poolSize = poolSize;
+		this.lowWatermark = poolSize / 4;
+		this.refiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "nonce-refill");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Returns the generator for nonces of the size of the default system
+	 * parameters.
+	 */
+	public static NonceGenerator getInstance() {
+		return instance;
+	}
+
+	public BigInteger next() {
+		Pool pool = pools.get();
+		BigInteger nonce = pool.nonces.poll();
+		int remaining = nonce == null ? 0 : pool.size.decrementAndGet();
+
+		if (remaining <= lowWatermark && pool.refilling.compareAndSet(false, true)) {
+			refiller.execute(new Refill(pool));
+		}
+
+		if (nonce == null) {
+			misses.incrementAndGet();
+			nonce = new BigInteger(bits, pool.random);
+		}
+		return nonce;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	/** Returns the number of times a pool was refilled. */
+	public long getRefills() {
+		return refills.get();
+	}
+
+	/** Returns the number of nonces generated in the background. */
+	public long getPregenerated() {
+		return pregenerated.get();
+	}
+
+	/**
+	 * Returns the number of nonces generated on the calling thread, because
+	 * its pool was empty.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private class Refill implements Runnable {
+		private final Pool pool;
+
+		Refill(Pool pool) {
+			this.pool = pool;
+		}
+
+		@Override
+		public void run() {
+			int count = 0;
+			try {
+				while (pool.size.get() < poolSize) {
+					pool.nonces.add(new BigInteger(bits, refillRandom));
+					pool.size.incrementAndGet();
+					count++;
+				}
+			} finally {
+				pool.refilling.set(false);
+				refills.incrementAndGet();
+				pregenerated.addAndGet(count);
+			}
+		}
+	}
+}
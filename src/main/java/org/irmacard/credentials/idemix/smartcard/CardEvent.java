@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.IdemixLogEntry;
+
+/**
+ * A change to the persistent state of an {@link IRMACard}.
+ */
+public abstract class CardEvent {
+	public enum Type {
+		CREDENTIAL_CREATED, CREDENTIAL_ISSUED, CREDENTIAL_REMOVED,
+		CREDENTIAL_FLAGS_CHANGED, CREDENTIALS_REPLACED, LOG_APPENDED,
+		PIN_STATE_CHANGED, MASTER_SECRET_INITIALISED
+	};
+
+	private final IRMACard card;
+
+	CardEvent(IRMACard card) {
+		this.card = card;
+	}
+
+	public IRMACard getCard() {
+		return card;
+	}
+
+	public abstract Type getType();
+
+	/**
+	 * Base class of the events concerning a single credential.
+	 */
+	public static abstract class CredentialEvent extends CardEvent {
+		private final short id;
+
+		CredentialEvent(IRMACard card, short id) {
+			super(card);
+			this.id = id;
+		}
+
+		public short getCredentialId() {
+			return id;
+		}
+	}
+
+	/**
+	 * An empty credential was added at the start of an issuance. It stays on
+	 * the card without a signature if the issuance is not completed.
+	 */
+	public static class CredentialCreated extends CredentialEvent {
+		CredentialCreated(IRMACard card, short id) {
+			super(card, id);
+		}
+
+		@Override
+		public Type getType() {
+			return Type.CREDENTIAL_CREATED;
+		}
+	}
+
+	public static class CredentialIssued extends CredentialEvent {
+		CredentialIssued(IRMACard card, short id) {
+			super(card, id);
+		}
+
+		@Override
+		public Type getType() {
+			return Type.CREDENTIAL_ISSUED;
+		}
+	}
+
+	public static class CredentialRemoved extends CredentialEvent {
+		CredentialRemoved(IRMACard card, short id) {
+			super(card, id);
+		}
+
+		@Override
+		public Type getType() {
+			return Type.CREDENTIAL_REMOVED;
+		}
+	}
+
+	public static class CredentialFlagsChanged extends CredentialEvent {
+		CredentialFlagsChanged(IRMACard card, short id) {
+			super(card, id);
+		}
+
+		@Override
+		public Type getType() {
+			return Type.CREDENTIAL_FLAGS_CHANGED;
+		}
+	}
+
+	/**
+	 * All credentials were replaced using {@link IRMACard#setCredentials}.
+	 */
+	public static class CredentialsReplaced extends CardEvent {
+		CredentialsReplaced(IRMACard card) {
+			super(card);
+		}
+
+		@Override
+		public Type getType() {
+			return Type.CREDENTIALS_REPLACED;
+		}
+	}
+
+	public static class LogAppended extends CardEvent {
+		private final byte[] entry;
+
+		LogAppended(IRMACard card, byte[] entry) {
+			super(card);
+			this.entry = entry;
+		}
+
+		public IdemixLogEntry getEntry() {
+			return new IdemixLogEntry(entry.clone());
+		}
+
+		@Override
+		public Type getType() {
+			return Type.LOG_APPENDED;
+		}
+	}
+
+	public static class PinStateChanged extends CardEvent {
+		private final byte pin;
+		private final int triesLeft;
+
+		PinStateChanged(IRMACard card, byte pin, int triesLeft) {
+			super(card);
+			this.pin = pin;
+			this.triesLeft = triesLeft;
+		}
+
+		/**
+		 * Returns which PIN changed, either {@link IdemixSmartcard#P2_PIN_ADMIN}
+		 * or {@link IdemixSmartcard#P2_PIN_ATTRIBUTE}.
+		 */
+		public byte getPin() {
+			return pin;
+		}
+
+		public int getTriesLeft() {
+			return triesLeft;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.PIN_STATE_CHANGED;
+		}
+	}
+
+	public static class MasterSecretInitialised extends CardEvent {
+		MasterSecretInitialised(IRMACard card) {
+			super(card);
+		}
+
+		@Override
+		public Type getType() {
+			return Type.MASTER_SECRET_INITIALISED;
+		}
+	}
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the state of an emulated card as a snapshot plus an append-only
+ * journal of the changes made since that snapshot. Register the journal as a
+ * {@link CardChangedListener} of the {@link SmartCardEmulatorService}: on
+ * every change only the modifications of the card (issued and removed
+ * credentials, log entries, PIN state and the master secret) are appended to
+ * the journal and forced to disk.
+ *
+ * <p>When the journal grows beyond the compaction threshold, a new snapshot
+ * is written in the background. Snapshots are written to a temporary file
+ * that is atomically renamed over the old one, so a crash at any point leaves
+ * either the old or the new snapshot. Every journal record carries a sequence
+ * number, and records already contained in the snapshot are skipped on
+ * replay. A record that was only partially written is detected by its
+ * checksum and discarded.
+ *
+ * <p>The snapshot is stored at the given path (in the format of
+ * {@link IRMACardCodec}, preceded by its sequence number), the journal next
+ * to it with the extension <code>.journal</code>.
+ */
+public class CardJournal implements CardChangedListener, Closeable {
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 256 * 1024;
+
+	static final byte RECORD_CREDENTIAL_ISSUED = 1;
+	static final byte RECORD_CREDENTIAL_REMOVED = 2;
+	static final byte RECORD_LOG_APPENDED = 3;
+	static final byte RECORD_PIN_STATE = 4;
+	static final byte RECORD_MASTER_SECRET_SET = 5;
+
+	private static final byte PIN_CREDENTIAL = 0;
+	private static final byte PIN_CARD = 1;
+
+	// Sequence number, type, payload length and checksum
+	private static final int RECORD_OVERHEAD = 8 + 1 + 4 + 4;
+
+	private static final Logger logger = LoggerFactory.getLogger(CardJournal.class);
+
+	private final Path snapshotPath;
+	private final Path journalPath;
+	private final IRMACard card;
+
+	private FileChannel journal;
+	private long sequence;
+	private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+	private boolean compacting = false;
+	private final ExecutorService compactor;
+
+	// The state of the card as recorded in the journal
+	private CredentialMap credentials;
+	private long logAppends;
+	private byte[] credentialPin;
+	private int credentialPinTries;
+	private byte[] cardPin;
+	private int cardPinTries;
+	private BigInteger masterSecret;
+
+	private CardJournal(Path path, IRMACard card, long sequence) {
+		this.snapshotPath = path;
+		this.journalPath = path.resolveSibling(path.getFileName() + ".journal");
+		this.card = card;
+		this.sequence = sequence;
+		this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "card-journal-compactor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Opens the journal at the given path, restoring the card from the
+	 * snapshot and the journal. If neither exists, a new card is created.
+	 *
+	 * @param path the location of the snapshot
+	 * @return the journal, use {@link #getCard()} to obtain the card
+	 * @throws IOException if the snapshot could not be read
+	 */
+	public static CardJournal open(Path path) throws IOException {
+		IRMACard card;
+		long sequence = 0;
+		if (Files.exists(path)) {
+			byte[] data = Files.readAllBytes(path);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			sequence = in.readLong();
+			card = IRMACardCodec.decode(Arrays.copyOfRange(data, 8, data.length));
+		} else {
+			card = new IRMACard();
+		}
+
+		CardJournal journal = new CardJournal(path, card, sequence);
+		journal.replay();
+		journal.remember();
+		return journal;
+	}
+
+	public IRMACard getCard() {
+		return card;
+	}
+
+	/**
+	 * Sets the size of the journal (in bytes) from which on it is compacted
+	 * into a new snapshot.
+	 */
+	public void setCompactionThreshold(long compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	@Override
+	public void cardChanged(IRMACard card) {
+		try {
+			sync();
+		} catch (IOException e) {
+			logger.error("Could not journal card changes", e);
+		}
+	}
+
+	/**
+	 * Appends the changes made to the card since the previous call to the
+	 * journal and forces them to disk.
+	 */
+	public synchronized void sync() throws IOException {
+		byte[] records;
+		synchronized (card) {
+			records = diff();
+		}
+		append(records);
+
+		if (journal.size() > compactionThreshold && !compacting) {
+			compacting = true;
+			compactor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (IOException e) {
+						logger.error("Could not compact card journal", e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes a new snapshot of the card, and removes the records contained in
+	 * it from the journal.
+	 */
+	public void compact() throws IOException {
+		byte[] state;
+		long snapshotSequence;
+		long snapshotOffset;
+
+		try {
+			// Record outstanding changes, the snapshot must not contain
+			// changes that are journaled after it
+			synchronized (this) {
+				byte[] records;
+				synchronized (card) {
+					records = diff();
+					state = IRMACardCodec.encode(card);
+				}
+				append(records);
+				snapshotSequence = sequence;
+				snapshotOffset = journal.size();
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(state.length + 8);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(snapshotSequence);
+			out.write(state);
+			writeAtomically(snapshotPath, bytes.toByteArray());
+
+			// Keep only the records written after the snapshot was taken
+			synchronized (this) {
+				ByteBuffer tail = ByteBuffer.allocate((int) (journal.size() - snapshotOffset));
+				journal.read(tail, snapshotOffset);
+				writeAtomically(journalPath, tail.array());
+				journal.close();
+				journal = openJournal(tail.capacity());
+			}
+		} finally {
+			synchronized (this) {
+				compacting = false;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		sync();
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Replays the journal on the card, and truncates it after the last
+	 * complete record.
+	 */
+	private void replay() throws IOException {
+		long snapshotSequence = sequence;
+		byte[] data = Files.exists(journalPath) ? Files.readAllBytes(journalPath) : new byte[0];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int valid = 0;
+
+		while (buffer.remaining() >= RECORD_OVERHEAD) {
+			int start = buffer.position();
+			long recordSequence = buffer.getLong();
+			byte type = buffer.get();
+			int length = buffer.getInt();
+			if (length < 0 || length > buffer.remaining() - 4) {
+				break;
+			}
+			buffer.position(buffer.position() + length);
+			CRC32 crc = new CRC32();
+			crc.update(data, start, buffer.position() - start);
+			if ((int) crc.getValue() != buffer.getInt()) {
+				break;
+			}
+
+			if (recordSequence > snapshotSequence) {
+				apply(type, new DataInputStream(new ByteArrayInputStream(
+						data, start + RECORD_OVERHEAD - 4, length)));
+				sequence = recordSequence;
+			}
+			valid = buffer.position();
+		}
+
+		if (valid < data.length) {
+			logger.warn("Discarding {} bytes of incomplete journal records",
+					data.length - valid);
+		}
+		journal = openJournal(valid);
+	}
+
+	private void apply(byte type, DataInputStream in) throws IOException {
+		switch (type) {
+		case RECORD_CREDENTIAL_ISSUED:
+			short id = in.readShort();
+			card.getCredentials().put(id, IRMACardCodec.readCredential(in));
+			break;
+		case RECORD_CREDENTIAL_REMOVED:
+			card.getCredentials().remove(in.readShort());
+			break;
+		case RECORD_LOG_APPENDED:
+			byte[] entry = new byte[IdemixLogEntry.SIZE];
+			in.readFully(entry);
+			card.addLog(entry);
+			break;
+		case RECORD_PIN_STATE:
+			byte pin = in.readByte();
+			if (pin == PIN_CREDENTIAL) {
+				card.credential_pin = IRMACardCodec.readPin(in);
+			} else {
+				card.card_pin = IRMACardCodec.readPin(in);
+			}
+			break;
+		case RECORD_MASTER_SECRET_SET:
+			card.setMasterSecret(IRMACardCodec.readMasterSecret(in));
+			break;
+		default:
+			throw new IOException("Invalid journal record type " + type);
+		}
+	}
+
+	/**
+	 * Remembers the current state of the card as the journaled state.
+	 */
+	private void remember() {
+		credentials = card.getCredentials().copy();
+		logAppends = card.log_appends;
+		credentialPin = card.credential_pin.getCode().clone();
+		credentialPinTries = card.credential_pin.getTriesLeft();
+		cardPin = card.card_pin.getCode().clone();
+		cardPinTries = card.card_pin.getTriesLeft();
+		masterSecret = card.getMasterSecret();
+	}
+
+	/**
+	 * Encodes the changes of the card since the journaled state as records,
+	 * and updates the journaled state. Must be called while holding the lock
+	 * on the card.
+	 */
+	private byte[] diff() throws IOException {
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+
+		// Credentials are replaced rather than modified, so comparing the
+		// (sorted) maps by identity finds all changes
+		CredentialMap current = card.getCredentials();
+		int i = 0, j = 0;
+		while (i < credentials.size() || j < current.size()) {
+			if (j == current.size() || (i < credentials.size()
+					&& credentials.keyAt(i) < current.keyAt(j))) {
+				out.writeShort(credentials.keyAt(i++));
+				record(records, RECORD_CREDENTIAL_REMOVED, payload);
+			} else if (i == credentials.size() || current.keyAt(j) < credentials.keyAt(i)
+					|| current.valueAt(j) != credentials.valueAt(i)) {
+				if (i < credentials.size() && credentials.keyAt(i) == current.keyAt(j)) {
+					i++;
+				}
+				out.writeShort(current.keyAt(j));
+				IRMACardCodec.writeCredential(out, current.valueAt(j++));
+				record(records, RECORD_CREDENTIAL_ISSUED, payload);
+			} else {
+				i++;
+				j++;
+			}
+		}
+
+		// Log entries, oldest first; at most a full log can have changed
+		int appended = (int) Math.min(card.log_appends - logAppends, IRMACard.LOG_ENTRIES);
+		for (int k = appended - 1; k >= 0; k--) {
+			int index = (card.log_head + k) % IRMACard.LOG_ENTRIES;
+			out.write(card.log, index * IdemixLogEntry.SIZE, IdemixLogEntry.SIZE);
+			record(records, RECORD_LOG_APPENDED, payload);
+		}
+
+		if (card.credential_pin.getTriesLeft() != credentialPinTries
+				|| !Arrays.equals(card.credential_pin.getCode(), credentialPin)) {
+			out.writeByte(PIN_CREDENTIAL);
+			IRMACardCodec.writePin(out, card.credential_pin);
+			record(records, RECORD_PIN_STATE, payload);
+		}
+		if (card.card_pin.getTriesLeft() != cardPinTries
+				|| !Arrays.equals(card.card_pin.getCode(), cardPin)) {
+			out.writeByte(PIN_CARD);
+			IRMACardCodec.writePin(out, card.card_pin);
+			record(records, RECORD_PIN_STATE, payload);
+		}
+
+		BigInteger current_secret = card.getMasterSecret();
+		if (current_secret == null ? masterSecret != null : !current_secret.equals(masterSecret)) {
+			IRMACardCodec.writeMasterSecret(out, current_secret);
+			record(records, RECORD_MASTER_SECRET_SET, payload);
+		}
+
+		remember();
+		return records.toByteArray();
+	}
+
+	/**
+	 * Moves the payload into a new record, assigning it the next sequence
+	 * number.
+	 */
+	private void record(ByteArrayOutputStream records, byte type,
+			ByteArrayOutputStream payload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.size() + RECORD_OVERHEAD);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(++sequence);
+		out.writeByte(type);
+		out.writeInt(payload.size());
+		payload.writeTo(out);
+		payload.reset();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		bytes.writeTo(records);
+	}
+
+	private void append(byte[] records) throws IOException {
+		if (records.length == 0) {
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(records);
+		while (buffer.hasRemaining()) {
+			journal.write(buffer);
+		}
+		journal.force(false);
+	}
+
+	private FileChannel openJournal(long length) throws IOException {
+		FileChannel channel = FileChannel.open(journalPath,
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channel.truncate(length);
+		channel.position(length);
+		return channel;
+	}
+
+	private static void writeAtomically(Path path, byte[] data) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import org.irmacard.credentials.idemix.IdemixCredential;
+import org.irmacard.idemix.util.IdemixFlags;
+import org.irmacard.idemix.util.IdemixLogEntry;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streaming type adapters for the persistent state of an {@link IRMACard}.
+ * They produce the same JSON as reflective serialization did, but only
+ * write the persistent fields: session state and listeners are skipped, and
+ * unknown fields are ignored when reading. The log of states written before
+ * it was kept in a buffer, a list of entries, is converted into the buffer.
+ * The {@link IdemixCredential}s
+ * themselves are (de)serialized by the adapter Gson provides for them.
+ */
+public class CardStateTypeAdapterFactory implements TypeAdapterFactory {
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+		Class<? super T> raw = type.getRawType();
+		if (raw == IRMACard.class) {
+			return (TypeAdapter<T>) new CardAdapter(gson.getAdapter(PinCode.class),
+					gson.getAdapter(CredentialMap.class));
+		} else if (raw == PinCode.class) {
+			return (TypeAdapter<T>) new PinCodeAdapter();
+		} else if (raw == CredentialMap.class) {
+			return (TypeAdapter<T>) new CredentialMapAdapter(
+					gson.getAdapter(IRMAIdemixCredential.class));
+		} else if (raw == IRMAIdemixCredential.class) {
+			return (TypeAdapter<T>) new CredentialAdapter(gson.getAdapter(IdemixFlags.class),
+					gson.getAdapter(IdemixCredential.class));
+		} else if (raw == IdemixFlags.class) {
+			return (TypeAdapter<T>) new FlagsAdapter();
+		}
+		return null;
+	}
+
+	private static void writeBytes(JsonWriter out, byte[] bytes) throws IOException {
+		out.beginArray();
+		for (byte b : bytes) {
+			out.value(b);
+		}
+		out.endArray();
+	}
+
+	private static byte[] readBytes(JsonReader in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		int i = 0;
+		in.beginArray();
+		while (in.hasNext()) {
+			int value = in.nextInt();
+			if (i < length) {
+				bytes[i] = (byte) value;
+			}
+			i++;
+		}
+		in.endArray();
+		if (i != length) {
+			throw new IOException("Expected " + length + " bytes, got " + i);
+		}
+		return bytes;
+	}
+
+	private static class CardAdapter extends TypeAdapter<IRMACard> {
+		private final TypeAdapter<PinCode> pinAdapter;
+		private final TypeAdapter<CredentialMap> credentialsAdapter;
+
+		CardAdapter(TypeAdapter<PinCode> pinAdapter, TypeAdapter<CredentialMap> credentialsAdapter) {
+			this.pinAdapter = pinAdapter;
+			this.credentialsAdapter = credentialsAdapter;
+		}
+
+		@Override
+		public void write(JsonWriter out, IRMACard card) throws IOException {
+			if (card == null) {
+				out.nullValue();
+				return;
+			}
+
+			out.beginObject();
+			out.name("credential_pin");
+			pinAdapter.write(out, card.credential_pin);
+			out.name("card_pin");
+			pinAdapter.write(out, card.card_pin);
+			if (card.getMasterSecret() != null) {
+				out.name("master_secret").value(card.getMasterSecret());
+			}
+			out.name("credentials");
+			credentialsAdapter.write(out, card.getCredentials());
+			out.name("log");
+			writeBytes(out, card.log);
+			out.name("log_head").value(card.log_head);
+			out.endObject();
+		}
+
+		@Override
+		public IRMACard read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+
+			// Fields that are absent keep the values of a new card
+			IRMACard card = new IRMACard();
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+				} else if (name.equals("credential_pin")) {
+					card.credential_pin = pinAdapter.read(in);
+				} else if (name.equals("card_pin")) {
+					card.card_pin = pinAdapter.read(in);
+				} else if (name.equals("master_secret")) {
+					card.setMasterSecret(new BigInteger(in.nextString()));
+				} else if (name.equals("credentials")) {
+					card.setCredentials(credentialsAdapter.read(in));
+				} else if (name.equals("log")) {
+					card.log = readBytes(in, card.log.length);
+				} else if (name.equals("logs")) {
+					readLegacyLog(in, card);
+				} else if (name.equals("log_head")) {
+					card.log_head = in.nextInt();
+					if (card.log_head < 0 || card.log_head >= IRMACard.LOG_ENTRIES) {
+						throw new IOException("Invalid log head " + card.log_head);
+					}
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return card;
+		}
+	}
+
+	/**
+	 * Reads the log as it was stored before it was kept in a buffer: a list
+	 * of entries, newest first, that becomes the buffer starting at head 0.
+	 */
+	private static void readLegacyLog(JsonReader in, IRMACard card) throws IOException {
+		byte[] log = new byte[IRMACard.LOG_ENTRIES * IdemixLogEntry.SIZE];
+		int i = 0;
+		in.beginArray();
+		while (in.hasNext()) {
+			IdemixLogEntry entry = readLegacyLogEntry(in);
+			if (entry != null && i < IRMACard.LOG_ENTRIES) {
+				System.arraycopy(entry.getBytes(), 0, log, i * IdemixLogEntry.SIZE,
+						IdemixLogEntry.SIZE);
+			}
+			i++;
+		}
+		in.endArray();
+
+		card.log = log;
+		card.log_head = 0;
+	}
+
+	private static IdemixLogEntry readLegacyLogEntry(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+
+		IdemixLogEntry.Action action = IdemixLogEntry.Action.NONE;
+		int timestamp = 0;
+		short credential = 0;
+		byte[] terminal = new byte[4];
+		short disclose = 0;
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+			} else if (name.equals("action")) {
+				String value = in.nextString();
+				try {
+					action = IdemixLogEntry.Action.valueOf(value);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Unknown log action " + value);
+				}
+			} else if (name.equals("timestamp")) {
+				timestamp = in.nextInt();
+			} else if (name.equals("credential")) {
+				credential = (short) in.nextInt();
+			} else if (name.equals("terminal")) {
+				terminal = readBytes(in, terminal.length);
+			} else if (name.equals("disclose")) {
+				disclose = (short) in.nextInt();
+			} else {
+				// The details of issuance entries were never filled in
+				in.skipValue();
+			}
+		}
+		in.endObject();
+
+		IdemixLogEntry entry = new IdemixLogEntry(action, timestamp, credential, terminal);
+		entry.setDisclose(disclose);
+		return entry;
+	}
+
+	private static class PinCodeAdapter extends TypeAdapter<PinCode> {
+		@Override
+		public void write(JsonWriter out, PinCode pin) throws IOException {
+			if (pin == null) {
+				out.nullValue();
+				return;
+			}
+
+			out.beginObject();
+			out.name("code");
+			writeBytes(out, pin.getCode());
+			out.name("verified").value(pin.verified());
+			out.name("tries_left").value(pin.getTriesLeft());
+			out.endObject();
+		}
+
+		@Override
+		public PinCode read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+
+			byte[] code = null;
+			boolean verified = false;
+			int tries_left = 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("code")) {
+					code = readBytes(in, PinCode.PIN_SIZE_INTERNAL);
+				} else if (name.equals("verified")) {
+					verified = in.nextBoolean();
+				} else if (name.equals("tries_left")) {
+					tries_left = in.nextInt();
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+
+			if (code == null) {
+				throw new IOException("PIN code without code");
+			}
+			PinCode pin = new PinCode(code, tries_left);
+			pin.setVerified(verified);
+			return pin;
+		}
+	}
+
+	/**
+	 * The credentials are stored as a JSON object keyed by the credential
+	 * identifiers, which is how earlier versions stored them.
+	 */
+	private static class CredentialMapAdapter extends TypeAdapter<CredentialMap> {
+		private final TypeAdapter<IRMAIdemixCredential> credentialAdapter;
+
+		CredentialMapAdapter(TypeAdapter<IRMAIdemixCredential> credentialAdapter) {
+			this.credentialAdapter = credentialAdapter;
+		}
+
+		@Override
+		public void write(JsonWriter out, CredentialMap credentials) throws IOException {
+			if (credentials == null) {
+				out.nullValue();
+				return;
+			}
+
+			out.beginObject();
+			for (int i = 0; i < credentials.size(); i++) {
+				out.name(Short.toString(credentials.keyAt(i)));
+				credentialAdapter.write(out, credentials.valueAt(i));
+			}
+			out.endObject();
+		}
+
+		@Override
+		public CredentialMap read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+
+			CredentialMap credentials = new CredentialMap();
+			in.beginObject();
+			while (in.hasNext()) {
+				short id = Short.parseShort(in.nextName());
+				credentials.put(id, credentialAdapter.read(in));
+			}
+			in.endObject();
+			return credentials;
+		}
+	}
+
+	private static class CredentialAdapter extends TypeAdapter<IRMAIdemixCredential> {
+		private final TypeAdapter<IdemixFlags> flagsAdapter;
+		private final TypeAdapter<IdemixCredential> credAdapter;
+
+		CredentialAdapter(TypeAdapter<IdemixFlags> flagsAdapter,
+				TypeAdapter<IdemixCredential> credAdapter) {
+			this.flagsAdapter = flagsAdapter;
+			this.credAdapter = credAdapter;
+		}
+
+		@Override
+		public void write(JsonWriter out, IRMAIdemixCredential cred) throws IOException {
+			if (cred == null) {
+				out.nullValue();
+				return;
+			}
+
+			out.beginObject();
+			out.name("userFlags");
+			flagsAdapter.write(out, cred.getUserFlags());
+			out.name("issuerFlags");
+			flagsAdapter.write(out, cred.getIssuerFlags());
+			if (cred.getCredential() != null) {
+				out.name("cred");
+				credAdapter.write(out, cred.getCredential());
+			}
+			out.endObject();
+		}
+
+		@Override
+		public IRMAIdemixCredential read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+
+			IdemixFlags userFlags = null;
+			IdemixFlags issuerFlags = null;
+			IdemixCredential idemixCred = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("userFlags")) {
+					userFlags = flagsAdapter.read(in);
+				} else if (name.equals("issuerFlags")) {
+					issuerFlags = flagsAdapter.read(in);
+				} else if (name.equals("cred")) {
+					idemixCred = credAdapter.read(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+
+			IRMAIdemixCredential cred = new IRMAIdemixCredential(issuerFlags);
+			cred.setUserFlags(userFlags);
+			cred.setCredential(idemixCred);
+			return cred;
+		}
+	}
+
+	private static class FlagsAdapter extends TypeAdapter<IdemixFlags> {
+		@Override
+		public void write(JsonWriter out, IdemixFlags flags) throws IOException {
+			if (flags == null) {
+				out.nullValue();
+				return;
+			}
+
+			out.beginObject();
+			out.name("pinProtectionMask").value(flags.getPinProtectionMask());
+			out.name("RFU").value(flags.getRFU());
+			out.endObject();
+		}
+
+		@Override
+		public IdemixFlags read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+
+			short pinProtectionMask = 0;
+			byte RFU = 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("pinProtectionMask")) {
+					pinProtectionMask = (short) in.nextInt();
+				} else if (name.equals("RFU")) {
+					RFU = (byte) in.nextInt();
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return new IdemixFlags(pinProtectionMask, RFU);
+		}
+	}
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the state of many emulated cards in a single memory-mapped file.
+ * The file consists of a header, an index of a fixed number of slots and
+ * the data of every slot, each of a fixed size. The index is an open
+ * addressing hash table keyed by card id, so looking up a card only touches
+ * the index entries along its probe sequence: opening a store takes the same
+ * time regardless of the number of cards in it.
+ *
+ * <p>Cards are decoded (from the format of {@link IRMACardCodec}) on first
+ * access, and written back in place using {@link #store(IRMACard)}, or by
+ * registering the store as a {@link CardChangedListener}. A decoded card is
+ * kept only for as long as it is referenced outside the store, so that
+ * accessing many cards does not keep all of them in memory. In-place writes
+ * are not atomic; use a {@link CardJournal} for cards whose state must
+ * survive a crash in the middle of a write.
+ */
+public class CardStore implements CardChangedListener, Closeable {
+	public static final int DEFAULT_SLOT_SIZE = 16 * 1024;
+
+	private static final int MAGIC = 0x49524D53; // "IRMS"
+	private static final int VERSION = 1;
+
+	// Magic, version, slot count, slot size and number of cards
+	private static final int HEADER_SIZE = 32;
+	private static final int OFFSET_COUNT = 16;
+
+	// Card id, length of the encoded card and state of the slot
+	private static final int INDEX_ENTRY_SIZE = 16;
+	private static final int STATE_FREE = 0;
+	private static final int STATE_USED = 1;
+	private static final int STATE_REMOVED = 2;
+
+	private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+	private static final Logger logger = LoggerFactory.getLogger(CardStore.class);
+
+	private final FileChannel channel;
+	private final int slots;
+	private final int slotSize;
+	private final int slotsPerSegment;
+	private final long dataOffset;
+
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer index;
+	private final MappedByteBuffer[] segments;
+
+	// The decoded cards that are still in use, cards do not override equals
+	private final Map<Long, CardReference> cards = new HashMap<>();
+	private final Map<IRMACard, Long> ids = new WeakHashMap<>();
+	private final ReferenceQueue<IRMACard> collected = new ReferenceQueue<>();
+
+	private static class CardReference extends WeakReference<IRMACard> {
+		private final long id;
+
+		CardReference(long id, IRMACard card, ReferenceQueue<IRMACard> queue) {
+			super(card, queue);
+			this.id = id;
+		}
+	}
+
+	private CardStore(FileChannel channel, int slots, int slotSize) throws IOException {
+		this.channel = channel;
+		this.slots = slots;
+		this.slotSize = slotSize;
+		this.slotsPerSegment = Math.max(1, MAX_SEGMENT_SIZE / slotSize);
+		this.dataOffset = HEADER_SIZE + (long) slots * INDEX_ENTRY_SIZE;
+
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		index = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE,
+				(long) slots * INDEX_ENTRY_SIZE);
+		segments = new MappedByteBuffer[(slots + slotsPerSegment - 1) / slotsPerSegment];
+	}
+
+	/**
+	 * Creates a new, empty store.
+	 *
+	 * @param path the location of the store, overwritten if it exists
+	 * @param slots the maximum number of cards in the store
+	 * @param slotSize the maximum size of an encoded card
+	 * @return the store
+	 * @throws IOException if the store could not be created
+	 */
+	public static CardStore create(Path path, int slots, int slotSize) throws IOException {
+		if (slots <= 0 || slotSize <= 0 || (long) slots * INDEX_ENTRY_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid store dimensions");
+		}
+
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(slotSize).putInt(0);
+		header.rewind();
+		channel.write(header, 0);
+
+		// Extend the file, the index and the slots are zero (free) initially
+		long size = HEADER_SIZE + (long) slots * (INDEX_ENTRY_SIZE + slotSize);
+		channel.write(ByteBuffer.allocate(1), size - 1);
+
+		return new CardStore(channel, slots, slotSize);
+	}
+
+	/**
+	 * Opens an existing store. Only the header is read, the cards are loaded
+	 * when they are first accessed.
+	 *
+	 * @param path the location of the store
+	 * @return the store
+	 * @throws IOException if the store could not be opened
+	 */
+	public static CardStore open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+			channel.close();
+			throw new IOException("Not a card store");
+		}
+		int version = header.getInt();
+		if (version != VERSION) {
+			channel.close();
+			throw new IOException("Unsupported card store version " + version);
+		}
+
+		return new CardStore(channel, header.getInt(), header.getInt());
+	}
+
+	/**
+	 * Returns the number of cards in the store.
+	 */
+	public synchronized int size() {
+		return header.getInt(OFFSET_COUNT);
+	}
+
+	public int getCapacity() {
+		return slots;
+	}
+
+	public synchronized boolean contains(long id) {
+		return cached(id) != null || find(id) >= 0;
+	}
+
+	/**
+	 * Returns the card with the given id, decoding it if this is the first
+	 * time it is accessed.
+	 *
+	 * @param id the id of the card
+	 * @return the card, or null if the store does not contain it
+	 * @throws IOException if the stored card could not be decoded
+	 */
+	public synchronized IRMACard getCard(long id) throws IOException {
+		IRMACard card = cached(id);
+		if (card != null) {
+			return card;
+		}
+
+		int slot = find(id);
+		if (slot < 0) {
+			return null;
+		}
+
+		byte[] data = new byte[index.getInt(slot * INDEX_ENTRY_SIZE + 8)];
+		ByteBuffer buffer = slotBuffer(slot);
+		buffer.get(data);
+
+		card = IRMACardCodec.decode(data);
+		cache(id, card);
+		return card;
+	}
+
+	/**
+	 * Adds a card to the store, replacing the card with the same id if there
+	 * is one.
+	 *
+	 * @param id the id of the card
+	 * @param card the card
+	 * @throws IOException if the store is full or the card does not fit in a
+	 *         slot
+	 */
+	public synchronized void putCard(long id, IRMACard card) throws IOException {
+		uncache(id);
+		write(id, encode(card));
+		cache(id, card);
+	}
+
+	/**
+	 * Removes a card from the store.
+	 *
+	 * @param id the id of the card
+	 * @return whether the store contained the card
+	 */
+	public synchronized boolean removeCard(long id) {
+		uncache(id);
+
+		int slot = find(id);
+		if (slot < 0) {
+			return false;
+		}
+		index.putInt(slot * INDEX_ENTRY_SIZE + 12, STATE_REMOVED);
+		header.putInt(OFFSET_COUNT, size() - 1);
+		return true;
+	}
+
+	/**
+	 * Writes the state of a card obtained from this store back to its slot.
+	 *
+	 * @param card the card
+	 * @throws IOException if the card does not fit in a slot
+	 */
+	public synchronized void store(IRMACard card) throws IOException {
+		Long id = ids.get(card);
+		if (id == null) {
+			throw new IllegalArgumentException("Card does not belong to this store");
+		}
+		write(id, encode(card));
+	}
+
+	@Override
+	public void cardChanged(IRMACard card) {
+		try {
+			store(card);
+		} catch (IOException e) {
+			logger.error("Could not store card", e);
+		}
+	}
+
+	/**
+	 * Forces all changes to the store to disk.
+	 */
+	public synchronized void flush() {
+		header.force();
+		index.force();
+		for (MappedByteBuffer segment : segments) {
+			if (segment != null) {
+				segment.force();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+	/**
+	 * Returns the number of decoded cards that are still kept.
+	 */
+	synchronized int cached() {
+		expunge();
+		return cards.size();
+	}
+
+	private IRMACard cached(long id) {
+		expunge();
+		CardReference reference = cards.get(id);
+		return reference == null ? null : reference.get();
+	}
+
+	private void cache(long id, IRMACard card) {
+		cards.put(id, new CardReference(id, card, collected));
+		ids.put(card, id);
+	}
+
+	private void uncache(long id) {
+		CardReference reference = cards.remove(id);
+		IRMACard card = reference == null ? null : reference.get();
+		if (card != null) {
+			ids.remove(card);
+		}
+	}
+
+	/**
+	 * Drops the entries of the cards that are no longer in use.
+	 */
+	private void expunge() {
+		CardReference reference;
+		while ((reference = (CardReference) collected.poll()) != null) {
+			if (cards.get(reference.id) == reference) {
+				cards.remove(reference.id);
+			}
+		}
+	}
+
+	private static byte[] encode(IRMACard card) throws IOException {
+		synchronized (card) {
+			return IRMACardCodec.encode(card);
+		}
+	}
+
+	private void write(long id, byte[] data) throws IOException {
+		if (data.length > slotSize) {
+			throw new IOException("Card " + id + " needs " + data.length
+					+ " bytes, the slots of this store hold " + slotSize);
+		}
+
+		int slot = find(id);
+		if (slot < 0) {
+			slot = allocate(id);
+		}
+
+		slotBuffer(slot).put(data);
+		index.putInt(slot * INDEX_ENTRY_SIZE + 8, data.length);
+	}
+
+	private int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) ((h ^ (h >>> 32)) & Integer.MAX_VALUE) % slots;
+	}
+
+	/**
+	 * Returns the slot holding the card with the given id, or -1.
+	 */
+	private int find(long id) {
+		int slot = hash(id);
+		for (int i = 0; i < slots; i++) {
+			int offset = slot * INDEX_ENTRY_SIZE;
+			int state = index.getInt(offset + 12);
+			if (state == STATE_FREE) {
+				return -1;
+			}
+			if (state == STATE_USED && index.getLong(offset) == id) {
+				return slot;
+			}
+			slot = (slot + 1) % slots;
+		}
+		return -1;
+	}
+
+	private int allocate(long id) throws IOException {
+		int slot = hash(id);
+		for (int i = 0; i < slots; i++) {
+			int offset = slot * INDEX_ENTRY_SIZE;
+			if (index.getInt(offset + 12) != STATE_USED) {
+				index.putLong(offset, id);
+				index.putInt(offset + 8, 0);
+				index.putInt(offset + 12, STATE_USED);
+				header.putInt(OFFSET_COUNT, size() + 1);
+				return slot;
+			}
+			slot = (slot + 1) % slots;
+		}
+		throw new IOException("Card store is full");
+	}
+
+	/**
+	 * Returns a buffer positioned at the start of the data of a slot,
+	 * mapping the segment containing it if needed.
+	 */
+	private ByteBuffer slotBuffer(int slot) throws IOException {
+		int segment = slot / slotsPerSegment;
+		int first = segment * slotsPerSegment;
+		if (segments[segment] == null) {
+			int count = Math.min(slotsPerSegment, slots - first);
+			segments[segment] = channel.map(FileChannel.MapMode.READ_WRITE,
+					dataOffset + (long) first * slotSize, (long) count * slotSize);
+		}
+
+		ByteBuffer buffer = segments[segment].duplicate();
+		buffer.position((slot - first) * slotSize);
+		return buffer;
+	}
+}
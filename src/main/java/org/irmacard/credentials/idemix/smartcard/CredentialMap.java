@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import java.util.Arrays;
+
+/**
+ * Map from credential identifiers to the credentials stored on the emulated
+ * card. The identifiers are kept as a sorted array of primitive shorts, so
+ * lookups are a binary search and iterating over the map (using
+ * {@link #keyAt(int)} and {@link #valueAt(int)}) does not allocate.
+ *
+ * <p>A map can be copied cheaply using {@link #copy()}: the copy shares the
+ * underlying arrays with the original until either of them is modified.
+ */
+public class CredentialMap {
+	private static final int INITIAL_CAPACITY = 4;
+
+	private short[] keys;
+	private IRMAIdemixCredential[] values;
+	private int size;
+
+	// Whether the arrays may be shared with another map
+	private transient boolean shared;
+
+	// Number of modifications made to this map
+	private transient long modifications;
+
+	public CredentialMap() {
+		keys = new short[INITIAL_CAPACITY];
+		values = new IRMAIdemixCredential[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * Returns a copy of this map. The copy shares its storage with this map,
+	 * the storage is only duplicated when one of them is modified. Note that
+	 * the credentials themselves are shared as well, so these should be
+	 * replaced rather than modified.
+	 *
+	 * @return a copy of this map
+	 */
+	public CredentialMap copy() {
+		CredentialMap copy = new CredentialMap();
+		copy.keys = keys;
+		copy.values = values;
+		copy.size = size;
+		copy.shared = true;
+		shared = true;
+		return copy;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of modifications made to this map since it was
+	 * created.
+	 */
+	public long getModificationCount() {
+		return modifications;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(short id) {
+		return indexOf(id) >= 0;
+	}
+
+	/**
+	 * Returns the credential with the given identifier.
+	 *
+	 * @param id	the credential identifier
+	 * @return the credential, or null if there is no such credential
+	 */
+	public IRMAIdemixCredential get(short id) {
+		int idx = indexOf(id);
+		return idx >= 0 ? values[idx] : null;
+	}
+
+	/**
+	 * Stores the credential under the given identifier, replacing any
+	 * credential previously stored under this identifier.
+	 *
+	 * @param id	the credential identifier
+	 * @param cred	the credential
+	 * @return the previously stored credential, or null if there was none
+	 */
+	public IRMAIdemixCredential put(short id, IRMAIdemixCredential cred) {
+		int idx = indexOf(id);
+		modifications++;
+		if (idx >= 0) {
+			unshare();
+			IRMAIdemixCredential old = values[idx];
+			values[idx] = cred;
+			return old;
+		}
+
+		idx = -(idx + 1);
+		unshare();
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		System.arraycopy(keys, idx, keys, idx + 1, size - idx);
+		System.arraycopy(values, idx, values, idx + 1, size - idx);
+		keys[idx] = id;
+		values[idx] = cred;
+		size++;
+		return null;
+	}
+
+	/**
+	 * Removes the credential with the given identifier.
+	 *
+	 * @param id	the credential identifier
+	 * @return the removed credential, or null if there was none
+	 */
+	public IRMAIdemixCredential remove(short id) {
+		int idx = indexOf(id);
+		if (idx < 0) {
+			return null;
+		}
+
+		modifications++;
+		unshare();
+		IRMAIdemixCredential old = values[idx];
+		System.arraycopy(keys, idx + 1, keys, idx, size - idx - 1);
+		System.arraycopy(values, idx + 1, values, idx, size - idx - 1);
+		size--;
+		values[size] = null;
+		return old;
+	}
+
+	/**
+	 * Returns the identifier at the given position, identifiers are sorted in
+	 * ascending order.
+	 *
+	 * @param idx	position, between 0 and size() - 1
+	 * @return the credential identifier
+	 */
+	public short keyAt(int idx) {
+		if (idx >= size) {
+			throw new IndexOutOfBoundsException("Index: " + idx + ", size: " + size);
+		}
+		return keys[idx];
+	}
+
+	/**
+	 * Returns the credential at the given position.
+	 *
+	 * @param idx	position, between 0 and size() - 1
+	 * @return the credential
+	 */
+	public IRMAIdemixCredential valueAt(int idx) {
+		if (idx >= size) {
+			throw new IndexOutOfBoundsException("Index: " + idx + ", size: " + size);
+		}
+		return values[idx];
+	}
+
+	private void unshare() {
+		if (shared) {
+			keys = keys.clone();
+			values = values.clone();
+			shared = false;
+		}
+	}
+
+	private int indexOf(short id) {
+		return Arrays.binarySearch(keys, 0, size, id);
+	}
+}
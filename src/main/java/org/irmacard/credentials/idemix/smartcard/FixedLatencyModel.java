@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import java.util.Arrays;
+
+import net.sf.scuba.smartcards.CommandAPDU;
+
+/**
+ * Latency model that assigns a fixed latency to every instruction.
+ */
+public class FixedLatencyModel implements LatencyModel {
+	private long[] latencies = new long[256];
+
+	/**
+	 * Construct a latency model that uses the given latency for every
+	 * instruction, until it is overridden using {@link #setLatency(byte, long)}.
+	 *
+	 * @param latency	the default latency in nanoseconds
+	 */
+	public FixedLatencyModel(long latency) {
+		Arrays.fill(latencies, latency);
+	}
+
+	/**
+	 * Set the latency of a single instruction.
+	 *
+	 * @param ins		the instruction byte
+	 * @param latency	the latency in nanoseconds
+	 * @return this model, for chaining
+	 */
+	public FixedLatencyModel setLatency(byte ins, long latency) {
+		latencies[ins & 0xff] = latency;
+		return this;
+	}
+
+	@Override
+	public long getLatency(CommandAPDU command) {
+		return latencies[command.getINS() & 0xff];
+	}
+}
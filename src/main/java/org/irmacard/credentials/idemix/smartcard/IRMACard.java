@@ -34,7 +34,6 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
@@ -69,9 +68,15 @@ public class IRMACard {
 	protected final static byte CLA_SECURE_MESSAGING = (byte) 0x0C;
 	protected final static byte CLA_COMMAND_CHAINING = (byte) 0x10;
 
-	protected final static int LOG_ENTRIES = 30;
+	protected final static byte CLA_LOGICAL_CHANNEL = (byte) 0x03;
+
+	public final static int LOG_ENTRIES = 30;
+	protected final static int LOGICAL_CHANNELS = 4;
+
+	protected final static short SW_LOGICAL_CHANNEL_NOT_SUPPORTED = 0x6881;
 
 	List<VerificationStartListener> verificationListeners = new LinkedList<>();
+	private transient List<CardEventListener> eventListeners = new LinkedList<>();
 
 	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(IRMACard.class);
 
@@ -97,47 +102,104 @@ public class IRMACard {
 	private final static IdemixSystemParameters params = new IdemixSystemParameters();
 
 	// Persistent state
-	private PinCode credential_pin;
-	private PinCode card_pin;
+	PinCode credential_pin;
+	PinCode card_pin;
 	private BigInteger master_secret;
 
-	HashMap<Short, IRMAIdemixCredential> credentials;
-	List<IdemixLogEntry> logs;
-
-	// Ephemeral state
-	private State state;
-
-	// Issuance state
-	private IssueState issue_state;
-	private IssuanceSetupData issuanceSetup;
-	private CredentialBuilder cred_builder;
-	private IdemixPublicKey issuer_pk;
-	private List<BigInteger> attributes;
-	private IssueCommitmentMessage commitment_message;
-	private IssueSignatureMessage signature_message;
-
-	// Verification state
-	private VerificationState verification_state;
-	private VerificationSetupData verificationSetup;
-	private IRMAIdemixCredential credential;
-	private ProofD proof;
+	CredentialMap credentials;
+
+	// Log entries are stored in their encoded form in a circular buffer, the
+	// most recent entry lives at index log_head.
+	byte[] log;
+	int log_head;
+	private transient boolean log_shared;
+
+	// Number of entries added to the log since this object was created
+	transient long log_appends;
+
+	// Number of modifications of the persistent state, not counting those
+	// of the credential map (which keeps its own count)
+	private transient long modifications;
+
+	/**
+	 * Ephemeral state, kept separately for every logical channel.
+	 */
+	private static class Session {
+		private State state = State.IDLE;
+
+		// Issuance state
+		private IssueState issue_state;
+		private IssuanceSetupData issuanceSetup;
+		private CredentialBuilder cred_builder;
+		private IdemixPublicKey issuer_pk;
+		private List<BigInteger> attributes;
+		private IssueCommitmentMessage commitment_message;
+		private IssueSignatureMessage signature_message;
+
+		// Verification state
+		private VerificationState verification_state;
+		private VerificationSetupData verificationSetup;
+		private IRMAIdemixCredential credential;
+		private ProofD proof;
+
+		// Administration state
+		private AdminSelect adminSelect;
+	}
 
-	// Administration state
-	private AdminSelect adminSelect;
+	// Ephemeral state, indexed by logical channel (null if not open), and the
+	// session of the channel on which the current command arrived
+	private transient Session[] sessions;
+	private transient Session session;
 
 	public IRMACard() {
 		credential_pin = new PinCode(PinCode.DEFAULT_CRED_PIN);
 		card_pin = new PinCode(PinCode.DEFAULT_CARD_PIN);
 		master_secret = null;
-		credentials = new HashMap<Short, IRMAIdemixCredential>();
+		credentials = new CredentialMap();
 
-		// Setup logs
-		logs = new LinkedList<IdemixLogEntry>();
-		for(int i = 0; i < LOG_ENTRIES; i++) {
-			logs.add(new IdemixLogEntry());
-		}
+		// Setup logs, an all-zero entry encodes an empty (NONE) log entry
+		log = new byte[LOG_ENTRIES * IdemixLogEntry.SIZE];
+		log_head = 0;
+
+		initializeSessions();
+	}
+
+	private IRMACard(IRMACard template) {
+		credential_pin = new PinCode(template.credential_pin);
+		card_pin = new PinCode(template.card_pin);
+		master_secret = template.master_secret;
+		credentials = template.credentials.copy();
+
+		log = template.log;
+		log_head = template.log_head;
+		log_shared = true;
+		template.log_shared = true;
+
+		initializeSessions();
+	}
+
+	private void initializeSessions() {
+		sessions = new Session[LOGICAL_CHANNELS];
+		sessions[0] = new Session();
+		session = sessions[0];
+	}
 
-		state = State.IDLE;
+	/**
+	 * Creates a new card with the same persistent state as this card, without
+	 * going through the issuance protocol again. The issued credentials and
+	 * the log are shared with this card until either card modifies them, the
+	 * PIN codes are copied. Ephemeral (session) state and listeners are not
+	 * carried over.
+	 *
+	 * <p>The master secret is shared as well, as the credentials are bound to
+	 * it. To give every card its own master secret, fork a template that has
+	 * not been initialized yet: each fork then generates a fresh one when it
+	 * first needs it.
+	 *
+	 * @return the new card
+	 */
+	public IRMACard fork() {
+		return new IRMACard(this);
 	}
 
 	public BigInteger getMasterSecret() {
@@ -146,29 +208,65 @@ public class IRMACard {
 
 	public void setMasterSecret(BigInteger master_secret) {
 		this.master_secret = master_secret;
+		changed(new CardEvent.MasterSecretInitialised(this));
 	}
 
-	public HashMap<Short, IRMAIdemixCredential> getCredentials() {
+	public CredentialMap getCredentials() {
 		return credentials;
 	}
 
-	public void setCredentials(HashMap<Short, IRMAIdemixCredential> credentials) {
+	public void setCredentials(CredentialMap credentials) {
+		// Keep the modification count increasing, regardless of the count
+		// of the new map
+		modifications += this.credentials.getModificationCount();
 		this.credentials = credentials;
+		changed(new CardEvent.CredentialsReplaced(this));
 	}
 
 	public void addVerificationListener(VerificationStartListener listener) {
 		verificationListeners.add(listener);
 	}
 
-	protected ResponseAPDU processAPDU(CommandAPDU apdu) {
+	public void addCardEventListener(CardEventListener listener) {
+		eventListeners.add(listener);
+	}
+
+	public void removeCardEventListener(CardEventListener listener) {
+		eventListeners.remove(listener);
+	}
+
+	/**
+	 * Returns a counter that increases whenever the persistent state of this
+	 * card (credentials, log, PIN codes or master secret) changes, so that
+	 * a change can be detected by comparing it with an earlier value.
+	 *
+	 * @return the modification count
+	 */
+	public synchronized long getModificationCount() {
+		return modifications + credentials.getModificationCount();
+	}
+
+	/**
+	 * Process a single command. Commands are processed one at a time, as on
+	 * a real card, even when they arrive on different logical channels.
+	 */
+	protected synchronized ResponseAPDU processAPDU(CommandAPDU apdu) {
 		// FIXME ignoring secure channel for now
 
-		switch ((byte) (apdu.getCLA()
-				& (0xff ^ (CLA_COMMAND_CHAINING | CLA_SECURE_MESSAGING)))) {
+		session = sessions[apdu.getCLA() & CLA_LOGICAL_CHANNEL];
+		if (session == null) {
+			Log.warning("Logical channel not open");
+			return sw(SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+		}
+
+		switch ((byte) (apdu.getCLA() & (0xff ^ (CLA_COMMAND_CHAINING
+				| CLA_SECURE_MESSAGING | CLA_LOGICAL_CHANNEL)))) {
 		case ISO7816.CLA_ISO7816:
 			switch ((byte) apdu.getINS()) {
 			case ISO7816.INS_SELECT:
 				return processSelectApplet(apdu);
+			case IdemixSmartcard.INS_MANAGE_CHANNEL:
+				return processManageChannel(apdu);
 			// Not yet implemented:
 			//  * INS_PERFORM_SECURITY_OPERATION
 			//  * INS_GET_CHALLENGE
@@ -214,7 +312,7 @@ public class IRMACard {
 			    ((byte) apdu.getP2()) == 0x0) {
 			if (Arrays.equals(apdu.getData(), IdemixSmartcard.AID)) {
 				Log.info("IRMA applet selected");
-				state = State.APPLET_SELECTED;
+				session.state = State.APPLET_SELECTED;
 				return data_sw(fci, ISO7816.SW_NO_ERROR);
 			}
 		}
@@ -225,6 +323,48 @@ public class IRMACard {
 		return sw(ISO7816.SW_APPLET_SELECT_FAILED);
 	}
 
+	protected ResponseAPDU processManageChannel(CommandAPDU apdu) {
+		Log.info("Handling manageChannel");
+
+		switch ((byte) apdu.getP1()) {
+		case IdemixSmartcard.P1_MANAGE_CHANNEL_OPEN:
+			int channel = apdu.getP2();
+			if (channel == 0) {
+				// Let the card assign the first free channel
+				channel = 1;
+				while (channel < LOGICAL_CHANNELS && sessions[channel] != null) {
+					channel++;
+				}
+				if (channel == LOGICAL_CHANNELS) {
+					return sw(SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+				}
+				sessions[channel] = new Session();
+				return data(new byte[] { (byte) channel });
+			}
+
+			if (channel >= LOGICAL_CHANNELS || sessions[channel] != null) {
+				return sw(ISO7816.SW_INCORRECT_P1P2);
+			}
+			sessions[channel] = new Session();
+			return sw(ISO7816.SW_NO_ERROR);
+		case IdemixSmartcard.P1_MANAGE_CHANNEL_CLOSE:
+			// P2 = 0 closes the channel on which the command was sent
+			int target = apdu.getP2();
+			if (target == 0) {
+				target = apdu.getCLA() & CLA_LOGICAL_CHANNEL;
+			}
+
+			// The basic channel cannot be closed
+			if (target == 0 || target >= LOGICAL_CHANNELS || sessions[target] == null) {
+				return sw(ISO7816.SW_INCORRECT_P1P2);
+			}
+			sessions[target] = null;
+			return sw(ISO7816.SW_NO_ERROR);
+		default:
+			return sw(ISO7816.SW_INCORRECT_P1P2);
+		}
+	}
+
 	protected ResponseAPDU processPINVerify(CommandAPDU apdu) {
 		Log.info("Handling processPinVerify");
 
@@ -232,26 +372,28 @@ public class IRMACard {
 			return sw(ISO7816.SW_INCORRECT_P1P2);
 		}
 
-		PinCodeStatus result;
-		int tries_left = 0;
-		byte[] attempt = apdu.getData();
-
+		PinCode pin;
 		switch (apdu.getP2()) {
 		case(IdemixSmartcard.P2_PIN_ADMIN):
 			Log.info("Verifying card administration PIN...");
-			result = card_pin.verify(attempt);
-			tries_left = card_pin.getTriesLeft();
+			pin = card_pin;
 			break;
 		case(IdemixSmartcard.P2_PIN_ATTRIBUTE):
 			Log.info("Verifying credential protection PIN...");
-			result = credential_pin.verify(attempt);
-			tries_left = credential_pin.getTriesLeft();
+			pin = credential_pin;
 			break;
 		default:
 			Log.info("Unknown parameter for pin change...");
 			return sw(ISO7816.SW_INCORRECT_P1P2);
 		}
 
+		int tries_before = pin.getTriesLeft();
+		PinCodeStatus result = pin.verify(apdu.getData());
+		int tries_left = pin.getTriesLeft();
+		if (tries_left != tries_before) {
+			changed(new CardEvent.PinStateChanged(this, (byte) apdu.getP2(), tries_left));
+		}
+
 		switch (result) {
 		case CORRECT:
 			return sw(ISO7816.SW_NO_ERROR);
@@ -292,6 +434,7 @@ public class IRMACard {
 	private void initializeMasterSecret() {
 		Random rnd = new Random();
 		master_secret = new BigInteger(new IdemixSystemParameters().l_m, rnd);
+		changed(new CardEvent.MasterSecretInitialised(this));
 	}
 
 	protected ResponseAPDU processIssuanceCommand(CommandAPDU apdu) {
@@ -311,7 +454,7 @@ public class IRMACard {
 		}
 
 		// All other issuance cases
-		if(state != State.ISSUE) {
+		if(session.state != State.ISSUE) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -340,53 +483,54 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_P1P2);
 		}
 
-		if(apdu.getData().length != IssuanceSetupData.SIZE) {
+		if(apdu.getNc() != IssuanceSetupData.SIZE) {
 			return sw(ISO7816.SW_WRONG_LENGTH);
 		}
-		issuanceSetup = new IssuanceSetupData(apdu.getData());
+		session.issuanceSetup = new IssuanceSetupData(apdu.getData(), 0);
 
 		// TODO: check policy
 
-		if(credentials.containsKey(issuanceSetup.getID())) {
+		if(credentials.containsKey(session.issuanceSetup.getID())) {
 			Log.info("Credential already exists, overwriting");
 			// TODO check if overwrite is allowed.
 		} else {
 			// Create new credential holder
-			credentials.put(issuanceSetup.getID(),
-					new IRMAIdemixCredential(issuanceSetup.getFlags()));
+			credentials.put(session.issuanceSetup.getID(),
+					new IRMAIdemixCredential(session.issuanceSetup.getFlags()));
+			changed(new CardEvent.CredentialCreated(this, session.issuanceSetup.getID()));
 		}
 
 
 		// Prepare temporary storage of credential
-		issuer_pk = new IdemixPublicKey(issuanceSetup.getSize() + 2);
+		session.issuer_pk = new IdemixPublicKey(session.issuanceSetup.getSize() + 2);
 
-		attributes = new Vector<BigInteger>(issuanceSetup.getSize());
-		for(int i = 0; i < issuanceSetup.getSize(); i++) {
-			attributes.add(null);
+		session.attributes = new Vector<BigInteger>(session.issuanceSetup.getSize());
+		for(int i = 0; i < session.issuanceSetup.getSize(); i++) {
+			session.attributes.add(null);
 		}
 
-		signature_message = new IssueSignatureMessage();
+		session.signature_message = new IssueSignatureMessage();
 
 		// TODO get proper terminal ID
 		byte[] terminal_id = new byte[4];
 		IdemixLogEntry entry = new IdemixLogEntry(IdemixLogEntry.Action.ISSUE,
-				issuanceSetup.getTimestamp(), issuanceSetup.getID(),
+				session.issuanceSetup.getTimestamp(), session.issuanceSetup.getID(),
 				terminal_id);
 		addLog(entry);
 
-		state = State.ISSUE;
-		issue_state = IssueState.SETUP;
+		session.state = State.ISSUE;
+		session.issue_state = IssueState.SETUP;
 
 		return sw(ISO7816.SW_NO_ERROR);
 	}
 
 	private ResponseAPDU processIssuePublicKey(CommandAPDU apdu) {
 		Log.info("Processing public key");
-		if(issue_state == IssueState.SETUP) {
-			issue_state = IssueState.PUBLIC_KEY;
+		if(session.issue_state == IssueState.SETUP) {
+			session.issue_state = IssueState.PUBLIC_KEY;
 		}
 
-		if(issue_state != IssueState.PUBLIC_KEY) {
+		if(session.issue_state != IssueState.PUBLIC_KEY) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -397,26 +541,26 @@ public class IRMACard {
 		switch((byte) apdu.getP1()) {
 		case IdemixSmartcard.P1_PUBLIC_KEY_N:
 			Log.info("P1_PUBLIC_KEY_N");
-			issuer_pk.set_n(new BigInteger(1, apdu.getData()));
+			session.issuer_pk.set_n(new BigInteger(1, apdu.getData()));
 			break;
 		case IdemixSmartcard.P1_PUBLIC_KEY_Z:
 			Log.info("P1_PUBLIC_KEY_Z");
-			issuer_pk.set_Z(new BigInteger(1, apdu.getData()));
+			session.issuer_pk.set_Z(new BigInteger(1, apdu.getData()));
 			break;
 		case IdemixSmartcard.P1_PUBLIC_KEY_S:
 			Log.info("P1_PUBLIC_KEY_S");
-			issuer_pk.set_S(new BigInteger(1, apdu.getData()));
+			session.issuer_pk.set_S(new BigInteger(1, apdu.getData()));
 			break;
 		case IdemixSmartcard.P1_PUBLIC_KEY_R:
 			int idx = apdu.getP2();
 			Log.info("P1_PUBLIC_KEY_R index: " + idx);
 
-			if(idx > issuanceSetup.getSize() + 1) {
+			if(idx > session.issuanceSetup.getSize() + 1) {
 				Log.warning("Setting public key Ri out of range");
 				return sw(ISO7816.SW_WRONG_P1P2);
 			}
 
-			issuer_pk.set_Ri(idx, new BigInteger(1, apdu.getData()));
+			session.issuer_pk.set_Ri(idx, new BigInteger(1, apdu.getData()));
 			break;
 		default:
 			Log.warning("Unknown parameter");
@@ -428,12 +572,12 @@ public class IRMACard {
 
 	private ResponseAPDU processIssueAttributes(CommandAPDU apdu) {
 		Log.info("Processing attributes");
-		if(issue_state == IssueState.PUBLIC_KEY) {
-			issue_state = IssueState.ATTRIBUTES;
+		if(session.issue_state == IssueState.PUBLIC_KEY) {
+			session.issue_state = IssueState.ATTRIBUTES;
 		}
 
 		// TODO additionally test that public key is complete
-		if(issue_state != IssueState.ATTRIBUTES) {
+		if(session.issue_state != IssueState.ATTRIBUTES) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -442,7 +586,7 @@ public class IRMACard {
 		}
 
 		int idx = apdu.getP1();
-		if(idx > issuanceSetup.getSize()) {
+		if(idx > session.issuanceSetup.getSize()) {
 			Log.warning("Setting attribute out of range");
 			return sw(ISO7816.SW_WRONG_P1P2);
 		}
@@ -453,19 +597,19 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_DATA);
 		}
 
-		attributes.set(idx - 1, attr);
+		session.attributes.set(idx - 1, attr);
 		return sw(ISO7816.SW_NO_ERROR);
 	}
 
 	private ResponseAPDU processIssueCommitment(CommandAPDU apdu) {
 		Log.info("Generating commitment");
 
-		if(issue_state == IssueState.ATTRIBUTES) {
-			issue_state = IssueState.COMMITTED;
+		if(session.issue_state == IssueState.ATTRIBUTES) {
+			session.issue_state = IssueState.COMMITTED;
 		}
 
 		// TODO additionally test that the attributes are complete
-		if(issue_state != IssueState.COMMITTED) {
+		if(session.issue_state != IssueState.COMMITTED) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -474,19 +618,19 @@ public class IRMACard {
 		}
 
 		BigInteger nonce1 = new BigInteger(1, apdu.getData());
-		cred_builder = new CredentialBuilder(issuer_pk, attributes,
-				issuanceSetup.getContext());
-		commitment_message = cred_builder
+		session.cred_builder = new CredentialBuilder(session.issuer_pk, session.attributes,
+				session.issuanceSetup.getContext());
+		session.commitment_message = session.cred_builder
 				.commitToSecretAndProve(master_secret, nonce1);
 		return data_sw(IdemixSmartcard.fixLength(
-						commitment_message.getCommitmentProof().getU(), params.l_n),
+						session.commitment_message.getCommitmentProof().getU(), params.l_n),
 						ISO7816.SW_NO_ERROR);
 	}
 
 	private ResponseAPDU processIssueCommitmentProof(CommandAPDU apdu) {
 		Log.info("Sending commitment");
 
-		if(issue_state != IssueState.COMMITTED) {
+		if(session.issue_state != IssueState.COMMITTED) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -494,7 +638,7 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_LENGTH);
 		}
 
-		ProofU proof = commitment_message.getCommitmentProof();
+		ProofU proof = session.commitment_message.getCommitmentProof();
 		switch((byte) apdu.getP1()) {
 		case IdemixSmartcard.P1_PROOF_C:
 			Log.info("Sending challenge");
@@ -512,11 +656,11 @@ public class IRMACard {
 	}
 
 	private ResponseAPDU processIssueChallenge(CommandAPDU apdu) {
-		if(issue_state == IssueState.COMMITTED) {
-			issue_state = IssueState.CHALLENGED;
+		if(session.issue_state == IssueState.COMMITTED) {
+			session.issue_state = IssueState.CHALLENGED;
 		}
 
-		if(issue_state != IssueState.CHALLENGED) {
+		if(session.issue_state != IssueState.CHALLENGED) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -524,15 +668,15 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_LENGTH);
 		}
 
-		return data(IdemixSmartcard.fixLength(commitment_message.getNonce2(), 8*params.size_statzk));
+		return data(IdemixSmartcard.fixLength(session.commitment_message.getNonce2(), 8*params.size_statzk));
 	}
 
 	private ResponseAPDU processIssueSignature(CommandAPDU apdu) {
-		if(issue_state == IssueState.CHALLENGED) {
-			issue_state = IssueState.SIGNATURE;
+		if(session.issue_state == IssueState.CHALLENGED) {
+			session.issue_state = IssueState.SIGNATURE;
 		}
 
-		if(issue_state != IssueState.SIGNATURE) {
+		if(session.issue_state != IssueState.SIGNATURE) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -544,7 +688,7 @@ public class IRMACard {
 				return sw(ISO7816.SW_WRONG_LENGTH);
 			}
 
-			signature_message.getSignature().setA(
+			session.signature_message.getSignature().setA(
 					new BigInteger(1, apdu.getData()));
 			break;
 		case IdemixSmartcard.P1_SIGNATURE_E:
@@ -554,7 +698,7 @@ public class IRMACard {
 				return sw(ISO7816.SW_WRONG_LENGTH);
 			}
 
-			signature_message.getSignature().set_e(
+			session.signature_message.getSignature().set_e(
 					new BigInteger(1, apdu.getData()));
 			break;
 		case IdemixSmartcard.P1_SIGNATURE_V:
@@ -564,7 +708,7 @@ public class IRMACard {
 				return sw(ISO7816.SW_WRONG_LENGTH);
 			}
 
-			signature_message.getSignature().set_v(
+			session.signature_message.getSignature().set_v(
 					new BigInteger(1, apdu.getData()));
 			break;
 		case IdemixSmartcard.P1_SIGNATURE_PROOF_C:
@@ -574,7 +718,7 @@ public class IRMACard {
 				return sw(ISO7816.SW_WRONG_LENGTH);
 			}
 
-			signature_message.getProofS().set_c(
+			session.signature_message.getProofS().set_c(
 					new BigInteger(1, apdu.getData()));
 			break;
 		case IdemixSmartcard.P1_SIGNATURE_PROOF_S_E:
@@ -584,7 +728,7 @@ public class IRMACard {
 				return sw(ISO7816.SW_WRONG_LENGTH);
 			}
 
-			signature_message.getProofS().set_e_response(
+			session.signature_message.getProofS().set_e_response(
 					new BigInteger(1, apdu.getData()));
 			break;
 		default:
@@ -597,17 +741,27 @@ public class IRMACard {
 
 	private ResponseAPDU processIssueVerify(CommandAPDU apdu) {
 		Log.info("Verifying proof and signature");
-		if(issue_state == IssueState.SIGNATURE) {
-			issue_state = IssueState.VERIFY;
+		if(session.issue_state == IssueState.SIGNATURE) {
+			session.issue_state = IssueState.VERIFY;
 		}
 
-		if(issue_state != IssueState.VERIFY) {
+		if(session.issue_state != IssueState.VERIFY) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
 		try {
-			IdemixCredential cred = cred_builder.constructCredential(signature_message);
-			credentials.get(issuanceSetup.getID()).setCredential(cred);
+			IdemixCredential cred = session.cred_builder.constructCredential(session.signature_message);
+			IRMAIdemixCredential issued = credentials.get(session.issuanceSetup.getID());
+			if (issued == null) {
+				// Removed on another logical channel during issuance
+				return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+			}
+			// Replace rather than update the holder, it may be shared with a
+			// forked card
+			IRMAIdemixCredential holder = new IRMAIdemixCredential(issued);
+			holder.setCredential(cred);
+			credentials.put(session.issuanceSetup.getID(), holder);
+			changed(new CardEvent.CredentialIssued(this, session.issuanceSetup.getID()));
 		} catch (CredentialsException e) {
 			Log.info("Incorrect: " + e.toString());
 			return sw(ISO7816.SW_DATA_INVALID);
@@ -615,20 +769,20 @@ public class IRMACard {
 
 		Log.warning("ALL SUCCESFUL");
 
-		issue_state = IssueState.FINISHED;
-		state = State.APPLET_SELECTED;
+		session.issue_state = IssueState.FINISHED;
+		session.state = State.APPLET_SELECTED;
 		clearIssuanceState();
 
 		return sw(ISO7816.SW_NO_ERROR);
 	}
 
 	private void clearIssuanceState() {
-		issuanceSetup = null;
-		cred_builder = null;
-		issuer_pk = null;
-		attributes = null;
-		commitment_message = null;
-		signature_message = null;
+		session.issuanceSetup = null;
+		session.cred_builder = null;
+		session.issuer_pk = null;
+		session.attributes = null;
+		session.commitment_message = null;
+		session.signature_message = null;
 	}
 
 	protected ResponseAPDU processVerificationCommand(CommandAPDU apdu) {
@@ -638,7 +792,7 @@ public class IRMACard {
 		}
 
 		// All other verification cases
-		if(state != State.PROVE || credential == null) {
+		if(session.state != State.PROVE || session.credential == null) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -659,31 +813,31 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_P1P2);
 		}
 
-		if (apdu.getData().length != VerificationSetupData.SIZE) {
+		if (apdu.getNc() != VerificationSetupData.SIZE) {
 			return sw(ISO7816.SW_WRONG_LENGTH);
 		}
 
-		verificationSetup = new VerificationSetupData(apdu.getData());
+		session.verificationSetup = new VerificationSetupData(apdu.getData(), 0);
 
 		// TODO: verify policy & verify content of verificationSetup
 
-		if (!credentials.containsKey(verificationSetup.getID()) ||
-				credentials.get(verificationSetup.getID()).getCredential() == null) {
-			Log.warning("Credential with id " + verificationSetup.getID() + " not found.");
+		IRMAIdemixCredential cred = credentials.get(session.verificationSetup.getID());
+		if (cred == null || cred.getCredential() == null) {
+			Log.warning("Credential with id " + session.verificationSetup.getID() + " not found.");
 			return sw(ISO7816.SW_KEY_NOT_FOUND);
 		}
-		credential = credentials.get(verificationSetup.getID());
+		session.credential = cred;
 
 		// Verify selection validity
 		if(!verifySelection()) {
-			credential = null;
+			session.credential = null;
 			return sw(ISO7816.SW_WRONG_DATA);
 		}
 
 		// All checks passed: signal the listeners that we're going to verify
 		for (VerificationStartListener listener: verificationListeners) {
 			if (listener != null) {
-				listener.verificationStarting(verificationSetup);
+				listener.verificationStarting(session.verificationSetup);
 			}
 		}
 
@@ -692,20 +846,20 @@ public class IRMACard {
 		// TODO: get proper terminal ID
 		byte[] terminal_id = new byte[4];
 		IdemixLogEntry entry = new IdemixLogEntry(IdemixLogEntry.Action.VERIFY,
-				verificationSetup.getTimestamp(), verificationSetup.getID(),
+				session.verificationSetup.getTimestamp(), session.verificationSetup.getID(),
 				terminal_id);
-		entry.setDisclose(verificationSetup.getDisclosureMask());
+		entry.setDisclose(session.verificationSetup.getDisclosureMask());
 		addLog(entry);
 
-		state = State.PROVE;
-		verification_state = VerificationState.SETUP;
+		session.state = State.PROVE;
+		session.verification_state = VerificationState.SETUP;
 		return sw(ISO7816.SW_NO_ERROR);
 	}
 
 	protected ResponseAPDU processProveCommitment(CommandAPDU apdu) {
 		Log.info("Generating commitment");
 
-		if(verification_state != VerificationState.SETUP) {
+		if(session.verification_state != VerificationState.SETUP) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -716,45 +870,45 @@ public class IRMACard {
 		BigInteger nonce1 = new BigInteger(1, apdu.getData());
 
 		List<Integer> disclosed_attributes = new ArrayList<Integer>();
-		int mask = verificationSetup.getDisclosureMask();
-		for(int i = 0; i < credential.getCredential().getNrAttributes(); i++) {
+		int mask = session.verificationSetup.getDisclosureMask();
+		for(int i = 0; i < session.credential.getCredential().getNrAttributes(); i++) {
 			if((mask & 0x01) == 0x01) {
 				disclosed_attributes.add(i);
 			}
 			mask = mask >> 1;
 		}
-		proof = credential.getCredential().createDisclosureProof(
-				disclosed_attributes, verificationSetup.getContext(), nonce1);
+		session.proof = session.credential.getCredential().createDisclosureProof(
+				disclosed_attributes, session.verificationSetup.getContext(), nonce1);
 
-		if(verification_state == VerificationState.SETUP) {
-			verification_state = VerificationState.COMMITTED;
+		if(session.verification_state == VerificationState.SETUP) {
+			session.verification_state = VerificationState.COMMITTED;
 		}
 
 		return data_sw(IdemixSmartcard.fixLength(
-				proof.get_c(), params.l_h),
+				session.proof.get_c(), params.l_h),
 				ISO7816.SW_NO_ERROR);
 	}
 
 	protected ResponseAPDU processProveSignature(CommandAPDU apdu) {
-		if(verification_state == VerificationState.COMMITTED) {
-			verification_state = VerificationState.SIGNATURE;
+		if(session.verification_state == VerificationState.COMMITTED) {
+			session.verification_state = VerificationState.SIGNATURE;
 		}
 
-		if(verification_state != VerificationState.SIGNATURE) {
+		if(session.verification_state != VerificationState.SIGNATURE) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
 		switch ((byte) apdu.getP1()) {
 		case IdemixSmartcard.P1_SIGNATURE_A:
 			Log.info("P1_SIGNATURE_A");
-			return data(IdemixSmartcard.fixLength(proof.getA(), params.l_n));
+			return data(IdemixSmartcard.fixLength(session.proof.getA(), params.l_n));
 		case IdemixSmartcard.P1_SIGNATURE_E:
 			Log.info("P1_SIGNATURE_E");
-			return data(IdemixSmartcard.fixLength(proof.get_e_response(),
+			return data(IdemixSmartcard.fixLength(session.proof.get_e_response(),
 					8 * params.size_e_response));
 		case IdemixSmartcard.P1_SIGNATURE_V:
 			Log.info("P1_SIGNATURE_V");
-			return data(IdemixSmartcard.fixLength(proof.get_v_response(),
+			return data(IdemixSmartcard.fixLength(session.proof.get_v_response(),
 					8 * params.size_v_response));
 		default:
 			Log.warning("Unknown parameter");
@@ -763,11 +917,11 @@ public class IRMACard {
 	}
 
 	protected ResponseAPDU processProveAttribute(CommandAPDU apdu) {
-		if(verification_state == VerificationState.SIGNATURE) {
-			verification_state = VerificationState.ATTRIBUTES;
+		if(session.verification_state == VerificationState.SIGNATURE) {
+			session.verification_state = VerificationState.ATTRIBUTES;
 		}
 
-		if(verification_state != VerificationState.ATTRIBUTES) {
+		if(session.verification_state != VerificationState.ATTRIBUTES) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -775,24 +929,24 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_LENGTH);
 		}
 
-		if(apdu.getP1() >= credential.getCredential().getNrAttributes()) {
+		if(apdu.getP1() >= session.credential.getCredential().getNrAttributes()) {
 			return sw(ISO7816.SW_WRONG_P1P2);
 		}
 
 		int idx = apdu.getP1();
-		if(verificationSetup.isDisclosed(idx)) {
-			BigInteger attribute = proof.get_a_disclosed().get(idx);
+		if(session.verificationSetup.isDisclosed(idx)) {
+			BigInteger attribute = session.proof.get_a_disclosed().get(idx);
 			Log.info("Disclosing attribute " + idx + ": " + attribute);
 			return data(IdemixSmartcard.fixLength(attribute, params.l_m));
 		} else {
-			BigInteger a_response = proof.get_a_responses().get(idx);
+			BigInteger a_response = session.proof.get_a_responses().get(idx);
 			Log.info("Sending response for attribute " + idx);
 			return data(IdemixSmartcard.fixLength(a_response, 8*params.size_a_response));
 		}
 	}
 
 	private boolean verifySelection() {
-		short mask = verificationSetup.getDisclosureMask();
+		short mask = session.verificationSetup.getDisclosureMask();
 		if((mask & 0x01) != 0) {
 			Log.warning("master secret cannot be disclosed");
 			return false;
@@ -803,7 +957,7 @@ public class IRMACard {
 			return false;
 		}
 
-		if((mask & (0xffff << credential.getCredential().getNrAttributes())) != 0) {
+		if((mask & (0xffff << session.credential.getCredential().getNrAttributes())) != 0) {
 			Log.warning("Disclosing non-existing attribute");
 			return false;
 		}
@@ -837,16 +991,17 @@ public class IRMACard {
 	}
 
 	protected ResponseAPDU processAdministrationCredentials(CommandAPDU apdu) {
-		ByteBuffer buffer = ByteBuffer.allocate(2 * credentials.values().size());
-
 		if(apdu.getP1() != 0 || apdu.getP2() != 0) {
 			return sw(ISO7816.SW_WRONG_P1P2);
 		}
 
-		for(short id : credentials.keySet()) {
-			buffer.putShort(id);
+		byte[] ids = new byte[2 * credentials.size()];
+		for(int i = 0; i < credentials.size(); i++) {
+			short id = credentials.keyAt(i);
+			ids[2 * i] = (byte) (id >> 8);
+			ids[2 * i + 1] = (byte) id;
 		}
-		return data(buffer.array());
+		return data(ids);
 	}
 
 	protected ResponseAPDU processAdministrationSelectCredential(CommandAPDU apdu) {
@@ -854,21 +1009,21 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_P1P2);
 		}
 
-		if(apdu.getData().length != AdminSelect.SIZE) {
+		if(apdu.getNc() != AdminSelect.SIZE) {
 			return sw(ISO7816.SW_WRONG_LENGTH);
 		}
 
-		adminSelect = new AdminSelect(apdu.getData());
-		if(credentials.containsKey(adminSelect.getID())) {
+		session.adminSelect = new AdminSelect(apdu.getData(), 0);
+		if(credentials.containsKey(session.adminSelect.getID())) {
 			return sw(ISO7816.SW_NO_ERROR);
 		} else {
-			adminSelect = null;
+			session.adminSelect = null;
 			return sw(ISO7816.SW_KEY_NOT_FOUND);
 		}
 	}
 
 	protected ResponseAPDU processAdministrationGetAttribute(CommandAPDU apdu) {
-		if(adminSelect == null) {
+		if(session.adminSelect == null) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -877,7 +1032,12 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_P1P2);
 		}
 
-		IdemixCredential cred = credentials.get(adminSelect.getID()).getCredential();
+		IRMAIdemixCredential holder = selectedCredential();
+		if(holder == null || holder.getCredential() == null) {
+			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+
+		IdemixCredential cred = holder.getCredential();
 		if(apdu.getP1() >= cred.getNrAttributes()) {
 			return sw(ISO7816.SW_RECORD_NOT_FOUND);
 		}
@@ -891,7 +1051,7 @@ public class IRMACard {
 	}
 
 	protected ResponseAPDU processAdministrationRemove(CommandAPDU apdu) {
-		if(adminSelect == null) {
+		if(session.adminSelect == null) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -899,25 +1059,27 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_P1P2);
 		}
 
-		if(apdu.getData().length != AdminRemove.SIZE) {
+		if(apdu.getNc() != AdminRemove.SIZE) {
 			return sw(ISO7816.SW_WRONG_LENGTH);
 		}
 
-		AdminRemove remove_data = new AdminRemove(apdu.getData());
+		AdminRemove remove_data = new AdminRemove(apdu.getData(), 0);
 
 		// TODO: get proper terminal_id
 		byte[] terminal_id = new byte[4];
 		IdemixLogEntry entry = new IdemixLogEntry(IdemixLogEntry.Action.REMOVE,
-				remove_data.getTimeStamp(), adminSelect.getID(), terminal_id);
+				remove_data.getTimeStamp(), session.adminSelect.getID(), terminal_id);
 		addLog(entry);
 
-		Log.info("Removing credential " + adminSelect.getID());
-		credentials.remove(adminSelect.getID());
+		Log.info("Removing credential " + session.adminSelect.getID());
+		if (credentials.remove(session.adminSelect.getID()) != null) {
+			changed(new CardEvent.CredentialRemoved(this, session.adminSelect.getID()));
+		}
 		return sw(ISO7816.SW_NO_ERROR);
 	}
 
 	protected ResponseAPDU processAdministrationFlags(CommandAPDU apdu) {
-		if(adminSelect == null) {
+		if(session.adminSelect == null) {
 			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
@@ -933,7 +1095,10 @@ public class IRMACard {
 		 * flags.
 		 */
 
-		IRMAIdemixCredential cred = credentials.get(adminSelect.getID());
+		IRMAIdemixCredential cred = selectedCredential();
+		if(cred == null) {
+			return sw(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
 
 		switch(apdu.getData().length) {
 		case(0):
@@ -944,7 +1109,10 @@ public class IRMACard {
 			return data(buffer.array());
 		case(IdemixFlags.SIZE):
 			Log.info("Setting user flags");
+			cred = new IRMAIdemixCredential(cred);
 			cred.setUserFlags(new IdemixFlags(apdu.getData()));
+			credentials.put(session.adminSelect.getID(), cred);
+			changed(new CardEvent.CredentialFlagsChanged(this, session.adminSelect.getID()));
 			return sw(ISO7816.SW_NO_ERROR);
 		default:
 			Log.warning("Wrong length");
@@ -961,14 +1129,20 @@ public class IRMACard {
 			return sw(ISO7816.SW_WRONG_LENGTH);
 		}
 
-		// TODO: write test to confirm working of log
+		// Copy the requested entries straight into the response, this takes
+		// at most two copies as the requested range can wrap around only once.
+		int count = 255 / IdemixLogEntry.SIZE;
+		int length = count * IdemixLogEntry.SIZE;
+		byte[] response = new byte[length + 2];
 
-		ByteBuffer buffer = ByteBuffer.allocate((255 / IdemixLogEntry.SIZE) * IdemixLogEntry.SIZE);
-		for (int i = 0; i < 255 / IdemixLogEntry.SIZE; i++) {
-			buffer.put(logs.get((i + apdu.getP1()) % LOG_ENTRIES).getBytes());
-		}
+		int start = (log_head + apdu.getP1()) % LOG_ENTRIES;
+		int first = Math.min(count, LOG_ENTRIES - start) * IdemixLogEntry.SIZE;
+		System.arraycopy(log, start * IdemixLogEntry.SIZE, response, 0, first);
+		System.arraycopy(log, 0, response, first, length - first);
 
-		return data(buffer.array());
+		response[length] = (byte) (ISO7816.SW_NO_ERROR >> 8);
+		response[length + 1] = (byte) ISO7816.SW_NO_ERROR;
+		return new ResponseAPDU(response);
 	}
 
 
@@ -977,9 +1151,48 @@ public class IRMACard {
 	// HELPER FUNCTIONS
 	//
 
+	/**
+	 * Get the credential selected for administration on the current channel.
+	 * The credential may have been removed on another logical channel since
+	 * it was selected, in which case the selection is dropped.
+	 *
+	 * @return the selected credential, or null if it no longer exists
+	 */
+	private IRMAIdemixCredential selectedCredential() {
+		IRMAIdemixCredential cred = credentials.get(session.adminSelect.getID());
+		if(cred == null) {
+			session.adminSelect = null;
+		}
+		return cred;
+	}
+
 	protected void addLog(IdemixLogEntry entry) {
-		logs.add(0, entry);
-		logs.remove(logs.size() - 1);
+		addLog(entry.getBytes());
+	}
+
+	void addLog(byte[] entry) {
+		if (log_shared) {
+			log = log.clone();
+			log_shared = false;
+		}
+
+		// Move the head back, overwriting the oldest entry
+		log_head = (log_head + LOG_ENTRIES - 1) % LOG_ENTRIES;
+		System.arraycopy(entry, 0, log,
+				log_head * IdemixLogEntry.SIZE, IdemixLogEntry.SIZE);
+		log_appends++;
+		changed(new CardEvent.LogAppended(this, entry));
+	}
+
+	/**
+	 * Records a modification of the persistent state, and notifies the event
+	 * listeners.
+	 */
+	private void changed(CardEvent event) {
+		modifications++;
+		for (CardEventListener listener : eventListeners) {
+			listener.cardEvent(event);
+		}
 	}
 
 	protected ResponseAPDU sw_counter(int counter) {
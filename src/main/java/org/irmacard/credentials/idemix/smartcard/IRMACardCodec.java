@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.irmacard.credentials.idemix.IdemixCredential;
+import org.irmacard.credentials.idemix.IdemixSystemParameters;
+import org.irmacard.idemix.util.IdemixFlags;
+import org.irmacard.idemix.util.IdemixLogEntry;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Compact binary encoding of the persistent state of an {@link IRMACard}.
+ * Only the persistent state is written: the PIN codes, the master secret,
+ * the log and the credentials. Version 1 of the format looks as follows
+ * (all integers big-endian):
+ *
+ * <pre>
+ *   magic            4 bytes  "IRMC"
+ *   version          1 byte
+ *   credential PIN   8 bytes code, 1 byte tries left
+ *   card PIN         8 bytes code, 1 byte tries left
+ *   master secret    1 byte presence flag, size_m bytes unsigned value
+ *   log head         1 byte
+ *   log              LOG_ENTRIES * IdemixLogEntry.SIZE bytes
+ *   credentials      2 bytes count, followed for every credential by
+ *                      2 bytes id, 3 bytes issuer flags, 3 bytes user flags,
+ *                      1 byte presence flag, encoded credential
+ * </pre>
+ *
+ * The internals of {@link IdemixCredential} belong to the credentials
+ * library, so credentials are encoded from their Gson tree: a tag byte per
+ * node, with integral numbers (i.e. the big integers of the signature, the
+ * public key and the attributes) written as length-prefixed two's-complement
+ * bytes instead of decimal strings.
+ */
+public class IRMACardCodec {
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = { 'I', 'R', 'M', 'C' };
+
+	// Tags of the nodes of an encoded JSON tree
+	private static final int TAG_NULL = 0;
+	private static final int TAG_FALSE = 1;
+	private static final int TAG_TRUE = 2;
+	private static final int TAG_INTEGER = 3;
+	private static final int TAG_NUMBER = 4;
+	private static final int TAG_STRING = 5;
+	private static final int TAG_ARRAY = 6;
+	private static final int TAG_OBJECT = 7;
+
+	private static final int MASTER_SECRET_SIZE = new IdemixSystemParameters().size_m;
+	private static final int LOG_SIZE = IRMACard.LOG_ENTRIES * IdemixLogEntry.SIZE;
+
+	private static final Gson gson = new Gson();
+
+	private IRMACardCodec() {
+	}
+
+	/**
+	 * Checks whether the data starts with the magic bytes of this format.
+	 *
+	 * @param data the data to check
+	 * @return true if the data looks like an encoded card
+	 */
+	public static boolean isEncoded(byte[] data) {
+		return data.length >= MAGIC.length
+				&& Arrays.equals(Arrays.copyOf(data, MAGIC.length), MAGIC);
+	}
+
+	public static byte[] encode(IRMACard card) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+
+		writePin(out, card.credential_pin);
+		writePin(out, card.card_pin);
+
+		writeMasterSecret(out, card.getMasterSecret());
+
+		out.writeByte(card.log_head);
+		out.write(card.log);
+
+		CredentialMap credentials = card.getCredentials();
+		out.writeShort(credentials.size());
+		for (int i = 0; i < credentials.size(); i++) {
+			out.writeShort(credentials.keyAt(i));
+			writeCredential(out, credentials.valueAt(i));
+		}
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static IRMACard decode(byte[] data) throws IOException {
+		if (!isEncoded(data)) {
+			throw new IOException("Not an encoded card state");
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		in.skipBytes(MAGIC.length);
+		int version = in.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported card state version " + version);
+		}
+
+		IRMACard card = new IRMACard();
+		card.credential_pin = readPin(in);
+		card.card_pin = readPin(in);
+
+		card.setMasterSecret(readMasterSecret(in));
+
+		card.log_head = in.readUnsignedByte();
+		if (card.log_head >= IRMACard.LOG_ENTRIES) {
+			throw new IOException("Invalid log head " + card.log_head);
+		}
+		in.readFully(card.log);
+
+		CredentialMap credentials = new CredentialMap();
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			short id = in.readShort();
+			credentials.put(id, readCredential(in));
+		}
+		card.setCredentials(credentials);
+
+		if (in.read() != -1) {
+			throw new IOException("Trailing data after card state");
+		}
+
+		return card;
+	}
+
+	static void writePin(DataOutputStream out, PinCode pin) throws IOException {
+		out.write(pin.getCode());
+		out.writeByte(pin.getTriesLeft());
+	}
+
+	static PinCode readPin(DataInputStream in) throws IOException {
+		byte[] code = new byte[PinCode.PIN_SIZE_INTERNAL];
+		in.readFully(code);
+		return new PinCode(code, in.readUnsignedByte());
+	}
+
+	static void writeMasterSecret(DataOutputStream out, BigInteger master_secret)
+			throws IOException {
+		if (master_secret == null) {
+			out.writeByte(0);
+			out.write(new byte[MASTER_SECRET_SIZE]);
+		} else {
+			out.writeByte(1);
+			out.write(toFixedWidth(master_secret, MASTER_SECRET_SIZE));
+		}
+	}
+
+	static BigInteger readMasterSecret(DataInputStream in) throws IOException {
+		boolean present = in.readBoolean();
+		byte[] master_secret = new byte[MASTER_SECRET_SIZE];
+		in.readFully(master_secret);
+		return present ? new BigInteger(1, master_secret) : null;
+	}
+
+	static void writeCredential(DataOutputStream out, IRMAIdemixCredential cred)
+			throws IOException {
+		out.write(cred.getIssuerFlags().getFlagBytes());
+		out.write(cred.getUserFlags().getFlagBytes());
+		if (cred.getCredential() == null) {
+			out.writeByte(0);
+		} else {
+			out.writeByte(1);
+			writeTree(out, gson.toJsonTree(cred.getCredential()));
+		}
+	}
+
+	static IRMAIdemixCredential readCredential(DataInputStream in) throws IOException {
+		IRMAIdemixCredential cred = new IRMAIdemixCredential(readFlags(in));
+		cred.setUserFlags(readFlags(in));
+		if (in.readBoolean()) {
+			try {
+				cred.setCredential(gson.fromJson(readTree(in), IdemixCredential.class));
+			} catch (JsonParseException e) {
+				throw new IOException("Invalid credential", e);
+			}
+		}
+		return cred;
+	}
+
+	private static IdemixFlags readFlags(DataInputStream in) throws IOException {
+		byte[] flags = new byte[IdemixFlags.SIZE];
+		in.readFully(flags);
+		return new IdemixFlags(flags);
+	}
+
+	private static byte[] toFixedWidth(BigInteger value, int size) throws IOException {
+		if (value.signum() < 0 || value.bitLength() > size * 8) {
+			throw new IOException("Value does not fit in " + size + " bytes");
+		}
+
+		byte[] bytes = value.toByteArray();
+		byte[] result = new byte[size];
+		int length = Math.min(bytes.length, size);
+		System.arraycopy(bytes, bytes.length - length, result, size - length, length);
+		return result;
+	}
+
+	static void writeTree(DataOutputStream out, JsonElement element) throws IOException {
+		if (element.isJsonNull()) {
+			out.writeByte(TAG_NULL);
+		} else if (element.isJsonArray()) {
+			JsonArray array = element.getAsJsonArray();
+			out.writeByte(TAG_ARRAY);
+			out.writeInt(array.size());
+			for (JsonElement child : array) {
+				writeTree(out, child);
+			}
+		} else if (element.isJsonObject()) {
+			JsonObject object = element.getAsJsonObject();
+			out.writeByte(TAG_OBJECT);
+			out.writeInt(object.entrySet().size());
+			for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+				out.writeUTF(entry.getKey());
+				writeTree(out, entry.getValue());
+			}
+		} else {
+			JsonPrimitive primitive = element.getAsJsonPrimitive();
+			if (primitive.isBoolean()) {
+				out.writeByte(primitive.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+			} else if (primitive.isNumber() && isIntegral(primitive.getAsString())) {
+				byte[] bytes = primitive.getAsBigInteger().toByteArray();
+				out.writeByte(TAG_INTEGER);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			} else if (primitive.isNumber()) {
+				out.writeByte(TAG_NUMBER);
+				out.writeUTF(primitive.getAsString());
+			} else {
+				out.writeByte(TAG_STRING);
+				out.writeUTF(primitive.getAsString());
+			}
+		}
+	}
+
+	static JsonElement readTree(DataInputStream in) throws IOException {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+		case TAG_NULL:
+			return JsonNull.INSTANCE;
+		case TAG_FALSE:
+			return new JsonPrimitive(false);
+		case TAG_TRUE:
+			return new JsonPrimitive(true);
+		case TAG_INTEGER:
+			int length = readLength(in);
+			if (length == 0) {
+				throw new IOException("Empty integer");
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new JsonPrimitive(new BigInteger(bytes));
+		case TAG_NUMBER:
+			String number = in.readUTF();
+			try {
+				return new JsonPrimitive(new BigDecimal(number));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid number " + number);
+			}
+		case TAG_STRING:
+			return new JsonPrimitive(in.readUTF());
+		case TAG_ARRAY:
+			JsonArray array = new JsonArray();
+			for (int i = readLength(in); i > 0; i--) {
+				array.add(readTree(in));
+			}
+			return array;
+		case TAG_OBJECT:
+			JsonObject object = new JsonObject();
+			for (int i = readLength(in); i > 0; i--) {
+				String name = in.readUTF();
+				object.add(name, readTree(in));
+			}
+			return object;
+		default:
+			throw new IOException("Invalid tag " + tag);
+		}
+	}
+
+	/**
+	 * Reads a length or count, which cannot exceed the number of bytes left
+	 * as every byte or element takes at least one byte.
+	 */
+	private static int readLength(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new IOException("Invalid length " + length);
+		}
+		return length;
+	}
+
+	private static boolean isIntegral(String number) {
+		int start = number.startsWith("-") ? 1 : 0;
+		if (number.length() == start) {
+			return false;
+		}
+		for (int i = start; i < number.length(); i++) {
+			if (!Character.isDigit(number.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
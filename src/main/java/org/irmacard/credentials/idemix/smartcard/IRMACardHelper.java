@@ -30,45 +30,89 @@
 
 package org.irmacard.credentials.idemix.smartcard;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 public class IRMACardHelper {
+	/**
+	 * Formats in which the state of a card can be stored.
+	 */
+	public enum Format {
+		/** Pretty-printed JSON, readable and editable by hand */
+		JSON,
+		/** Compact binary encoding, see {@link IRMACardCodec} */
+		BINARY
+	};
+
+	private static final String CHARSET = "utf-8";
+
+	private static final Gson gson = new GsonBuilder()
+			.registerTypeAdapterFactory(new CardStateTypeAdapterFactory())
+			.setPrettyPrinting()
+			.create();
+
 	public static String serializeState(IRMACard card) {
-		Gson gson = new GsonBuilder().setPrettyPrinting().create();
-		return gson.toJson(card);
+		return gson.toJson(card, IRMACard.class);
 	}
 
 	public static void storeState(IRMACard card, Path cardStoragePath) {
-		Writer writer = null;
-		try {
-		    writer = new BufferedWriter(new OutputStreamWriter(
-		          new FileOutputStream(cardStoragePath.toString()), "utf-8"));
-		    writer.write(serializeState(card));
+		storeState(card, cardStoragePath, Format.JSON);
+	}
+
+	public static void storeState(IRMACard card, Path cardStoragePath, Format format) {
+		if (format == Format.BINARY) {
+			try {
+				Files.write(cardStoragePath, IRMACardCodec.encode(card));
+			} catch (IOException exception) {
+				exception.printStackTrace();
+			}
+			return;
+		}
+
+		try (FileChannel channel = FileChannel.open(cardStoragePath,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+				JsonWriter writer = new JsonWriter(new BufferedWriter(
+						Channels.newWriter(channel, CHARSET)))) {
+			writer.setIndent("  ");
+			gson.toJson(card, IRMACard.class, writer);
 		} catch (IOException exception) {
 			exception.printStackTrace();
-		} finally {
-		   try {writer.close();} catch (Exception ex) {}
 		}
 	}
 
 	public static IRMACard loadState(String state) {
-		Gson gson = new Gson();
 		return gson.fromJson(state, IRMACard.class);
 	}
 
+	/**
+	 * Loads the state of a card from a file, which may be in either of the
+	 * formats of {@link Format}. JSON is parsed while it is read, without
+	 * reading the whole file into memory first.
+	 */
 	public static IRMACard loadState(Path cardStoragePath) {
-		try {
-			byte[] data = Files.readAllBytes(cardStoragePath);
-			return loadState(new String(data));
+		try (FileChannel channel = FileChannel.open(cardStoragePath, StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			channel.read(magic, 0);
+			if (IRMACardCodec.isEncoded(magic.array())) {
+				return IRMACardCodec.decode(Files.readAllBytes(cardStoragePath));
+			}
+
+			JsonReader reader = new JsonReader(new BufferedReader(
+					Channels.newReader(channel, CHARSET)));
+			return gson.fromJson(reader, IRMACard.class);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return new IRMACard();
@@ -43,6 +43,12 @@ public class IRMAIdemixCredential {
 		this.userFlags = new IdemixFlags();
 	}
 
+	public IRMAIdemixCredential(IRMAIdemixCredential other) {
+		this.issuerFlags = other.issuerFlags;
+		this.userFlags = other.userFlags;
+		this.cred = other.cred;
+	}
+
 	public void setUserFlags(IdemixFlags userFlags) {
 		this.userFlags = userFlags;
 	}
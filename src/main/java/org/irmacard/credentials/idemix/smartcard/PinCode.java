@@ -54,6 +54,18 @@ public class PinCode {
 		this.verified = false;
 	}
 
+	public PinCode(PinCode other) {
+		this.code = other.code.clone();
+		this.tries_left = other.tries_left;
+		this.verified = false;
+	}
+
+	PinCode(byte[] code, int tries_left) {
+		setPin(code);
+		this.tries_left = tries_left;
+		this.verified = false;
+	}
+
 	public void setPin(byte[] pin) {
 		code = new byte[PIN_SIZE_INTERNAL];
         System.arraycopy(pin, 0, code, 0, pin.length);
@@ -67,6 +79,10 @@ public class PinCode {
 		return verified;
 	}
 
+	void setVerified(boolean verified) {
+		this.verified = verified;
+	}
+
 	public PinCodeStatus verify(byte[] attempt) {
 		if (tries_left == 0) {
 			Log.warning("Pin code blocked");
@@ -94,4 +110,8 @@ public class PinCode {
 	public int getTriesLeft() {
 		return tries_left;
 	}
+
+	byte[] getCode() {
+		return code;
+	}
 }
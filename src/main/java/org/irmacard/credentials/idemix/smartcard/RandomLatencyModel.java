@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import java.util.Random;
+
+import net.sf.scuba.smartcards.CommandAPDU;
+
+/**
+ * Latency model that draws the latency of every instruction from a normal
+ * distribution, truncated at zero.
+ */
+public class RandomLatencyModel implements LatencyModel {
+	private long[] means = new long[256];
+	private long[] deviations = new long[256];
+	private final Random rnd;
+
+	/**
+	 * Construct a latency model that uses the given distribution for every
+	 * instruction, until it is overridden using
+	 * {@link #setLatency(byte, long, long)}.
+	 *
+	 * @param mean		the default mean latency in nanoseconds
+	 * @param deviation	the default standard deviation in nanoseconds
+	 * @param rnd		the source of randomness, pass a seeded instance to
+	 *					get reproducible runs
+	 */
+	public RandomLatencyModel(long mean, long deviation, Random rnd) {
+		for (int i = 0; i < 256; i++) {
+			means[i] = mean;
+			deviations[i] = deviation;
+		}
+		this.rnd = rnd;
+	}
+
+	/**
+	 * Set the distribution of the latency of a single instruction.
+	 *
+	 * @param ins		the instruction byte
+	 * @param mean		the mean latency in nanoseconds
+	 * @param deviation	the standard deviation in nanoseconds
+	 * @return this model, for chaining
+	 */
+	public RandomLatencyModel setLatency(byte ins, long mean, long deviation) {
+		means[ins & 0xff] = mean;
+		deviations[ins & 0xff] = deviation;
+		return this;
+	}
+
+	@Override
+	public long getLatency(CommandAPDU command) {
+		int ins = command.getINS() & 0xff;
+		double gaussian;
+		synchronized (rnd) {
+			gaussian = rnd.nextGaussian();
+		}
+		return Math.max(0, means[ins] + (long) (gaussian * deviations[ins]));
+	}
+}
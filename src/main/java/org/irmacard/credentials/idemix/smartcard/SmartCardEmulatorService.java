@@ -43,15 +43,22 @@ public class SmartCardEmulatorService extends CardService {
 	boolean open = false;
 	IRMACard card;
 	List<CardChangedListener> listeners;
+	LatencyModel latencyModel = null;
+	EmulatorClock clock = SystemClock.INSTANCE;
+
+	// Modification count of the card when the listeners were last notified
+	long notifiedModifications;
 
 	public SmartCardEmulatorService() {
 		card = new IRMACard();
 		listeners = new LinkedList<CardChangedListener>();
+		notifiedModifications = card.getModificationCount();
 	}
 
 	public SmartCardEmulatorService(IRMACard card) {
 		this.card = card;
 		listeners = new LinkedList<CardChangedListener>();
+		notifiedModifications = card.getModificationCount();
 	}
 
 	public void addListener(CardChangedListener listener) {
@@ -62,10 +69,46 @@ public class SmartCardEmulatorService extends CardService {
 		return card;
 	}
 
+	/**
+	 * Emulate the latency of a real card. The emulator waits until the time
+	 * given by the model has passed (on the clock of this service) before it
+	 * returns a response. The time the emulator itself took to process the
+	 * command is included in this latency. Set to null (the default) to
+	 * respond as fast as possible.
+	 *
+	 * @param latencyModel	the latency model, or null
+	 */
+	public void setLatencyModel(LatencyModel latencyModel) {
+		this.latencyModel = latencyModel;
+	}
+
+	/**
+	 * Set the clock used to emulate latency, for example a
+	 * {@link VirtualClock} to run faster than real time. Defaults to
+	 * {@link SystemClock#INSTANCE}.
+	 *
+	 * @param clock	the clock
+	 */
+	public void setClock(EmulatorClock clock) {
+		this.clock = clock;
+	}
+
+	public EmulatorClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Closes the session, notifying the listeners if the persistent state of
+	 * the card changed since they were last notified.
+	 */
 	@Override
 	public void close() {
-		for(CardChangedListener listener : listeners) {
-			listener.cardChanged(card);
+		long modifications = card.getModificationCount();
+		if (modifications != notifiedModifications) {
+			notifiedModifications = modifications;
+			for(CardChangedListener listener : listeners) {
+				listener.cardChanged(card);
+			}
 		}
 		open = false;
 	}
@@ -98,7 +141,22 @@ public class SmartCardEmulatorService extends CardService {
 		if (!open) {
 			throw new CardServiceException("Card hasn't been opened");
 		}
-		return card.processAPDU(apdu);
+		if (latencyModel == null) {
+			return card.processAPDU(apdu);
+		}
+
+		long start = clock.nanoTime();
+		ResponseAPDU response = card.processAPDU(apdu);
+		long remaining = latencyModel.getLatency(apdu) - (clock.nanoTime() - start);
+		if (remaining > 0) {
+			try {
+				clock.sleep(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CardServiceException("Interrupted while emulating card latency");
+			}
+		}
+		return response;
 	}
 
 	@Override
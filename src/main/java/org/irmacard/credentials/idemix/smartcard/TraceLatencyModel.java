@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.scuba.smartcards.CommandAPDU;
+
+/**
+ * Latency model that replays latencies recorded from a real card. For every
+ * instruction a random sample is picked from the latencies recorded for that
+ * instruction; instructions without samples get the default latency.
+ */
+public class TraceLatencyModel implements LatencyModel {
+	private long[][] samples = new long[256][];
+	private int[] counts = new int[256];
+	private final long defaultLatency;
+	private final Random rnd;
+
+	/**
+	 * Construct an empty trace model.
+	 *
+	 * @param defaultLatency	latency in nanoseconds for instructions for
+	 *							which no samples were recorded
+	 * @param rnd				the source of randomness
+	 */
+	public TraceLatencyModel(long defaultLatency, Random rnd) {
+		this.defaultLatency = defaultLatency;
+		this.rnd = rnd;
+	}
+
+	/**
+	 * Load a trace from a file. Every line contains the instruction byte in
+	 * hexadecimal and the measured duration in microseconds, separated by
+	 * whitespace, for example <code>2A 83250</code>. Empty lines and lines
+	 * starting with # are ignored.
+	 *
+	 * @param trace				the trace file
+	 * @param defaultLatency	latency in nanoseconds for instructions that
+	 *							do not occur in the trace
+	 * @param rnd				the source of randomness
+	 * @return the latency model
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static TraceLatencyModel load(Path trace, long defaultLatency,
+			Random rnd) throws IOException {
+		TraceLatencyModel model = new TraceLatencyModel(defaultLatency, rnd);
+
+		try (BufferedReader reader = Files.newBufferedReader(trace, StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] fields = line.split("\\s+");
+				if (fields.length != 2) {
+					throw new IOException("Malformed trace entry at line " + lineNumber);
+				}
+				try {
+					model.addSample((byte) Integer.parseInt(fields[0], 16),
+							Long.parseLong(fields[1]) * 1000);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed trace entry at line " + lineNumber, e);
+				}
+			}
+		}
+
+		return model;
+	}
+
+	/**
+	 * Record a latency sample for an instruction.
+	 *
+	 * @param ins		the instruction byte
+	 * @param latency	the latency in nanoseconds
+	 */
+	public synchronized void addSample(byte ins, long latency) {
+		int idx = ins & 0xff;
+		if (samples[idx] == null) {
+			samples[idx] = new long[8];
+		} else if (counts[idx] == samples[idx].length) {
+			samples[idx] = Arrays.copyOf(samples[idx], 2 * counts[idx]);
+		}
+		samples[idx][counts[idx]++] = latency;
+	}
+
+	@Override
+	public synchronized long getLatency(CommandAPDU command) {
+		int idx = command.getINS() & 0xff;
+		if (counts[idx] == 0) {
+			return defaultLatency;
+		}
+		return samples[idx][rnd.nextInt(counts[idx])];
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the state of cards on a background thread, so that closing a
+ * session does not wait for the disk. Changes are queued per file: if a card
+ * changes again before it is written, only its latest state is stored. The
+ * queue is written when it holds a given number of cards, or when the oldest
+ * change has waited for a given interval. When the queue is full, callers
+ * block until the writer has caught up.
+ *
+ * <p>The state of a card is captured (using {@link IRMACard#fork()}) just
+ * before it is written, and written to a temporary file that is renamed over
+ * the old one. Use {@link #listenerFor(Path)} to obtain a listener for a
+ * {@link SmartCardEmulatorService}.
+ */
+public class WriteBehindPersister implements Closeable {
+	/**
+	 * Whether written files are forced to disk before they replace the old
+	 * ones.
+	 */
+	public enum SyncPolicy {
+		/** Leave it to the operating system */
+		NONE,
+		/** Force the contents of the file */
+		DATA,
+		/** Force the contents and the metadata of the file */
+		FULL
+	};
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteBehindPersister.class);
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private final long flushInterval;
+	private final int flushCount;
+	private final int maxPending;
+	private final SyncPolicy syncPolicy;
+	private final IRMACardHelper.Format format;
+
+	private final Map<Path, IRMACard> pending = new LinkedHashMap<>();
+	private long firstPending;
+	private long flushRequested = 0;
+	private long flushCompleted = 0;
+	private boolean closed = false;
+	private final Thread writer;
+
+	private long written = 0;
+	private long coalesced = 0;
+	private long stalls = 0;
+
+	/**
+	 * Creates a persister and starts its writer thread.
+	 *
+	 * @param flushInterval	the maximum time a change waits before it is written
+	 * @param unit			the unit of the interval
+	 * @param flushCount	the number of queued cards that triggers a write
+	 * @param maxPending	the number of queued cards from which on callers block
+	 * @param syncPolicy	whether to force files to disk
+	 * @param format		the format of the files
+	 */
+	public WriteBehindPersister(long flushInterval, TimeUnit unit, int flushCount,
+			int maxPending, SyncPolicy syncPolicy, IRMACardHelper.Format format) {
+		if (flushCount <= 0 || maxPending < flushCount) {
+			throw new IllegalArgumentException("Invalid flush count or queue size");
+		}
+
+		this.flushInterval = unit.toNanos(flushInterval);
+		this.flushCount = flushCount;
+		this.maxPending = maxPending;
+		this.syncPolicy = syncPolicy;
+		this.format = format;
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "card-write-behind");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Returns a listener that queues the state of the changed card to be
+	 * stored at the given path.
+	 */
+	public CardChangedListener listenerFor(final Path path) {
+		return new CardChangedListener() {
+			@Override
+			public void cardChanged(IRMACard card) {
+				try {
+					enqueue(card, path);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					logger.warn("Interrupted, card state not stored");
+				}
+			}
+		};
+	}
+
+	/**
+	 * Queues the state of a card to be stored at the given path, blocking
+	 * while the queue is full.
+	 */
+	public synchronized void enqueue(IRMACard card, Path path) throws InterruptedException {
+		boolean stalled = false;
+		while (!closed && !pending.containsKey(path) && pending.size() >= maxPending) {
+			if (!stalled) {
+				stalls++;
+				stalled = true;
+			}
+			wait();
+		}
+		if (closed) {
+			throw new IllegalStateException("Persister is closed");
+		}
+
+		if (pending.isEmpty()) {
+			firstPending = System.nanoTime();
+		}
+		if (pending.put(path, card) != null) {
+			coalesced++;
+		}
+		if (pending.size() >= flushCount) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes all queued changes, and waits until they have been written.
+	 */
+	public synchronized void flush() throws InterruptedException {
+		long request = ++flushRequested;
+		notifyAll();
+		while (flushCompleted < request && writer.isAlive()) {
+			wait();
+		}
+	}
+
+	/**
+	 * Writes all queued changes and stops the writer thread.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Returns the number of files written so far. */
+	public synchronized long getWritten() {
+		return written;
+	}
+
+	/** Returns the number of changes merged with an already queued change. */
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	/** Returns the number of times a caller blocked on a full queue. */
+	public synchronized long getStalls() {
+		return stalls;
+	}
+
+	private void writeLoop() {
+		while (true) {
+			Map<Path, IRMACard> batch;
+			long request;
+			synchronized (this) {
+				try {
+					while (!closed && flushRequested == flushCompleted && !due()) {
+						if (pending.isEmpty()) {
+							wait();
+						} else {
+							long remaining = flushInterval - (System.nanoTime() - firstPending);
+							TimeUnit.NANOSECONDS.timedWait(this, Math.max(remaining, 1));
+						}
+					}
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+				if (closed && pending.isEmpty()) {
+					flushCompleted = flushRequested;
+					notifyAll();
+					return;
+				}
+
+				batch = new LinkedHashMap<>(pending);
+				pending.clear();
+				request = flushRequested;
+				notifyAll();
+			}
+
+			int count = 0;
+			for (Map.Entry<Path, IRMACard> entry : batch.entrySet()) {
+				try {
+					write(entry.getKey(), entry.getValue());
+					count++;
+				} catch (IOException e) {
+					logger.error("Could not store card state in " + entry.getKey(), e);
+				}
+			}
+
+			synchronized (this) {
+				written += count;
+				flushCompleted = Math.max(flushCompleted, request);
+				notifyAll();
+			}
+		}
+	}
+
+	private boolean due() {
+		return pending.size() >= flushCount || (!pending.isEmpty()
+				&& System.nanoTime() - firstPending >= flushInterval);
+	}
+
+	private void write(Path path, IRMACard card) throws IOException {
+		IRMACard snapshot;
+		synchronized (card) {
+			snapshot = card.fork();
+		}
+
+		byte[] data;
+		if (format == IRMACardHelper.Format.BINARY) {
+			data = IRMACardCodec.encode(snapshot);
+		} else {
+			data = IRMACardHelper.serializeState(snapshot).getBytes(UTF8);
+		}
+
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			if (syncPolicy != SyncPolicy.NONE) {
+				channel.force(syncPolicy == SyncPolicy.FULL);
+			}
+		}
+		Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+}
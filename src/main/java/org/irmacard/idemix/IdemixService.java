@@ -31,11 +31,16 @@
 package org.irmacard.idemix;
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.interfaces.RSAPublicKey;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import net.sf.scuba.smartcards.CardService;
@@ -51,6 +56,7 @@ import net.sf.scuba.util.Hex;
 import org.irmacard.idemix.util.CardVersion;
 import org.irmacard.idemix.util.IdemixFlags;
 import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.LogExporter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -89,6 +95,30 @@ public class IdemixService extends CardService {
      */
     protected CardVersion cardVersion = null;
 
+    /**
+     * Logical channel on which commands are sent, 0 is the basic channel.
+     */
+    protected int channel = 0;
+
+    /**
+     * PINs verified since the applet was selected, by PIN type, mapped to a
+     * salted digest of the PIN that was sent, so that the PIN itself is not
+     * kept in memory. The digest is null if the status was found by a query.
+     */
+    private final Map<Byte, byte[]> verifiedPins = new HashMap<Byte, byte[]>();
+
+    /**
+     * Salt of the PIN digests, chosen per service.
+     */
+    private final byte[] pinSalt = newPinSalt();
+
+    /**
+     * Number of PIN commands that were not sent, as the PIN was verified.
+     */
+    private long savedPinCommands = 0;
+
+    private static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+
     /**
      * Logger
      */
@@ -132,6 +162,35 @@ public class IdemixService extends CardService {
         logger.trace("Found card application: {}", cardVersion);
     }
 
+    /**
+     * Open a new logical channel to the card and select the Idemix applet on
+     * it. The returned service shares the connection to the card with this
+     * service, but keeps its own protocol state on the card. This allows,
+     * for example, reading the log while a verification is pending.
+     *
+     * @return a service that communicates over the new logical channel.
+     * @throws CardServiceException if the card cannot open another channel.
+     */
+    public IdemixService openLogicalChannel()
+    throws CardServiceException {
+        ProtocolResponse response = execute(
+                IdemixSmartcard.openChannelCommand(getCardVersion()));
+
+        IdemixService channelService = new IdemixService(service, credentialId);
+        channelService.channel = response.getData()[0];
+        channelService.open();
+        return channelService;
+    }
+
+    /**
+     * Get the logical channel used by this service.
+     *
+     * @return the channel number, 0 for the basic channel.
+     */
+    public int getLogicalChannel() {
+        return channel;
+    }
+
     /**
      * Check whether a communication channel with a smart card exists.
      *
@@ -150,6 +209,12 @@ public class IdemixService extends CardService {
      */
     public ResponseAPDU transmit(CommandAPDU capdu)
     throws CardServiceException {
+        if (channel != 0) {
+            // Encode the logical channel in the CLAss byte
+            byte[] bytes = capdu.getBytes().clone();
+            bytes[0] = (byte) ((bytes[0] & 0xFC) | channel);
+            capdu = new CommandAPDU(bytes);
+        }
 
         if (VERBOSE) {
             logger.trace("C: {}", Hex.bytesToHexString(capdu.getBytes()));
@@ -173,9 +238,20 @@ public class IdemixService extends CardService {
     }
 
     /**
-     * Close the communication channel with the Idemix applet.
+     * Close the communication channel with the Idemix applet. For a service
+     * on a logical channel, only that channel is closed.
      */
     public void close() {
+        forgetPins();
+        if (channel != 0) {
+            try {
+                execute(IdemixSmartcard.closeChannelCommand(getCardVersion(), channel));
+            } catch (CardServiceException e) {
+                logger.warn("Failed to close logical channel {}: {}", channel, e.getMessage());
+            }
+            return;
+        }
+
         if (service != null) {
             service.close();
         }
@@ -199,7 +275,21 @@ public class IdemixService extends CardService {
      */
     public ProtocolResponse execute(ProtocolCommand command)
     throws CardServiceException {
-        ResponseAPDU response = transmit(command.getAPDU());
+        ResponseAPDU response;
+        try {
+            // Selecting the applet again resets its security status
+            if ((byte) command.getAPDU().getINS() == IdemixSmartcard.INS_SELECT_APPLICATION) {
+                forgetPins();
+            }
+            response = transmit(command.getAPDU());
+        } catch (CardServiceException e) {
+            forgetPins();
+            throw e;
+        }
+
+        if (response.getSW() == SW_SECURITY_STATUS_NOT_SATISFIED) {
+            forgetPins();
+        }
 
         if (response.getSW() != 0x00009000) {
             // don't bother with the rest of the commands...
@@ -214,7 +304,9 @@ public class IdemixService extends CardService {
     }
 
     /**
-     * Execute a list of protocol commands on the smart card.
+     * Execute a list of protocol commands on the smart card. PIN commands in
+     * the list are sent as they are: they neither skip a PIN that was already
+     * verified, nor mark the PIN as verified for {@link #sendPin(byte, byte[])}.
      *
      * @param commands to be executed on the card.
      * @return the responses received from the card.
@@ -257,7 +349,7 @@ public class IdemixService extends CardService {
             logger.error("Failed to select application, now looking for legacy version");
             response = execute(IdemixSmartcard.selectApplicationCommand_0_7);
         }
-        return new CardVersion(response.getData());
+        return CardVersion.valueOf(response.getData());
     }
 
     /**
@@ -298,7 +390,54 @@ public class IdemixService extends CardService {
     }
 
     /**
-     * Send the pin to the card.
+     * Get the number of PIN commands that were not sent to the card, because
+     * the PIN was already verified since the applet was selected.
+     *
+     * @return the number of APDUs saved.
+     */
+    public long getSavedPinCommands() {
+        return savedPinCommands;
+    }
+
+    private static byte[] newPinSalt() {
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    private byte[] pinDigest(byte pinID, byte[] pin) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(pinSalt);
+            digest.update(pinID);
+            digest.update(pin);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private void forgetPin(byte pinID) {
+        byte[] digest = verifiedPins.remove(pinID);
+        if (digest != null) {
+            Arrays.fill(digest, (byte) 0);
+        }
+    }
+
+    private void forgetPins() {
+        for (byte[] digest : verifiedPins.values()) {
+            if (digest != null) {
+                Arrays.fill(digest, (byte) 0);
+            }
+        }
+        verifiedPins.clear();
+    }
+
+    /**
+     * Send the pin to the card. The command is not sent if the same PIN was
+     * verified since the applet was selected. Only PINs sent using this
+     * method (or the ones calling it) are tracked: PIN commands that are part
+     * of the commands passed to {@link #execute(ProtocolCommands)} are not.
      *
      * @param pinID    the type of PIN that is send to the card.
      * @param pin     ASCII encoded pin
@@ -307,9 +446,18 @@ public class IdemixService extends CardService {
      */
     public int sendPin(byte pinID, byte[] pin)
     throws CardServiceException {
+        byte[] digest = pin == null ? null : pinDigest(pinID, pin);
+        byte[] verified = verifiedPins.get(pinID);
+        if (verified != null && digest != null && MessageDigest.isEqual(verified, digest)) {
+            logger.trace("PIN {} already verified", pinID);
+            savedPinCommands++;
+            return -1;
+        }
+
         try {
             execute(IdemixSmartcard.sendPinCommand(getCardVersion(), pinID, pin));
         } catch (CardServiceException e) {
+            forgetPin(pinID);
             if (!e.getMessage().toUpperCase().contains("63C")) {
                 throw e;
             }
@@ -317,6 +465,8 @@ public class IdemixService extends CardService {
             return e.getSW() - 0x000063C0;
         }
 
+        forgetPin(pinID);
+        verifiedPins.put(pinID, digest);
         return -1;
     }
 
@@ -352,8 +502,16 @@ public class IdemixService extends CardService {
      */
     public int queryPin(byte pinID)
     throws CardServiceException {
+        if (verifiedPins.containsKey(pinID)) {
+            logger.trace("PIN {} already verified", pinID);
+            savedPinCommands++;
+            return -1;
+        }
+
+        // Older cards cannot be queried, these report success regardless
+        ProtocolCommands commands = IdemixSmartcard.queryPinCommand(getCardVersion(), pinID);
         try {
-            execute(IdemixSmartcard.queryPinCommand(getCardVersion(), pinID));
+            execute(commands);
         } catch (CardServiceException e) {
             if (!e.getMessage().toUpperCase().contains("63C")) {
                 throw e;
@@ -362,6 +520,9 @@ public class IdemixService extends CardService {
             return e.getSW() - 0x000063C0;
         }
 
+        if (!commands.isEmpty()) {
+            verifiedPins.put(pinID, null);
+        }
         return -1;
     }
     /**
@@ -385,6 +546,7 @@ public class IdemixService extends CardService {
      */
     public int updatePin(byte pinID, byte[] oldPin, byte[] newPin)
     throws CardServiceException {
+        forgetPin(pinID);
         try {
             execute(IdemixSmartcard.updatePinCommand(getCardVersion(), pinID, oldPin, newPin));
         } catch (CardServiceException e) {
@@ -481,25 +643,63 @@ public class IdemixService extends CardService {
      * @throws CardServiceException
      */
     public List<IdemixLogEntry> getLogEntries() throws CardServiceException {
-        ProtocolResponse response;
         Vector<IdemixLogEntry> list = new Vector<IdemixLogEntry>();
 
         for (byte start_entry = 0; start_entry < LOG_SIZE;
                 start_entry = (byte) (start_entry + LOG_ENTRIES_PER_APDU)) {
-            response = execute(IdemixSmartcard.getLogCommand(getCardVersion(), start_entry));
+            readLogEntries(start_entry, list);
+        }
+
+        return list;
+    }
+
+    /**
+     * Get the newest entries of the log, as far as they are returned by a
+     * single command. The newest entry comes first.
+     *
+     * @throws CardServiceException
+     */
+    public List<IdemixLogEntry> getNewestLogEntries() throws CardServiceException {
+        Vector<IdemixLogEntry> list = new Vector<IdemixLogEntry>();
+        readLogEntries((byte) 0, list);
+        return list;
+    }
+
+    /**
+     * Append the log of the card to an export, without decoding the entries
+     * into objects.
+     *
+     * @param exporter the export to append to
+     * @param card the number under which the entries are exported
+     * @throws CardServiceException
+     * @throws IOException if the entries could not be written
+     */
+    public void exportLogEntries(LogExporter exporter, int card)
+    throws CardServiceException, IOException {
+        for (byte start_entry = 0; start_entry < LOG_SIZE;
+                start_entry = (byte) (start_entry + LOG_ENTRIES_PER_APDU)) {
+            ProtocolResponse response = execute(IdemixSmartcard.getLogCommand(getCardVersion(), start_entry));
             byte[] data = response.getData();
             for (int entry = 0; entry < LOG_ENTRIES_PER_APDU
                     && entry + start_entry < LOG_SIZE; entry++) {
-
-                byte[] log_entry = Arrays.copyOfRange(data, LOG_ENTRY_SIZE
-                        * entry, LOG_ENTRY_SIZE * (entry + 1));
-
-                logger.trace(Hex.bytesToHexString(log_entry));
-                list.add(new IdemixLogEntry(log_entry));
+                exporter.append(card, data, LOG_ENTRY_SIZE * entry);
             }
         }
+    }
 
-        return list;
+    private void readLogEntries(byte start_entry, List<IdemixLogEntry> list)
+    throws CardServiceException {
+        ProtocolResponse response = execute(IdemixSmartcard.getLogCommand(getCardVersion(), start_entry));
+        byte[] data = response.getData();
+        for (int entry = 0; entry < LOG_ENTRIES_PER_APDU
+                && entry + start_entry < LOG_SIZE; entry++) {
+
+            byte[] log_entry = Arrays.copyOfRange(data, LOG_ENTRY_SIZE
+                    * entry, LOG_ENTRY_SIZE * (entry + 1));
+
+            logger.trace(Hex.bytesToHexString(log_entry));
+            list.add(new IdemixLogEntry(log_entry));
+        }
     }
 
     public void setCAKey(RSAPublicKey caKey) throws CardServiceException {
@@ -78,6 +78,17 @@ public class IdemixSmartcard {
 
     private static final Logger logger = LoggerFactory.getLogger(IdemixSmartcard.class);
 
+    /**
+     * Buffer in which the data of a command is encoded, before it is copied
+     * into the APDU.
+     */
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[255];
+        }
+    };
+
     /**
      * AID of the IRMAcard application: ASCII encoding of "IRMAcard".
      */
@@ -94,6 +105,21 @@ public class IdemixSmartcard {
      */
     public static final byte P1_SELECT_BY_NAME = 0x04;
 
+    /**
+     * INStruction to open or close a logical channel.
+     */
+    public static final byte INS_MANAGE_CHANNEL = 0x70;
+
+    /**
+     * P1 parameter to open a logical channel.
+     */
+    public static final byte P1_MANAGE_CHANNEL_OPEN = 0x00;
+
+    /**
+     * P1 parameter to close a logical channel.
+     */
+    public static final byte P1_MANAGE_CHANNEL_CLOSE = (byte) 0x80;
+
 
     /**
      * CLAss to be used for IRMA APDUs.
@@ -388,6 +414,31 @@ public class IdemixSmartcard {
                      new CommandAPDU(ISO7816.CLA_ISO7816,
                                 INS_SELECT_APPLICATION, P1_SELECT_BY_NAME, 0x00, AID_0_7, 256)); // LE == 0 is required.
 
+    /**
+     * Get the APDU command to open a new logical channel, the card responds
+     * with the number of the assigned channel.
+     */
+    public static ProtocolCommand openChannelCommand(CardVersion cv) {
+        return new ProtocolCommand(
+                "openchannel",
+                "Open logical channel",
+                new CommandAPDU(ISO7816.CLA_ISO7816,
+                        INS_MANAGE_CHANNEL, P1_MANAGE_CHANNEL_OPEN, 0x00, 1),
+                new ProtocolErrors(
+                        0x00006881, "No logical channel available."));
+    }
+
+    /**
+     * Get the APDU command to close a logical channel.
+     */
+    public static ProtocolCommand closeChannelCommand(CardVersion cv, int channel) {
+        return new ProtocolCommand(
+                "closechannel",
+                "Close logical channel " + channel,
+                new CommandAPDU(ISO7816.CLA_ISO7816,
+                        INS_MANAGE_CHANNEL, P1_MANAGE_CHANNEL_CLOSE, channel));
+    }
+
     /**
      * Get the APDU commands for setting the specification of
      * a certificate issuance:
@@ -460,16 +511,17 @@ public class IdemixSmartcard {
     	// FIXME: flags set to 0 for now
     	IdemixFlags flags = new IdemixFlags();
 
-		IssuanceSetupData isd = new IssuanceSetupData(cd
-				.getCredentialDescription().getId(),
+		byte[] data = scratch.get();
+		int length = IssuanceSetupData.encode(data, 0,
+				cd.getCredentialDescription().getId(),
 				(short) cd.numberOfAttributes(), flags, cd.getContext(),
-				getTimeStamp());
+				getTimeStamp(), cv);
 
         return new ProtocolCommand(
                                 "start_issuance",
                                 "Start credential issuance.",
                                 new CommandAPDU(
-                                    CLA_IRMACARD, INS_ISSUE_CREDENTIAL, 0x00, 0x00, isd.getBytes(cv)),
+                                    CLA_IRMACARD, INS_ISSUE_CREDENTIAL, 0x00, 0x00, data, 0, length),
                         new ProtocolErrors(
                                     0x00006986,"Credential already issued."));
     }
@@ -479,19 +531,21 @@ public class IdemixSmartcard {
      */
 	public static ProtocolCommand startProofCommand(CardVersion cv,
 			IdemixVerificationDescription vd) {
-		byte[] data = new VerificationSetupData(vd, getTimeStamp())
-				.getBytes(cv);
+		byte[] data = scratch.get();
+		int length = VerificationSetupData.encode(data, 0,
+				vd.getVerificationDescription().getCredentialDescription().getId(),
+				vd.getDisclosureMask(), vd.getContext(), getTimeStamp(), cv);
 
 		return new ProtocolCommand("startprove", "Start credential proof.",
 				new CommandAPDU(CLA_IRMACARD, INS_PROVE_CREDENTIAL, 0x00, 0x00,
-						data), new ProtocolErrors(0x00006A88,
+						data, 0, length), new ProtocolErrors(0x00006A88,
 						"Credential not found."));
 	}
 
     public static ProtocolCommands generateMasterSecretCommand(CardVersion cv) {
         ProtocolCommands commands = new ProtocolCommands();
 
-        if (!cv.newer(new CardVersion(0,7,2))) {
+        if (!cv.newer(CardVersion.VERSION_0_7_2)) {
             commands.add(new ProtocolCommand(
                         "generatesecret",
                         "Generate master secret",
@@ -543,7 +597,7 @@ public class IdemixSmartcard {
     public static ProtocolCommands queryPinCommand(CardVersion cv, byte pinID) {
         ProtocolCommands commands = new ProtocolCommands();
 
-        if (cv.newer(new CardVersion(0, 7, 2))) {
+        if (cv.newer(CardVersion.VERSION_0_7_2)) {
             commands.add(new ProtocolCommand(
                         "querypin",
                         "Query PIN verification status",
@@ -558,7 +612,7 @@ public class IdemixSmartcard {
     public static ProtocolCommands updatePinCommand(CardVersion cv, byte pinID, byte[] oldPin, byte[] newPin) {
         ProtocolCommands commands = new ProtocolCommands();
         byte[] pinBytes;
-        if (cv.newer(new CardVersion(0,7,2))) {
+        if (cv.newer(CardVersion.VERSION_0_7_2)) {
             if (pinID == P2_PIN_ADMIN) {
                 pinBytes = new byte[16];
                 System.arraycopy(oldPin, 0, pinBytes, 0, oldPin.length);
@@ -720,7 +774,7 @@ public class IdemixSmartcard {
 
         BigInteger c = signature_msg.getProofS().get_c();
         BigInteger e_response = signature_msg.getProofS().get_e_response();
-        if (cv.newer(new CardVersion(0,7,2))) {
+        if (cv.newer(CardVersion.VERSION_0_7_2)) {
 	        commands.add(
 	                new ProtocolCommand(
 	                        "proof_c",
@@ -857,13 +911,14 @@ public class IdemixSmartcard {
     }
 
     public static ProtocolCommand selectCredentialCommand(CardVersion cv, short id) {
-        if (cv.newer(new CardVersion(0,7,2))) {
-        	AdminSelect select = new AdminSelect(id);
+        if (cv.newer(CardVersion.VERSION_0_7_2)) {
+            byte[] data = scratch.get();
+            int length = AdminSelect.encode(data, 0, id);
 
             return new ProtocolCommand(
                 "selectcredential",
                 "Select a credential for further modifications",
-                new CommandAPDU(CLA_IRMACARD, INS_ADMIN_CREDENTIAL, 0, 0, select.getBytes()));
+                new CommandAPDU(CLA_IRMACARD, INS_ADMIN_CREDENTIAL, 0, 0, data, 0, length));
         } else {
             return new ProtocolCommand(
                 "selectcredential",
@@ -875,40 +930,84 @@ public class IdemixSmartcard {
     public static ProtocolCommands requestGetAttributesCommands(CardVersion cv, IdemixCredentialDescription cd) {
         ProtocolCommands commands = new ProtocolCommands();
         commands.add(selectCredentialCommand(cv, cd.getCredentialDescription().getId()));
+        addGetAttributeCommands(commands, cd, "");
+        return commands;
+    }
+
+    public static Attributes processGetAttributesCommands(CardVersion cv, IdemixCredentialDescription cd, ProtocolResponses responses) {
+        return processGetAttributeResponses(cd, responses, "");
+    }
+
+    /**
+     * Get the commands to read the attributes of all the given credentials
+     * at once. Each credential is selected in turn, the responses are keyed
+     * per credential so that they can be processed using
+     * {@link #processCardDumpResponses(CardVersion, IdemixCredentialDescription, ProtocolResponses)}.
+     */
+    public static ProtocolCommands requestCardDumpCommands(CardVersion cv, List<IdemixCredentialDescription> cds) {
+        ProtocolCommands commands = new ProtocolCommands();
+        for (IdemixCredentialDescription cd : cds) {
+            short id = cd.getCredentialDescription().getId();
+            String prefix = cardDumpPrefix(id);
+            ProtocolCommand select = selectCredentialCommand(cv, id);
+            commands.add(new ProtocolCommand(
+                prefix + select.getKey(),
+                select.getDescription() + " (id " + id + ")",
+                select.getAPDU()));
+            addGetAttributeCommands(commands, cd, prefix);
+        }
+        return commands;
+    }
+
+    /**
+     * Extract the attributes of a single credential from the responses to
+     * {@link #requestCardDumpCommands(CardVersion, List)}. The credentials
+     * are independent, so they can be processed concurrently.
+     */
+    public static Attributes processCardDumpResponses(CardVersion cv, IdemixCredentialDescription cd, ProtocolResponses responses) {
+        return processGetAttributeResponses(cd, responses,
+                cardDumpPrefix(cd.getCredentialDescription().getId()));
+    }
+
+    private static String cardDumpPrefix(short id) {
+        return "cred_" + id + "_";
+    }
+
+    private static void addGetAttributeCommands(ProtocolCommands commands, IdemixCredentialDescription cd, String prefix) {
         for (int i = 1; i <= cd.numberOfAttributes(); i++) {
             String attrName = cd.getAttributeName(i);
             commands.add(new ProtocolCommand(
-                "attr_" + attrName,
+                prefix + "attr_" + attrName,
                 "Get attribute (@index " + i + ")",
                 new CommandAPDU(CLA_IRMACARD, INS_ADMIN_ATTRIBUTE, i, 0x00)));
         }
-        return commands;
     }
 
-    public static Attributes processGetAttributesCommands(CardVersion cv, IdemixCredentialDescription cd, ProtocolResponses responses) {
+    private static Attributes processGetAttributeResponses(IdemixCredentialDescription cd, ProtocolResponses responses, String prefix) {
 		Attributes attributes = new Attributes();
 		for(int i = 1; i <= cd.numberOfAttributes(); i++) {
 			String attrName = cd.getAttributeName(i);
 			// Be consistent with regular verify and drop leading zeros
 			byte[] attBytes = new BigInteger(1,
-					responses.get("attr_" + attrName).getData()).toByteArray();
+					responses.get(prefix + "attr_" + attrName).getData()).toByteArray();
 			attributes.add(attrName, attBytes);
 		}
 		return attributes;
     }
 
     public static ProtocolCommand removeCredentialCommand(CardVersion cv, short id) {
-        AdminRemove remove_data = new AdminRemove(getTimeStamp());
-        if (cv.newer(new CardVersion(0,7,2))) {
+        byte[] data = scratch.get();
+        int length = AdminRemove.encode(data, 0, getTimeStamp());
+        if (cv.newer(CardVersion.VERSION_0_7_2)) {
             return new ProtocolCommand(
                     "removecredential",
                     "Remove credential (id " + id + ")",
-                    new CommandAPDU(CLA_IRMACARD, INS_ADMIN_REMOVE, 0, 0, remove_data.getBytes()));
+                    new CommandAPDU(CLA_IRMACARD, INS_ADMIN_REMOVE, 0, 0, data, 0, length));
         } else {
             return new ProtocolCommand(
                     "removecredential",
                     "Remove credential (id " + id + ")",
-                    new CommandAPDU(CLA_IRMACARD, INS_ADMIN_REMOVE, id >> 8, id & 0xff, remove_data.getBytes()));
+                    new CommandAPDU(CLA_IRMACARD, INS_ADMIN_REMOVE, id >> 8, id & 0xff, data, 0, length));
         }
     }
 
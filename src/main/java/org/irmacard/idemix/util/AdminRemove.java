@@ -30,8 +30,6 @@
 
 package org.irmacard.idemix.util;
 
-import java.nio.ByteBuffer;
-
 /**
  * Represents the extra data that is sent along with a credential remove
  * command. These data contain a time stamp to update the card's current time
@@ -57,8 +55,35 @@ public class AdminRemove {
 	 * @param data			a byte-encoding of the object
 	 */
 	public AdminRemove(byte[] data) {
-		ByteBuffer buffer = ByteBuffer.wrap(data);
-		timestamp = buffer.getInt();
+		this(data, 0);
+	}
+
+	/**
+	 * Construct an AdminRemove object from its byte-encoding in a buffer.
+	 * @param buffer		a buffer containing the byte-encoding of the object
+	 * @param offset		the offset of the encoding in the buffer
+	 */
+	public AdminRemove(byte[] buffer, int offset) {
+		timestamp = Bytes.getInt(buffer, offset);
+	}
+
+	/**
+	 * Writes the byte-encoding of a credential removal into a buffer.
+	 *
+	 * @return the length of the encoding
+	 */
+	public static int encode(byte[] buffer, int offset, int timestamp) {
+		Bytes.putInt(buffer, offset, timestamp);
+		return SIZE;
+	}
+
+	/**
+	 * Writes the byte-encoding of the object into a buffer.
+	 *
+	 * @return the length of the encoding
+	 */
+	public int writeTo(byte[] buffer, int offset) {
+		return encode(buffer, offset, timestamp);
 	}
 
 	/**
@@ -67,9 +92,9 @@ public class AdminRemove {
 	 * @return the byte-encoding of the object
 	 */
 	public byte[] getBytes() {
-		ByteBuffer buffer = ByteBuffer.allocate(SIZE);
-
-		return buffer.putInt(timestamp).array();
+		byte[] bytes = new byte[SIZE];
+		writeTo(bytes, 0);
+		return bytes;
 	}
 
 	/**
@@ -30,8 +30,6 @@
 
 package org.irmacard.idemix.util;
 
-import java.nio.ByteBuffer;
-
 /**
  * Represents the data that is sent along with a credential select command. This
  * data specifies the credential id.
@@ -54,8 +52,35 @@ public class AdminSelect {
 	 * @param data		a byte-encoding of the object
 	 */
 	public AdminSelect(byte[] data) {
-		ByteBuffer buffer = ByteBuffer.wrap(data);
-		id = buffer.getShort();
+		this(data, 0);
+	}
+
+	/**
+	 * Construct an AdminSelect object from its byte-encoding in a buffer.
+	 * @param buffer	a buffer containing the byte-encoding of the object
+	 * @param offset	the offset of the encoding in the buffer
+	 */
+	public AdminSelect(byte[] buffer, int offset) {
+		id = Bytes.getShort(buffer, offset);
+	}
+
+	/**
+	 * Writes the byte-encoding of a credential select into a buffer.
+	 *
+	 * @return the length of the encoding
+	 */
+	public static int encode(byte[] buffer, int offset, short id) {
+		Bytes.putShort(buffer, offset, id);
+		return SIZE;
+	}
+
+	/**
+	 * Writes the byte-encoding of the object into a buffer.
+	 *
+	 * @return the length of the encoding
+	 */
+	public int writeTo(byte[] buffer, int offset) {
+		return encode(buffer, offset, id);
 	}
 
 	/**
@@ -64,9 +89,9 @@ public class AdminSelect {
 	 * @return the byte-encoding of the object
 	 */
 	public byte[] getBytes() {
-		ByteBuffer buffer = ByteBuffer.allocate(SIZE);
-
-		return buffer.putShort(id).array();
+		byte[] bytes = new byte[SIZE];
+		writeTo(bytes, 0);
+		return bytes;
 	}
 
 	/**
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Big-endian reads and writes of the fields of the command data, directly
+ * on a buffer at a given offset.
+ */
+final class Bytes {
+	private Bytes() {
+	}
+
+	static short getShort(byte[] buffer, int offset) {
+		return (short) (((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff));
+	}
+
+	static int getInt(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+				| ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+	}
+
+	static BigInteger getUnsigned(byte[] buffer, int offset, int length) {
+		return new BigInteger(1, Arrays.copyOfRange(buffer, offset, offset + length));
+	}
+
+	static int putShort(byte[] buffer, int offset, short value) {
+		buffer[offset] = (byte) (value >> 8);
+		buffer[offset + 1] = (byte) value;
+		return offset + 2;
+	}
+
+	static int putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >> 24);
+		buffer[offset + 1] = (byte) (value >> 16);
+		buffer[offset + 2] = (byte) (value >> 8);
+		buffer[offset + 3] = (byte) value;
+		return offset + 4;
+	}
+
+	/**
+	 * Writes a non-negative integer as an unsigned number of exactly the
+	 * given length, padded with leading zeros.
+	 */
+	static int putUnsigned(byte[] buffer, int offset, BigInteger value, int length) {
+		byte[] array = value.toByteArray();
+
+		// Skip the sign byte, if the value fills a whole number of bytes
+		int start = array.length > 1 && array[0] == 0 ? 1 : 0;
+		int count = array.length - start;
+		if (value.signum() < 0 || count > length) {
+			throw new IllegalArgumentException("Value does not fit in " + length + " bytes");
+		}
+
+		Arrays.fill(buffer, offset, offset + length - count, (byte) 0);
+		System.arraycopy(array, start, buffer, offset + length - count, count);
+		return offset + length;
+	}
+}
@@ -31,6 +31,9 @@
 package org.irmacard.idemix.util;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.sf.scuba.util.Hex;
 
@@ -49,6 +52,27 @@ public class CardVersion implements Comparable<CardVersion>, Serializable {
 	private Integer count = null;
 	private byte[] data = null;
 
+	private static final int TAG_FCI = 0x6F;
+	private static final int TAG_PROPRIETARY = 0xA5;
+	private static final int TAG_SEQUENCE = 0x10;
+	private static final int TAG_INTEGER = 0x02;
+	private static final int TAG_UTF8_STRING = 0x0C;
+	private static final int TAG_OCTET_STRING = 0x04;
+
+	/**
+	 * Versions returned by {@link #valueOf(byte[])}, bounded so that cards
+	 * sending arbitrary versions cannot fill the memory.
+	 */
+	private static final int MAX_INTERNED = 64;
+	private static final ConcurrentMap<Encoding, CardVersion> interned =
+			new ConcurrentHashMap<Encoding, CardVersion>();
+
+	/**
+	 * Version 0.7.2, the last version of the card using the original encoding
+	 * of its commands.
+	 */
+	public static final CardVersion VERSION_0_7_2 = new CardVersion(0, 7, 2);
+
 
 	/**
 	 * Constructor which gets all elements as separate variables.
@@ -73,75 +97,116 @@ public class CardVersion implements Comparable<CardVersion>, Serializable {
 	 * Constructor which gets all elements as an ASN.1 encoded bytearray.
 	 *
 	 * @param version
+	 * @throws IllegalArgumentException if the encoding is malformed
 	 */
 	public CardVersion(byte[] version) {
 		// 0.6.1 or older had no versioning
 		if (version == null || version.length == 0) {
-            major = 0;
-            minor = 6;
-            maint = 1;
-            extra = "or older";
-
-        // 0.6.2 - 0.7.2
-        } else if (version.length == 4) {
-            major = version[1];
-            minor = version[2];
-            maint = (int) version[3];
-
-        // 0.8 and newer
-        } else {
-			int i = 6;
-
-			// Major
-			major = version[i++];
-
-			// Minor
-			if (i < version.length && version[i] == 0x02) {
-				i += 2;
-				minor = version[i++];
+			major = 0;
+			minor = 6;
+			maint = 1;
+			extra = "or older";
+
+		// 0.6.2 - 0.7.2
+		} else if (version.length == 4) {
+			major = version[1];
+			minor = version[2];
+			maint = (int) version[3];
+
+		// 0.8 and newer
+		} else {
+			TLVReader fci = new TLVReader(version);
+			if (!fci.find(TAG_FCI)) {
+				throw new IllegalArgumentException("No FCI template in version");
 			}
-
-			// Maintenance
-			if (i < version.length && version[i] == 0x02) {
-				i += 2;
-				maint = (int) version[i++];
+			TLVReader proprietary = fci.enter();
+			if (!proprietary.find(TAG_PROPRIETARY)) {
+				throw new IllegalArgumentException("No proprietary data in FCI");
 			}
-
-			// Build
-			if (i < version.length && version[i] == 0x02) {
-				i += 2;
-				build = (int) version[i++];
+			TLVReader sequence = proprietary.enter();
+			if (!sequence.find(TAG_SEQUENCE)) {
+				throw new IllegalArgumentException("No version in FCI");
 			}
 
-			// Extra
-			if (i < version.length && version[i++] == 0x10) {
-				i += 2;
-				int length = version[i++];
-				byte[] str = new byte[length];
-				System.arraycopy(version, i, str, 0, length);
-				try {
-					extra = new String(str, "UTF-8");
-				} catch (java.io.UnsupportedEncodingException e) {
-					System.err.println(e.getMessage());
-					System.err.println("Apparently UTF-8 is not supported, trying system default charset.");
-					extra = new String(str);
+			TLVReader reader = sequence.enter();
+			if (!reader.next() || reader.getTag() != TAG_INTEGER) {
+				throw new IllegalArgumentException("No major version in FCI");
+			}
+			major = reader.getInt();
+
+			if (reader.peek(TAG_INTEGER)) {
+				minor = reader.getInt();
+				if (reader.peek(TAG_INTEGER)) {
+					maint = reader.getInt();
+					if (reader.peek(TAG_INTEGER)) {
+						build = reader.getInt();
+					}
 				}
-				i += length;
+			}
 
-				// Counter
-				if (i < version.length && version[i] == 0x02) {
-					i += 2;
-					count = (int) version[i++];
+			if (reader.peek(TAG_SEQUENCE)) {
+				TLVReader details = reader.enter();
+				if (details.peek(TAG_UTF8_STRING)) {
+					extra = details.getString();
+				}
+				if (details.peek(TAG_INTEGER)) {
+					count = details.getInt();
 				}
+				if (details.peek(TAG_OCTET_STRING)) {
+					data = details.getBytes();
+				}
+			}
+		}
+	}
 
-				// Extra data
-				if (i < version.length && version[i] == 0x04) {
-					length = version[i++];
-					data = new byte[length];
-					System.arraycopy(version, i, data, 0, length);
+	/**
+	 * Returns the version encoded in the given bytearray. The same instance
+	 * is returned for identical encodings, so that all cards of a version
+	 * share a single object.
+	 *
+	 * @param version
+	 * @throws IllegalArgumentException if the encoding is malformed
+	 */
+	public static CardVersion valueOf(byte[] version) {
+		Encoding key = new Encoding(version == null ? new byte[0] : version);
+		CardVersion cv = interned.get(key);
+		if (cv == null) {
+			cv = new CardVersion(version);
+			if (interned.size() < MAX_INTERNED) {
+				CardVersion existing = interned.putIfAbsent(key.copy(), cv);
+				if (existing != null) {
+					cv = existing;
 				}
 			}
-        }
+		}
+		return cv;
+	}
+
+	/**
+	 * Key for interned versions, which uses the array it wraps as it is.
+	 */
+	private static final class Encoding {
+		private final byte[] bytes;
+		private final int hash;
+
+		Encoding(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		Encoding copy() {
+			return new Encoding(bytes.clone());
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Encoding && Arrays.equals(bytes, ((Encoding) o).bytes);
+		}
 	}
 
 	// Convenience constructors
@@ -200,6 +265,13 @@ public class CardVersion implements Comparable<CardVersion>, Serializable {
 		return version;
 	}
 
+	/**
+	 * Returns the extra version string as it was given, without the counter.
+	 */
+	String getExtraLabel() {
+		return extra;
+	}
+
 	public Type getType() {
 		Type type = Type.RELEASE;
 
@@ -31,14 +31,14 @@
 package org.irmacard.idemix.util;
 
 import java.math.BigInteger;
-import java.nio.ByteBuffer;
-
-import org.irmacard.idemix.IdemixSmartcard;
 
 /**
  * Represents the data that is sent to describe a new issuance. These data
  * describe the credential id, the size of the credential, a time stamp (the
  * card uses it to log the issuance) and the context of this issuance.
+ *
+ * The encoding can be read from and written to a buffer at any offset, such
+ * as that of an APDU, without intermediate arrays.
  */
 public class IssuanceSetupData {
 	// TODO: reference IdemixSystemParameters after fixing dependencies
@@ -49,6 +49,13 @@ public class IssuanceSetupData {
 	public static final int SIZE_TIMESTAMP = 4;
 	public static final int SIZE = SIZE_CRED_ID + SIZE_SIZE + IdemixFlags.SIZE
 			+ SIZE_CONTEXT + SIZE_TIMESTAMP;
+	public static final int SIZE_LEGACY = SIZE_CRED_ID + SIZE_CONTEXT
+			+ SIZE_SIZE + SIZE_TIMESTAMP;
+
+	private static final int OFFSET_SIZE = SIZE_CRED_ID;
+	private static final int OFFSET_FLAGS = OFFSET_SIZE + SIZE_SIZE;
+	private static final int OFFSET_CONTEXT = OFFSET_FLAGS + IdemixFlags.SIZE;
+	private static final int OFFSET_TIMESTAMP = OFFSET_CONTEXT + SIZE_CONTEXT;
 
 	private short id;
 	private short size;
@@ -56,6 +63,10 @@ public class IssuanceSetupData {
 	private BigInteger context;
 	private int timestamp;
 
+	// The encoded context, if constructed from an encoding
+	private byte[] buffer;
+	private int contextOffset;
+
 	/**
 	 * Construct an IssuanceSetupData object by pass its data fields
 	 *
@@ -86,20 +97,76 @@ public class IssuanceSetupData {
 	 *            a byte-encoding of the object
 	 */
 	public IssuanceSetupData(byte[] data) {
-		ByteBuffer buffer = ByteBuffer.wrap(data);
+		this(data, 0);
+	}
 
-		id = buffer.getShort();
-		size = buffer.getShort();
+	/**
+	 * Construct an IssuanceSetupData object from its byte-encoding at the
+	 * given offset in a buffer. The context is only decoded when it is
+	 * requested, so the buffer should not be modified afterwards.
+	 *
+	 * @param buffer
+	 *            a buffer containing the byte-encoding of the object
+	 * @param offset
+	 *            the offset of the encoding in the buffer
+	 */
+	public IssuanceSetupData(byte[] buffer, int offset) {
+		if (offset < 0 || buffer.length - offset < SIZE) {
+			throw new IllegalArgumentException("Encoding too short");
+		}
 
-		byte[] raw_flags = new byte[IdemixFlags.SIZE];
-		buffer.get(raw_flags);
-		flags = new IdemixFlags(raw_flags);
+		id = Bytes.getShort(buffer, offset);
+		size = Bytes.getShort(buffer, offset + OFFSET_SIZE);
+		flags = new IdemixFlags(Bytes.getShort(buffer, offset + OFFSET_FLAGS),
+				buffer[offset + OFFSET_FLAGS + 2]);
+		timestamp = Bytes.getInt(buffer, offset + OFFSET_TIMESTAMP);
 
-		byte[] raw_context = new byte[SIZE_CONTEXT];
-		buffer.get(raw_context);
-		context = new BigInteger(1, raw_context);
+		this.buffer = buffer;
+		this.contextOffset = offset + OFFSET_CONTEXT;
+	}
 
-		timestamp = buffer.getInt();
+	/**
+	 * Writes the byte-encoding appropriate for the given CardVersion of an
+	 * issuance setup into a buffer, without constructing the object first.
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param offset
+	 *            the offset in the buffer at which the encoding starts
+	 * @param cv
+	 *            the card version, or null for the default encoding
+	 * @return the length of the encoding
+	 */
+	public static int encode(byte[] buffer, int offset, short id, short size,
+			IdemixFlags flags, BigInteger context, int timestamp, CardVersion cv) {
+		int i = Bytes.putShort(buffer, offset, id);
+		if (isLegacy(cv)) {
+			i = Bytes.putUnsigned(buffer, i, context, SIZE_CONTEXT);
+			i = Bytes.putShort(buffer, i, size);
+		} else {
+			i = Bytes.putShort(buffer, i, size);
+			i = Bytes.putShort(buffer, i, flags.getPinProtectionMask());
+			buffer[i++] = flags.getRFU();
+			i = Bytes.putUnsigned(buffer, i, context, SIZE_CONTEXT);
+		}
+		i = Bytes.putInt(buffer, i, timestamp);
+		return i - offset;
+	}
+
+	/**
+	 * Writes the byte-encoding of the object appropriate for the given
+	 * CardVersion into a buffer.
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param offset
+	 *            the offset in the buffer at which the encoding starts
+	 * @param cv
+	 *            the card version, or null for the default encoding
+	 * @return the length of the encoding
+	 */
+	public int writeTo(byte[] buffer, int offset, CardVersion cv) {
+		return encode(buffer, offset, id, size, flags, getContext(), timestamp, cv);
 	}
 
 	/**
@@ -108,12 +175,9 @@ public class IssuanceSetupData {
 	 * @return the byte-encoding of the object
 	 */
 	public byte[] getBytes() {
-		ByteBuffer buffer = ByteBuffer.allocate(SIZE);
-
-		return buffer.putShort(id).putShort(size)
-				.put(flags.getFlagBytes())
-				.put(IdemixSmartcard.fixLength(context, SIZE_CONTEXT * 8))
-				.putInt(timestamp).array();
+		byte[] bytes = new byte[SIZE];
+		writeTo(bytes, 0, null);
+		return bytes;
 	}
 
 	/**
@@ -122,12 +186,9 @@ public class IssuanceSetupData {
 	 * @return the legacy byte-encoding of the object
 	 */
 	public byte[] getBytesLegacy() {
-		ByteBuffer buffer = ByteBuffer.allocate(SIZE_CRED_ID + SIZE_CONTEXT + SIZE_SIZE + SIZE_TIMESTAMP);
-
-		return buffer.putShort(id)
-				.put(IdemixSmartcard.fixLength(context, SIZE_CONTEXT * 8))
-				.putShort(size)
-				.putInt(timestamp).array();
+		byte[] bytes = new byte[SIZE_LEGACY];
+		writeTo(bytes, 0, CardVersion.VERSION_0_7_2);
+		return bytes;
 	}
 
 	/**
@@ -139,13 +200,17 @@ public class IssuanceSetupData {
 	 * @return the appropriate byte-encoding.
 	 */
 	public byte[] getBytes(CardVersion cv) {
-		if (cv.newer(new CardVersion(0, 7, 2))) {
-        	return getBytes();
-		} else {
+		if (isLegacy(cv)) {
 			return getBytesLegacy();
+		} else {
+			return getBytes();
 		}
 	}
 
+	private static boolean isLegacy(CardVersion cv) {
+		return cv != null && !cv.newer(CardVersion.VERSION_0_7_2);
+	}
+
 	/**
 	 * Returns the credential id.
 	 *
@@ -180,6 +245,9 @@ public class IssuanceSetupData {
 	 * @return The context
 	 */
 	public BigInteger getContext() {
+		if (context == null) {
+			context = Bytes.getUnsigned(buffer, contextOffset, SIZE_CONTEXT);
+		}
 		return context;
 	}
 
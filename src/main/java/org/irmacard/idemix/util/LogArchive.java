@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a file of log entries written by {@link LogExporter}. The file is
+ * mapped into memory, and the columns of every block are exposed as buffers
+ * of primitives, so that a scan only touches the columns it needs and no
+ * objects are created per entry. For example, counting the verifications of
+ * a credential:
+ *
+ * <pre>
+ * for (LogArchive.Block block : archive.getBlocks()) {
+ *     ByteBuffer actions = block.getActions();
+ *     ShortBuffer credentials = block.getCredentials();
+ *     for (int i = 0; i &lt; block.size(); i++) {
+ *         if (actions.get(i) == LogArchive.ACTION_VERIFY &amp;&amp; credentials.get(i) == id) {
+ *             count++;
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * A block that was only partially written is ignored.
+ */
+public class LogArchive implements Closeable {
+	public static final byte ACTION_ISSUE = LogExporter.ACTION_ISSUE;
+	public static final byte ACTION_VERIFY = LogExporter.ACTION_PROVE;
+	public static final byte ACTION_REMOVE = LogExporter.ACTION_REMOVE;
+
+	private static final long MAX_SEGMENT_SIZE = 1 << 30;
+
+	private final FileChannel channel;
+	private final List<Block> blocks;
+	private final long entries;
+
+	/**
+	 * The entries of a single block, column by column.
+	 */
+	public static class Block {
+		private final int size;
+		private final ByteBuffer data;
+
+		Block(ByteBuffer data, int size) {
+			this.data = data;
+			this.size = size;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/** Returns the numbers of the cards, as given when exporting. */
+		public IntBuffer getCards() {
+			return column(0, 4 * size).asIntBuffer();
+		}
+
+		/** Returns the timestamps, in seconds since the epoch. */
+		public IntBuffer getTimestamps() {
+			return column(4 * size, 4 * size).asIntBuffer();
+		}
+
+		public IntBuffer getTerminals() {
+			return column(8 * size, 4 * size).asIntBuffer();
+		}
+
+		public ShortBuffer getCredentials() {
+			return column(12 * size, 2 * size).asShortBuffer();
+		}
+
+		/** Returns the disclosure masks, which are 0 except for verifications. */
+		public ShortBuffer getDisclosures() {
+			return column(14 * size, 2 * size).asShortBuffer();
+		}
+
+		/** Returns the actions, see the ACTION constants. */
+		public ByteBuffer getActions() {
+			return column(16 * size, size);
+		}
+
+		private ByteBuffer column(int offset, int length) {
+			ByteBuffer column = data.duplicate();
+			column.position(LogExporter.BLOCK_HEADER_SIZE + offset);
+			column.limit(LogExporter.BLOCK_HEADER_SIZE + offset + length);
+			return column.slice();
+		}
+	}
+
+	private LogArchive(FileChannel channel, List<Block> blocks) {
+		this.channel = channel;
+		this.blocks = blocks;
+
+		long total = 0;
+		for (Block block : blocks) {
+			total += block.size();
+		}
+		this.entries = total;
+	}
+
+	/**
+	 * Opens a log export for reading. Only the block headers are read, the
+	 * columns are read by the operating system as they are accessed.
+	 *
+	 * @throws IOException if the file could not be read, or is not a log
+	 *         export
+	 */
+	public static LogArchive open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			List<long[]> layout = new ArrayList<long[]>();
+			scan(channel, layout);
+
+			// Map runs of whole blocks, as a mapping is limited in size
+			List<Block> blocks = new ArrayList<Block>(layout.size());
+			int first = 0;
+			while (first < layout.size()) {
+				long start = layout.get(first)[0];
+				int last = first;
+				while (last + 1 < layout.size()
+						&& blockEnd(layout.get(last + 1)) - start <= MAX_SEGMENT_SIZE) {
+					last++;
+				}
+
+				MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY,
+						start, blockEnd(layout.get(last)) - start);
+				for (int i = first; i <= last; i++) {
+					long[] entry = layout.get(i);
+					ByteBuffer data = segment.duplicate();
+					data.position((int) (entry[0] - start));
+					data.limit((int) (blockEnd(entry) - start));
+					blocks.add(new Block(data.slice(), (int) entry[1]));
+				}
+				first = last + 1;
+			}
+
+			return new LogArchive(channel, Collections.unmodifiableList(blocks));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static long blockEnd(long[] entry) {
+		return entry[0] + LogExporter.blockBytes((int) entry[1]);
+	}
+
+	/**
+	 * Walks the block headers of a log export.
+	 *
+	 * @param layout if not null, receives the offset and number of entries
+	 *        of every complete block
+	 * @return the end of the last complete block
+	 * @throws IOException if the file is not a log export
+	 */
+	static long scan(FileChannel channel, List<long[]> layout) throws IOException {
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(LogExporter.HEADER_SIZE);
+		if (size < LogExporter.HEADER_SIZE) {
+			throw new IOException("Not a log export");
+		}
+		readFully(channel, header, 0);
+		if (header.getInt(0) != LogExporter.MAGIC) {
+			throw new IOException("Not a log export");
+		}
+		if (header.getInt(4) != LogExporter.VERSION) {
+			throw new IOException("Unsupported log export version " + header.getInt(4));
+		}
+
+		long position = LogExporter.HEADER_SIZE;
+		ByteBuffer blockHeader = ByteBuffer.allocate(LogExporter.BLOCK_HEADER_SIZE);
+		while (position + LogExporter.BLOCK_HEADER_SIZE <= size) {
+			blockHeader.clear();
+			readFully(channel, blockHeader, position);
+			int entries = blockHeader.getInt(4);
+			if (blockHeader.getInt(0) != LogExporter.BLOCK_MARK || entries <= 0
+					|| entries > (Integer.MAX_VALUE - LogExporter.BLOCK_HEADER_SIZE) / 32) {
+				throw new IOException("Corrupt block at " + position);
+			}
+
+			long end = position + LogExporter.blockBytes(entries);
+			if (end > size) {
+				break;
+			}
+			if (layout != null) {
+				layout.add(new long[] { position, entries });
+			}
+			position = end;
+		}
+		return position;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
+
+	public List<Block> getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Returns the total number of entries in the archive.
+	 */
+	public long size() {
+		return entries;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends the log entries of many cards to a columnar file, to be read with
+ * {@link LogArchive}. Entries are collected in blocks; every block stores
+ * each field of its entries as a separate column of primitives:
+ *
+ * <pre>
+ *   header:      mark (4), number of entries n (4), reserved (8)
+ *   card:        n ints, the number given by the caller
+ *   timestamp:   n ints, seconds since the epoch
+ *   terminal:    n ints
+ *   credential:  n shorts
+ *   disclosure:  n shorts, the disclosure mask of verifications
+ *   action:      n bytes, as logged by the card
+ *   padding to a multiple of 8 bytes
+ * </pre>
+ *
+ * Empty entries (of action NONE) are skipped. A block is written when it is
+ * full, or on {@link #flush()}. Opening an existing file appends to it,
+ * after discarding a block that was only partially written.
+ */
+public class LogExporter implements Flushable, Closeable {
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	static final int MAGIC = 0x49524D4C; // "IRML"
+	static final int VERSION = 1;
+	static final int BLOCK_MARK = 0x424C4B31; // "BLK1"
+	static final int HEADER_SIZE = 16;
+	static final int BLOCK_HEADER_SIZE = 16;
+
+	static final byte ACTION_NONE = 0x00;
+	static final byte ACTION_ISSUE = 0x01;
+	static final byte ACTION_PROVE = 0x02;
+	static final byte ACTION_REMOVE = 0x03;
+
+	// Offsets in the encoding of IdemixLogEntry
+	private static final int OFFSET_TERMINAL = 4;
+	private static final int OFFSET_ACTION = 8;
+	private static final int OFFSET_CREDENTIAL = 9;
+	private static final int OFFSET_DISCLOSE = 11;
+
+	private final FileChannel channel;
+	private final ByteBuffer block;
+	private long position;
+	private long exported;
+
+	private final int[] cards;
+	private final int[] timestamps;
+	private final int[] terminals;
+	private final short[] credentials;
+	private final short[] disclosures;
+	private final byte[] actions;
+	private int count;
+
+	private LogExporter(FileChannel channel, long position, int blockSize) {
+		this.channel = channel;
+		this.position = position;
+		this.block = ByteBuffer.allocateDirect(blockBytes(blockSize));
+
+		cards = new int[blockSize];
+		timestamps = new int[blockSize];
+		terminals = new int[blockSize];
+		credentials = new short[blockSize];
+		disclosures = new short[blockSize];
+		actions = new byte[blockSize];
+	}
+
+	public static LogExporter open(Path path) throws IOException {
+		return open(path, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Opens a file for appending log entries, creating it if it does not
+	 * exist.
+	 *
+	 * @param path the location of the file
+	 * @param blockSize the maximum number of entries in a block
+	 * @throws IOException if the file could not be opened, or is not a log
+	 *         export
+	 */
+	public static LogExporter open(Path path, int blockSize) throws IOException {
+		if (blockSize <= 0 || blockSize > (Integer.MAX_VALUE - BLOCK_HEADER_SIZE) / 32) {
+			throw new IllegalArgumentException("Invalid block size " + blockSize);
+		}
+
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long position;
+			if (channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION);
+				header.rewind();
+				channel.write(header, 0);
+				position = HEADER_SIZE;
+			} else {
+				position = LogArchive.scan(channel, null);
+				channel.truncate(position);
+			}
+			return new LogExporter(channel, position, blockSize);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends an entry in the encoding of {@link IdemixLogEntry}, as found in
+	 * the response to a log command, without decoding it into an object.
+	 *
+	 * @param card the number of the card the entry was read from
+	 * @param buffer the buffer holding the encoded entry
+	 * @param offset the offset of the entry in the buffer
+	 */
+	public void append(int card, byte[] buffer, int offset) throws IOException {
+		byte action = buffer[offset + OFFSET_ACTION];
+		if (action == ACTION_NONE) {
+			return;
+		}
+
+		add(card, Bytes.getInt(buffer, offset),
+				Bytes.getInt(buffer, offset + OFFSET_TERMINAL), action,
+				Bytes.getShort(buffer, offset + OFFSET_CREDENTIAL),
+				action == ACTION_PROVE ? Bytes.getShort(buffer, offset + OFFSET_DISCLOSE) : 0);
+	}
+
+	public void append(int card, IdemixLogEntry entry) throws IOException {
+		byte action;
+		switch (entry.getAction()) {
+		case ISSUE:
+			action = ACTION_ISSUE;
+			break;
+		case VERIFY:
+			action = ACTION_PROVE;
+			break;
+		case REMOVE:
+			action = ACTION_REMOVE;
+			break;
+		default:
+			return;
+		}
+
+		byte[] terminal = entry.getTerminal();
+		add(card, (int) (entry.getTimestamp().getTime() / 1000),
+				terminal == null ? 0 : Bytes.getInt(terminal, 0), action,
+				entry.getCredential(), entry.getDisclose());
+	}
+
+	public void append(int card, List<IdemixLogEntry> entries) throws IOException {
+		for (IdemixLogEntry entry : entries) {
+			append(card, entry);
+		}
+	}
+
+	private void add(int card, int timestamp, int terminal, byte action,
+			short credential, short disclose) throws IOException {
+		cards[count] = card;
+		timestamps[count] = timestamp;
+		terminals[count] = terminal;
+		actions[count] = action;
+		credentials[count] = credential;
+		disclosures[count] = disclose;
+
+		if (++count == cards.length) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Returns the number of entries appended since the file was opened.
+	 */
+	public long getExported() {
+		return exported + count;
+	}
+
+	/**
+	 * Writes the entries appended so far as a (possibly smaller) block.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			writeBlock();
+		}
+		channel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		block.clear();
+		block.putInt(BLOCK_MARK).putInt(count).putLong(0);
+		block.asIntBuffer().put(cards, 0, count);
+		block.position(block.position() + 4 * count);
+		block.asIntBuffer().put(timestamps, 0, count);
+		block.position(block.position() + 4 * count);
+		block.asIntBuffer().put(terminals, 0, count);
+		block.position(block.position() + 4 * count);
+		block.asShortBuffer().put(credentials, 0, count);
+		block.position(block.position() + 2 * count);
+		block.asShortBuffer().put(disclosures, 0, count);
+		block.position(block.position() + 2 * count);
+		block.put(actions, 0, count);
+		while (block.position() < blockBytes(count)) {
+			block.put((byte) 0);
+		}
+		block.flip();
+
+		while (block.hasRemaining()) {
+			position += channel.write(block, position);
+		}
+		exported += count;
+		count = 0;
+	}
+
+	/**
+	 * Returns the size in bytes of a block of the given number of entries.
+	 */
+	static int blockBytes(int entries) {
+		return (BLOCK_HEADER_SIZE + 17 * entries + 7) & ~7;
+	}
+}
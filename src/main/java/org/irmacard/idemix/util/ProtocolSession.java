@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.math.BigInteger;
+
+import org.irmacard.credentials.idemix.descriptions.IdemixCredentialDescription;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.DescriptionStore;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.credentials.info.IssuerIdentifier;
+import org.irmacard.credentials.info.VerificationDescription;
+
+/**
+ * The state a terminal has to keep between the rounds of an asynchronous
+ * issuance or verification: which description (of which scheme manager) is
+ * used, the nonce, the version of the card and the current round. Using
+ * {@link SessionTokens} a session can be handed to the client as a token and
+ * restored from it by any server, instead of being kept in memory.
+ */
+public class ProtocolSession {
+	public enum Type { ISSUANCE, VERIFICATION };
+
+	private final Type type;
+	private final String schemeManager;
+	private final String owner;
+	private final String name;
+	private final BigInteger nonce;
+	private final CardVersion cardVersion;
+	private final int round;
+	private final long created;
+
+	/**
+	 * Constructs a session.
+	 *
+	 * @param type		issuance or verification
+	 * @param schemeManager	the scheme manager of the description
+	 * @param owner		the issuer or verifier of the description
+	 * @param name		the name of the credential or the verification
+	 * @param nonce		the nonce used in the session
+	 * @param cv		the version of the card
+	 * @param round		the number of completed rounds
+	 * @param created	the time (seconds since the epoch) the session started
+	 */
+	public ProtocolSession(Type type, String schemeManager, String owner,
+			String name, BigInteger nonce, CardVersion cv, int round, long created) {
+		this.type = type;
+		this.schemeManager = schemeManager;
+		this.owner = owner;
+		this.name = name;
+		this.nonce = nonce;
+		this.cardVersion = cv;
+		this.round = round;
+		this.created = created;
+	}
+
+	public static ProtocolSession forIssuance(CardVersion cv,
+			IdemixCredentialDescription icd, BigInteger nonce) {
+		CredentialDescription cd = icd.getCredentialDescription();
+		return new ProtocolSession(Type.ISSUANCE,
+				cd.getIssuerIdentifier().getSchemeManagerName(), cd.getIssuerID(),
+				cd.getCredentialID(), nonce, cv, 0, now());
+	}
+
+	public static ProtocolSession forVerification(CardVersion cv,
+			IdemixVerificationDescription vd, BigInteger nonce) {
+		// The verifier belongs to the scheme manager of the credential
+		VerificationDescription desc = vd.getVerificationDescription();
+		return new ProtocolSession(Type.VERIFICATION,
+				desc.getCredentialDescription().getIssuerIdentifier().getSchemeManagerName(),
+				desc.getVerifierID(), desc.getVerificationID(), nonce, cv, 0, now());
+	}
+
+	/**
+	 * Returns the session as it is after completing the current round.
+	 */
+	public ProtocolSession nextRound() {
+		return new ProtocolSession(type, schemeManager, owner, name, nonce,
+				cardVersion, round + 1, created);
+	}
+
+	public IdemixCredentialDescription getCredentialDescription() throws InfoException {
+		if (type != Type.ISSUANCE) {
+			throw new IllegalStateException("Not an issuance session");
+		}
+
+		CredentialDescription cd = DescriptionStore.getInstance()
+				.getCredentialDescriptionByName(schemeManager, owner, name);
+		if (cd == null) {
+			throw new InfoException("Unknown credential " + schemeManager + "."
+					+ owner + "." + name);
+		}
+		return new IdemixCredentialDescription(cd);
+	}
+
+	public IdemixVerificationDescription getVerificationDescription() throws InfoException {
+		if (type != Type.VERIFICATION) {
+			throw new IllegalStateException("Not a verification session");
+		}
+
+		return new IdemixVerificationDescription(
+				new IssuerIdentifier(schemeManager, owner), name);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getSchemeManager() {
+		return schemeManager;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public BigInteger getNonce() {
+		return nonce;
+	}
+
+	public CardVersion getCardVersion() {
+		return cardVersion;
+	}
+
+	public int getRound() {
+		return round;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	static long now() {
+		return System.currentTimeMillis() / 1000;
+	}
+}
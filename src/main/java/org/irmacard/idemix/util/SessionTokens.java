@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Converts {@link ProtocolSession}s to compact tokens and back. A token holds
+ * all the state of the session, authenticated with an HMAC under a key that
+ * is shared by the servers, so that any of them can resume the session. A
+ * verification token takes about 90 characters.
+ *
+ * Tokens are not encrypted: the client can read the nonce and the names of
+ * the scheme manager and the description, which it would see anyway while
+ * running the protocol.
+ * Tokens are not single-use either. A server that needs to prevent a round
+ * from being replayed should remember the tokens it saw until they expire.
+ */
+public class SessionTokens {
+	private static final byte VERSION = 2;
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int MAC_SIZE = 16;
+
+	/**
+	 * A fixed header of 10 bytes, up to 3 optional version numbers, and four
+	 * strings and the nonce of at most 256 bytes each
+	 */
+	private static final int MAX_SIZE = 13 + 5 * 256 + MAC_SIZE;
+	private static final String CHARSET = "UTF-8";
+
+	private static final int HAS_MAINTENANCE = 0x01;
+	private static final int HAS_BUILD = 0x02;
+	private static final int HAS_COUNTER = 0x04;
+	private static final int HAS_EXTRA = 0x08;
+
+	private static final char[] ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+			.toCharArray();
+
+	private final SecretKeySpec key;
+	private final long maxAge;
+
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance(ALGORITHM);
+				mac.init(key);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * Thrown when a token is malformed, was not created with the same key, or
+	 * has expired.
+	 */
+	public static class InvalidTokenException extends Exception {
+		private static final long serialVersionUID = -2811734406262325043L;
+
+		public InvalidTokenException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * @param key		the key used to authenticate the tokens, at least 16 bytes
+	 * @param maxAge	how long after the start of a session its tokens are accepted
+	 * @param unit		the unit of maxAge
+	 */
+	public SessionTokens(byte[] key, long maxAge, TimeUnit unit) {
+		if (key == null || key.length < 16) {
+			throw new IllegalArgumentException("The key should be at least 16 bytes");
+		}
+
+		this.key = new SecretKeySpec(key, ALGORITHM);
+		this.maxAge = unit.toSeconds(maxAge);
+	}
+
+	public String encode(ProtocolSession session) {
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_SIZE);
+
+		buffer.put(VERSION);
+		buffer.put((byte) session.getType().ordinal());
+		buffer.put((byte) session.getRound());
+		buffer.putInt((int) session.getCreated());
+
+		CardVersion cv = session.getCardVersion();
+		int flags = (cv.getMaintenance() != null ? HAS_MAINTENANCE : 0)
+				| (cv.getBuild() != null ? HAS_BUILD : 0)
+				| (cv.getCounter() != null ? HAS_COUNTER : 0)
+				| (cv.getExtraLabel() != null ? HAS_EXTRA : 0);
+		buffer.put((byte) cv.getMajor());
+		buffer.put((byte) cv.getMinor());
+		buffer.put((byte) flags);
+		if (cv.getMaintenance() != null) {
+			buffer.put(cv.getMaintenance().byteValue());
+		}
+		if (cv.getBuild() != null) {
+			buffer.put(cv.getBuild().byteValue());
+		}
+		if (cv.getCounter() != null) {
+			buffer.put(cv.getCounter().byteValue());
+		}
+		if (cv.getExtraLabel() != null) {
+			putString(buffer, cv.getExtraLabel());
+		}
+
+		putString(buffer, session.getSchemeManager());
+		putString(buffer, session.getOwner());
+		putString(buffer, session.getName());
+
+		byte[] nonce = session.getNonce().toByteArray();
+		if (nonce.length > 0xff) {
+			throw new IllegalArgumentException("Nonce too long for a token");
+		}
+		buffer.put((byte) nonce.length);
+		buffer.put(nonce);
+
+		Mac mac = macs.get();
+		mac.update(buffer.array(), 0, buffer.position());
+		buffer.put(mac.doFinal(), 0, MAC_SIZE);
+
+		return toBase64(buffer.array(), buffer.position());
+	}
+
+	public ProtocolSession decode(String token) throws InvalidTokenException {
+		byte[] data = fromBase64(token);
+		if (data.length <= MAC_SIZE) {
+			throw new InvalidTokenException("Token too short");
+		}
+
+		int length = data.length - MAC_SIZE;
+		Mac mac = macs.get();
+		mac.update(data, 0, length);
+		byte[] expected = Arrays.copyOf(mac.doFinal(), MAC_SIZE);
+		if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(data, length, data.length))) {
+			throw new InvalidTokenException("Token not authentic");
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+		try {
+			if (buffer.get() != VERSION) {
+				throw new InvalidTokenException("Unsupported token version");
+			}
+
+			int type = buffer.get();
+			if (type < 0 || type >= ProtocolSession.Type.values().length) {
+				throw new InvalidTokenException("Unknown session type");
+			}
+			int round = buffer.get() & 0xff;
+			long created = buffer.getInt() & 0xffffffffL;
+			if (ProtocolSession.now() - created > maxAge) {
+				throw new InvalidTokenException("Token expired");
+			}
+
+			int major = buffer.get();
+			int minor = buffer.get();
+			int flags = buffer.get();
+			Integer maintenance = (flags & HAS_MAINTENANCE) != 0 ? (int) buffer.get() : null;
+			Integer build = (flags & HAS_BUILD) != 0 ? (int) buffer.get() : null;
+			Integer counter = (flags & HAS_COUNTER) != 0 ? (int) buffer.get() : null;
+			String extra = (flags & HAS_EXTRA) != 0 ? getString(buffer) : null;
+			CardVersion cv = new CardVersion(major, minor, maintenance, build, extra, counter);
+
+			String schemeManager = getString(buffer);
+			String owner = getString(buffer);
+			String name = getString(buffer);
+
+			byte[] nonce = new byte[buffer.get() & 0xff];
+			buffer.get(nonce);
+
+			if (buffer.hasRemaining()) {
+				throw new InvalidTokenException("Trailing data in token");
+			}
+
+			return new ProtocolSession(ProtocolSession.Type.values()[type],
+					schemeManager, owner, name, new BigInteger(nonce), cv, round, created);
+		} catch (BufferUnderflowException e) {
+			throw new InvalidTokenException("Token truncated");
+		}
+	}
+
+	private static void putString(ByteBuffer buffer, String value) {
+		try {
+			byte[] bytes = value.getBytes(CHARSET);
+			if (bytes.length > 0xff) {
+				throw new IllegalArgumentException("String too long for a token: " + value);
+			}
+			buffer.put((byte) bytes.length);
+			buffer.put(bytes);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.get() & 0xff];
+		buffer.get(bytes);
+		try {
+			return new String(bytes, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Encodes in URL-safe base64 without padding, so that tokens can be used
+	 * in URLs and headers as they are.
+	 */
+	static String toBase64(byte[] data, int length) {
+		StringBuilder builder = new StringBuilder((length * 4 + 2) / 3);
+		for (int i = 0; i < length; i += 3) {
+			int remaining = Math.min(3, length - i);
+			int block = (data[i] & 0xff) << 16;
+			if (remaining > 1) {
+				block |= (data[i + 1] & 0xff) << 8;
+			}
+			if (remaining > 2) {
+				block |= data[i + 2] & 0xff;
+			}
+
+			for (int j = 0; j <= remaining; j++) {
+				builder.append(ALPHABET[(block >> (18 - 6 * j)) & 0x3f]);
+			}
+		}
+		return builder.toString();
+	}
+
+	static byte[] fromBase64(String token) throws InvalidTokenException {
+		if (token == null || token.length() % 4 == 1) {
+			throw new InvalidTokenException("Malformed token");
+		}
+
+		byte[] data = new byte[token.length() * 3 / 4];
+		int block = 0, bits = 0, index = 0;
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			int value;
+			if (c >= 'A' && c <= 'Z') {
+				value = c - 'A';
+			} else if (c >= 'a' && c <= 'z') {
+				value = c - 'a' + 26;
+			} else if (c >= '0' && c <= '9') {
+				value = c - '0' + 52;
+			} else if (c == '-') {
+				value = 62;
+			} else if (c == '_') {
+				value = 63;
+			} else {
+				throw new InvalidTokenException("Malformed token");
+			}
+
+			block = (block << 6) | value;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				data[index++] = (byte) (block >> bits);
+			}
+		}
+		return data;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads BER-TLV encoded data in place. The reader walks over the elements on
+ * a single level of the encoding; {@link #enter()} returns a reader for the
+ * value of the current element. Values are only copied when they are
+ * converted, using {@link #getString()} or {@link #getBytes()}.
+ */
+public class TLVReader {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] buffer;
+	private final int end;
+
+	private int position;
+	private int tag = -1;
+	private int valueOffset;
+	private int valueLength;
+
+	public TLVReader(byte[] buffer) {
+		this(buffer, 0, buffer.length);
+	}
+
+	public TLVReader(byte[] buffer, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > buffer.length) {
+			throw new IllegalArgumentException("Range outside of buffer");
+		}
+
+		this.buffer = buffer;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	/**
+	 * Moves to the next element.
+	 *
+	 * @return false if there are no more elements on this level
+	 * @throws IllegalArgumentException if the element is malformed
+	 */
+	public boolean next() {
+		if (position >= end) {
+			tag = -1;
+			return false;
+		}
+
+		int i = position;
+		int value = buffer[i++] & 0xff;
+		if ((value & 0x1f) == 0x1f) {
+			// Subsequent tag bytes have the high bit set, except the last
+			do {
+				if (i >= end || value > 0xffffff) {
+					throw new IllegalArgumentException("Malformed tag at " + position);
+				}
+				value = (value << 8) | (buffer[i] & 0xff);
+			} while ((buffer[i++] & 0x80) != 0);
+		}
+
+		if (i >= end) {
+			throw new IllegalArgumentException("Missing length at " + position);
+		}
+		int length = buffer[i++] & 0xff;
+		if (length > 0x80) {
+			int count = length & 0x7f;
+			if (count > 3 || i + count > end) {
+				throw new IllegalArgumentException("Unsupported length at " + position);
+			}
+			length = 0;
+			while (count-- > 0) {
+				length = (length << 8) | (buffer[i++] & 0xff);
+			}
+		} else if (length == 0x80) {
+			throw new IllegalArgumentException("Indefinite length at " + position);
+		}
+
+		if (length > end - i) {
+			throw new IllegalArgumentException("Value exceeds data at " + position);
+		}
+
+		tag = value;
+		valueOffset = i;
+		valueLength = length;
+		position = i + length;
+		return true;
+	}
+
+	/**
+	 * Moves forward to the next element with the given tag.
+	 *
+	 * @return false if there is no such element on this level
+	 */
+	public boolean find(int tag) {
+		while (next()) {
+			if (this.tag == tag) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the current element has the given tag, without moving
+	 * past it otherwise.
+	 */
+	public boolean peek(int tag) {
+		int start = position;
+		if (next() && this.tag == tag) {
+			return true;
+		}
+		position = start;
+		this.tag = -1;
+		return false;
+	}
+
+	/**
+	 * Returns a reader over the value of the current element.
+	 */
+	public TLVReader enter() {
+		checkElement();
+		return new TLVReader(buffer, valueOffset, valueLength);
+	}
+
+	public int getTag() {
+		checkElement();
+		return tag;
+	}
+
+	public int getLength() {
+		checkElement();
+		return valueLength;
+	}
+
+	public int getValueOffset() {
+		checkElement();
+		return valueOffset;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the value of the current element as a signed integer.
+	 */
+	public int getInt() {
+		checkElement();
+		if (valueLength < 1 || valueLength > 4) {
+			throw new IllegalArgumentException("Unsupported integer length " + valueLength);
+		}
+
+		int value = buffer[valueOffset];
+		for (int i = 1; i < valueLength; i++) {
+			value = (value << 8) | (buffer[valueOffset + i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the value of the current element as a UTF-8 string.
+	 */
+	public String getString() {
+		checkElement();
+		return new String(buffer, valueOffset, valueLength, UTF8);
+	}
+
+	/**
+	 * Returns a copy of the value of the current element.
+	 */
+	public byte[] getBytes() {
+		checkElement();
+		return Arrays.copyOfRange(buffer, valueOffset, valueOffset + valueLength);
+	}
+
+	private void checkElement() {
+		if (tag < 0) {
+			throw new IllegalStateException("No current element");
+		}
+	}
+}
@@ -31,11 +31,15 @@
 package org.irmacard.idemix.util;
 
 import java.math.BigInteger;
-import java.nio.ByteBuffer;
 
 import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
-import org.irmacard.idemix.IdemixSmartcard;
 
+/**
+ * Represents the data that is sent to start a proof: the credential id, the
+ * disclosure mask, the context and a time stamp. The encoding can be read
+ * from and written to a buffer at any offset, such as that of an APDU,
+ * without intermediate arrays.
+ */
 public class VerificationSetupData {
 	// TODO: reference IdemixSystemParameters after fixing dependencies
 	// TODO: in fact, this depends on the specific parameter set
@@ -47,11 +51,19 @@ public class VerificationSetupData {
 	public static final int SIZE = SIZE_CRED_ID + SIZE_ATTRIBUTE_MASK
 			+ SIZE_CONTEXT + SIZE_TIMESTAMP;
 
+	private static final int OFFSET_MASK = SIZE_CRED_ID;
+	private static final int OFFSET_CONTEXT = OFFSET_MASK + SIZE_ATTRIBUTE_MASK;
+	private static final int OFFSET_TIMESTAMP = OFFSET_CONTEXT + SIZE_CONTEXT;
+
 	private short cred_id;
 	private short mask;
 	private BigInteger context;
 	private int timestamp;
 
+	// The encoded context, if constructed from an encoding
+	private byte[] buffer;
+	private int contextOffset;
+
 	public VerificationSetupData(short cred_id, short mask, BigInteger context, int timestamp) {
 		this.cred_id = cred_id;
 		this.mask = mask;
@@ -67,30 +79,62 @@ public class VerificationSetupData {
 	}
 
 	public VerificationSetupData(byte[] data) {
-		ByteBuffer buffer = ByteBuffer.wrap(data);
+		this(data, 0);
+	}
 
-		cred_id = buffer.getShort();
-		mask = buffer.getShort();
+	/**
+	 * Reads the fields from the encoding at the given offset in a buffer. The
+	 * context is only decoded when it is requested, so the buffer should not
+	 * be modified afterwards.
+	 */
+	public VerificationSetupData(byte[] buffer, int offset) {
+		if (offset < 0 || buffer.length - offset < SIZE) {
+			throw new IllegalArgumentException("Encoding too short");
+		}
 
-		byte[] raw_context = new byte[SIZE_CONTEXT];
-		buffer.get(raw_context);
-		context = new BigInteger(1, raw_context);
+		cred_id = Bytes.getShort(buffer, offset);
+		mask = Bytes.getShort(buffer, offset + OFFSET_MASK);
+		timestamp = Bytes.getInt(buffer, offset + OFFSET_TIMESTAMP);
 
-		timestamp = buffer.getInt();
+		this.buffer = buffer;
+		this.contextOffset = offset + OFFSET_CONTEXT;
 	}
 
-	public byte[] getBytes(CardVersion cv) {
-		ByteBuffer buffer = ByteBuffer.allocate(SIZE);
-
-		if (cv == null || cv.newer(new CardVersion(0, 7, 2))) {
-			return buffer.putShort(cred_id).putShort(mask)
-					.put(IdemixSmartcard.fixLength(context, SIZE_CONTEXT * 8))
-					.putInt(timestamp).array();
+	/**
+	 * Writes the encoding of a verification setup for the given card version
+	 * (null for the current encoding) into a buffer, without constructing
+	 * the object first.
+	 *
+	 * @return the length of the encoding
+	 */
+	public static int encode(byte[] buffer, int offset, short cred_id, short mask,
+			BigInteger context, int timestamp, CardVersion cv) {
+		int i = Bytes.putShort(buffer, offset, cred_id);
+		if (cv == null || cv.newer(CardVersion.VERSION_0_7_2)) {
+			i = Bytes.putShort(buffer, i, mask);
+			i = Bytes.putUnsigned(buffer, i, context, SIZE_CONTEXT);
 		} else {
-			return buffer.putShort(cred_id)
-					.put(IdemixSmartcard.fixLength(context, SIZE_CONTEXT * 8))
-					.putShort(mask).putInt(timestamp).array();
+			i = Bytes.putUnsigned(buffer, i, context, SIZE_CONTEXT);
+			i = Bytes.putShort(buffer, i, mask);
 		}
+		i = Bytes.putInt(buffer, i, timestamp);
+		return i - offset;
+	}
+
+	/**
+	 * Writes the encoding of the object for the given card version (null for
+	 * the current encoding) into a buffer.
+	 *
+	 * @return the length of the encoding
+	 */
+	public int writeTo(byte[] buffer, int offset, CardVersion cv) {
+		return encode(buffer, offset, cred_id, mask, getContext(), timestamp, cv);
+	}
+
+	public byte[] getBytes(CardVersion cv) {
+		byte[] bytes = new byte[SIZE];
+		writeTo(bytes, 0, cv);
+		return bytes;
 	}
 
 	public byte[] getBytes() {
@@ -106,6 +150,9 @@ public class VerificationSetupData {
 	}
 
 	public BigInteger getContext() {
+		if (context == null) {
+			context = Bytes.getUnsigned(buffer, contextOffset, SIZE_CONTEXT);
+		}
 		return context;
 	}
 
@@ -119,6 +166,6 @@ public class VerificationSetupData {
 
 	public String toString() {
 		return "VerificationSetup: id=" + cred_id + " mask=" + mask
-				+ " timestamp=" + timestamp + " context=" + context;
+				+ " timestamp=" + timestamp + " context=" + getContext();
 	}
 }
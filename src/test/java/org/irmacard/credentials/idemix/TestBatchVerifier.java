@@ -0,0 +1,155 @@
+package org.irmacard.credentials.idemix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.irmacard.credentials.Attributes;
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.info.IdemixKeyStore;
+import org.irmacard.credentials.idemix.info.IdemixKeyStoreDeserializer;
+import org.irmacard.credentials.idemix.smartcard.PinCode;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.DescriptionStore;
+import org.irmacard.credentials.info.DescriptionStoreDeserializer;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.credentials.info.IssuerIdentifier;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardVersion;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+public class TestBatchVerifier {
+    private static IdemixVerificationDescription vd;
+    private static IdemixService service;
+
+    @BeforeClass
+    public static void issueCredential() throws InfoException, CardServiceException,
+            CredentialsException {
+        URI core = new File(System.getProperty("user.dir")).toURI().resolve(
+                "irma_configuration/");
+        DescriptionStore.initialize(new DescriptionStoreDeserializer(core));
+        IdemixKeyStore.initialize(new IdemixKeyStoreDeserializer(core));
+        CredentialDescription cd = DescriptionStore.getInstance().getCredentialDescriptionByName(
+                TestIRMACredential.schemeManager, "Surfnet", "root");
+        vd = new IdemixVerificationDescription(new IssuerIdentifier(
+                TestIRMACredential.schemeManager, "Surfnet"), "rootAll");
+
+        service = new IdemixService(new SmartCardEmulatorService());
+        IdemixCredentials ic = new IdemixCredentials(service);
+        ic.connect();
+        service.sendCredentialPin(PinCode.DEFAULT_CRED_PIN);
+
+        Attributes attributes = new Attributes();
+        attributes.add("userID", "s1234567@student.ru.nl".getBytes());
+        attributes.add("securityHash", "DEADBEEF".getBytes());
+        ic.issue(cd, IdemixKeyStore.getInstance().getSecretKey(cd), attributes, null);
+    }
+
+    private static BatchVerifier.Request request(boolean valid) throws CardServiceException {
+        CardVersion cv = service.getCardVersion();
+        BigInteger nonce = vd.generateNonce();
+        ProtocolResponses responses = service.execute(
+                IdemixSmartcard.buildProofCommands(cv, nonce, vd));
+
+        // A proof does not verify against another nonce than it was built for
+        return new BatchVerifier.Request(vd, valid ? nonce : nonce.add(BigInteger.ONE),
+                responses, cv);
+    }
+
+    @Test
+    public void testMixedBatch() throws CardServiceException, InterruptedException,
+            ExecutionException {
+        List<BatchVerifier.Request> requests = new ArrayList<BatchVerifier.Request>();
+        for (int i = 0; i < 6; i++) {
+            requests.add(request(i % 3 != 0));
+        }
+
+        BatchVerifier verifier = new BatchVerifier();
+        try {
+            List<Future<Attributes>> futures = verifier.submitAll(requests);
+            for (int i = 0; i < futures.size(); i++) {
+                Attributes attributes = futures.get(i).get();
+                if (i % 3 != 0) {
+                    assertNotNull(attributes);
+                    assertEquals("s1234567@student.ru.nl",
+                            new String(attributes.get("userID")));
+                } else {
+                    assertNull(attributes);
+                }
+            }
+
+            assertEquals(6, verifier.getSubmitted());
+            assertEquals(4, verifier.getVerified());
+            assertEquals(2, verifier.getRejected());
+            assertEquals(0, verifier.getFailed());
+            assertEquals(6, verifier.getCompleted());
+            assertTrue(verifier.getThroughput() > 0);
+        } finally {
+            verifier.close();
+        }
+    }
+
+    @Test
+    public void testFailurePropagates() throws InterruptedException {
+        BatchVerifier verifier = new BatchVerifier();
+        try {
+            // Without the responses of the card the proof cannot be decoded
+            Future<Attributes> future = verifier.submit(vd, vd.generateNonce(),
+                    new ProtocolResponses(), new CardVersion(0, 8));
+            try {
+                future.get();
+                fail("Verified a proof without responses");
+            } catch (ExecutionException e) {
+                assertNotNull(e.getCause());
+            }
+            assertEquals(1, verifier.getFailed());
+            assertEquals(0, verifier.getVerified() + verifier.getRejected());
+        } finally {
+            verifier.close();
+        }
+    }
+
+    @Test
+    public void testClose() throws CardServiceException {
+        BatchVerifier.Request request = request(true);
+
+        BatchVerifier owning = new BatchVerifier();
+        owning.close();
+        try {
+            owning.submit(request);
+            fail("Accepted a request after closing");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        // A pool passed in by the caller is left running
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            BatchVerifier shared = new BatchVerifier(pool);
+            shared.close();
+            assertFalse(pool.isShutdown());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
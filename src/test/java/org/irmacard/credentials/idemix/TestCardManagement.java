@@ -30,9 +30,14 @@
 
 package org.irmacard.credentials.idemix;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
 import java.io.File;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.smartcardio.CardException;
 
@@ -99,6 +104,45 @@ public class TestCardManagement {
 		}
 	}
 
+	@Test
+	public void testGetAllAttributes() throws CredentialsException, CardServiceException, InfoException, CardException {
+		IdemixService is = new IdemixService(TestSetup.getCardService());
+		IdemixCredentials ic = new IdemixCredentials(is);
+		ic.connect();
+		is.sendCardPin(TestSetup.DEFAULT_CARD_PIN);
+
+		Map<CredentialDescription, Attributes> dump = ic.getAllAttributes();
+		assertEquals(ic.getCredentials(), new ArrayList<CredentialDescription>(dump.keySet()));
+
+		for(Map.Entry<CredentialDescription, Attributes> entry : dump.entrySet()) {
+			Attributes expected = ic.getAttributes(entry.getKey());
+			for(String name : expected.getIdentifiers()) {
+				assertArrayEquals(expected.get(name), entry.getValue().get(name));
+			}
+		}
+	}
+
+	@Test
+	public void testInventoryCache() throws CredentialsException, CardServiceException, InfoException, CardException {
+		IdemixService is = new IdemixService(TestSetup.getCardService());
+		IdemixCredentials ic = new IdemixCredentials(is);
+		InventoryCache cache = new InventoryCache();
+		ic.setInventoryCache(cache, "test");
+		ic.connect();
+		is.sendCardPin(TestSetup.DEFAULT_CARD_PIN);
+
+		List<CredentialDescription> credentials = ic.getCredentials();
+		assertEquals(1, cache.getMisses());
+
+		assertEquals(credentials, ic.getCredentials());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+
+		cache.invalidate("test");
+		assertEquals(credentials, ic.getCredentials());
+		assertEquals(2, cache.getMisses());
+	}
+
 	@Test
 	public void testGetLogs() throws CardException, CredentialsException, CardServiceException, InfoException {
 		IdemixService is = new IdemixService(TestSetup.getCardService());
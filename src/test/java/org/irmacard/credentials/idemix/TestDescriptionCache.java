@@ -0,0 +1,101 @@
+package org.irmacard.credentials.idemix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.irmacard.credentials.Attributes;
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.info.IdemixKeyStore;
+import org.irmacard.credentials.idemix.info.IdemixKeyStoreDeserializer;
+import org.irmacard.credentials.idemix.smartcard.PinCode;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.DescriptionStore;
+import org.irmacard.credentials.info.DescriptionStoreDeserializer;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.credentials.info.IssuerIdentifier;
+import org.irmacard.credentials.util.log.LogEntry;
+import org.irmacard.idemix.IdemixService;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+public class TestDescriptionCache {
+    private static CredentialDescription cd;
+
+    @BeforeClass
+    public static void initializeInformation() throws InfoException {
+        URI core = new File(System.getProperty("user.dir")).toURI().resolve(
+                "irma_configuration/");
+        DescriptionStore.initialize(new DescriptionStoreDeserializer(core));
+        IdemixKeyStore.initialize(new IdemixKeyStoreDeserializer(core));
+        cd = DescriptionStore.getInstance().getCredentialDescriptionByName(
+                TestIRMACredential.schemeManager, "Surfnet", "root");
+    }
+
+    @Test
+    public void testEntriesAreCached() throws InfoException {
+        DescriptionCache cache = DescriptionCache.getInstance();
+        long hits = cache.getHits();
+
+        DescriptionCache.Entry entry = cache.get(cd.getId());
+        assertEquals(cd, entry.getDescription());
+        assertSame(entry, cache.get(cd.getId()));
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    public void testDisclosureCannotBeModified() throws InfoException {
+        DescriptionCache.Entry entry = DescriptionCache.getInstance().get(cd.getId());
+        short mask = (short) 0x0004;
+        HashMap<String, Boolean> expected = entry.getAttributeDisclosed(mask);
+
+        HashMap<String, Boolean> first = entry.getAttributeDisclosed(mask);
+        assertNotSame(first, entry.getAttributeDisclosed(mask));
+        first.put("userID", Boolean.FALSE);
+        first.remove("securityHash");
+        HashMap<String, Boolean> second = entry.getAttributeDisclosed(mask);
+        for (Map.Entry<String, Boolean> disclosed : second.entrySet()) {
+            disclosed.setValue(Boolean.FALSE);
+        }
+
+        assertEquals(expected, entry.getAttributeDisclosed(mask));
+    }
+
+    @Test
+    public void testLogUsesCache() throws InfoException, CardServiceException,
+            CredentialsException {
+        SmartCardEmulatorService emulator = new SmartCardEmulatorService();
+        IdemixService service = new IdemixService(emulator);
+        IdemixCredentials ic = new IdemixCredentials(service);
+        ic.connect();
+        service.sendCredentialPin(PinCode.DEFAULT_CRED_PIN);
+        service.sendCardPin(PinCode.DEFAULT_CARD_PIN);
+
+        Attributes attributes = new Attributes();
+        attributes.add("userID", "s1234567@student.ru.nl".getBytes());
+        attributes.add("securityHash", "DEADBEEF".getBytes());
+        ic.issue(cd, IdemixKeyStore.getInstance().getSecretKey(cd), attributes, null);
+        new IdemixCredentials(emulator).verify(new IdemixVerificationDescription(
+                new IssuerIdentifier(TestIRMACredential.schemeManager, "Surfnet"), "rootAll"));
+
+        DescriptionCache cache = DescriptionCache.getInstance();
+        ic.getLog();
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+
+        List<LogEntry> log = ic.getLog();
+        assertEquals(2, log.size());
+        assertEquals(misses, cache.getMisses());
+        assertEquals(hits + 2, cache.getHits());
+    }
+}
@@ -0,0 +1,66 @@
+package org.irmacard.credentials.idemix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestNonceGenerator {
+    private static final int BITS = 80;
+
+    @Test
+    public void testNonceSize() {
+        NonceGenerator generator = new NonceGenerator(BITS, 16);
+        for (int i = 0; i < 1000; i++) {
+            BigInteger nonce = generator.next();
+            assertTrue(nonce.signum() >= 0);
+            assertTrue(nonce.bitLength() <= BITS);
+        }
+    }
+
+    @Test
+    public void testPoolsAreRefilled() throws InterruptedException {
+        NonceGenerator generator = new NonceGenerator(BITS, 16);
+        generator.next();
+        assertEquals(1, generator.getMisses());
+
+        // Give the refill thread the chance to fill the pool
+        for (int i = 0; i < 100 && generator.getRefills() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(generator.getRefills() > 0);
+
+        generator.next();
+        assertEquals(1, generator.getMisses());
+    }
+
+    @Test
+    public void testConcurrentNoncesAreUnique() throws InterruptedException {
+        final NonceGenerator generator = new NonceGenerator(BITS, 16);
+        final Set<BigInteger> nonces = Collections.synchronizedSet(new HashSet<BigInteger>());
+        final int perThread = 2000;
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        nonces.add(generator.next());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threads.length * perThread, nonces.size());
+    }
+}
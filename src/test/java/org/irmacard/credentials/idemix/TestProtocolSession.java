@@ -0,0 +1,101 @@
+package org.irmacard.credentials.idemix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.irmacard.credentials.Attributes;
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.descriptions.IdemixCredentialDescription;
+import org.irmacard.credentials.idemix.descriptions.IdemixVerificationDescription;
+import org.irmacard.credentials.idemix.info.IdemixKeyStore;
+import org.irmacard.credentials.idemix.info.IdemixKeyStoreDeserializer;
+import org.irmacard.credentials.idemix.irma.IRMAIdemixDisclosureProof;
+import org.irmacard.credentials.idemix.smartcard.PinCode;
+import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.DescriptionStore;
+import org.irmacard.credentials.info.DescriptionStoreDeserializer;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.credentials.info.IssuerIdentifier;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.ProtocolSession;
+import org.irmacard.idemix.util.SessionTokens;
+import org.irmacard.idemix.util.SessionTokens.InvalidTokenException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+public class TestProtocolSession {
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+    private static CredentialDescription cd;
+    private static IdemixVerificationDescription vd;
+
+    @BeforeClass
+    public static void initializeInformation() throws InfoException {
+        URI core = new File(System.getProperty("user.dir")).toURI().resolve(
+                "irma_configuration/");
+        DescriptionStore.initialize(new DescriptionStoreDeserializer(core));
+        IdemixKeyStore.initialize(new IdemixKeyStoreDeserializer(core));
+        cd = DescriptionStore.getInstance().getCredentialDescriptionByName(
+                TestIRMACredential.schemeManager, "Surfnet", "root");
+        vd = new IdemixVerificationDescription(new IssuerIdentifier(
+                TestIRMACredential.schemeManager, "Surfnet"), "rootAll");
+    }
+
+    @Test
+    public void testResumeIssuance() throws InfoException, InvalidTokenException {
+        SessionTokens tokens = new SessionTokens(KEY, 5, TimeUnit.MINUTES);
+        IdemixCredentialDescription icd = new IdemixCredentialDescription(cd);
+        BigInteger nonce = icd.generateNonce();
+
+        ProtocolSession session = tokens.decode(tokens.encode(
+                ProtocolSession.forIssuance(new CardVersion(0, 8), icd, nonce)));
+        assertEquals(TestIRMACredential.schemeManager, session.getSchemeManager());
+        assertEquals(cd, session.getCredentialDescription().getCredentialDescription());
+        assertEquals(nonce, session.getNonce());
+    }
+
+    @Test
+    public void testResumeVerification() throws InfoException, InvalidTokenException,
+            CardServiceException, CredentialsException {
+        SmartCardEmulatorService emulator = new SmartCardEmulatorService();
+        IdemixService service = new IdemixService(emulator);
+        IdemixCredentials ic = new IdemixCredentials(service);
+        ic.connect();
+        service.sendCredentialPin(PinCode.DEFAULT_CRED_PIN);
+
+        Attributes attributes = new Attributes();
+        attributes.add("userID", "s1234567@student.ru.nl".getBytes());
+        attributes.add("securityHash", "DEADBEEF".getBytes());
+        ic.issue(cd, IdemixKeyStore.getInstance().getSecretKey(cd), attributes, null);
+
+        // Start the verification, keeping its state only in the token
+        SessionTokens tokens = new SessionTokens(KEY, 5, TimeUnit.MINUTES);
+        CardVersion cv = service.getCardVersion();
+        BigInteger nonce = vd.generateNonce();
+        String token = tokens.encode(ProtocolSession.forVerification(cv, vd, nonce));
+        ProtocolResponses responses = service.execute(
+                IdemixSmartcard.buildProofCommands(cv, nonce, vd));
+
+        ProtocolSession session = tokens.decode(token);
+        assertEquals(TestIRMACredential.schemeManager, session.getSchemeManager());
+        IdemixVerificationDescription resumed = session.getVerificationDescription();
+        assertEquals(vd.getVerificationDescription(), resumed.getVerificationDescription());
+
+        IRMAIdemixDisclosureProof proof = IdemixSmartcard.processBuildProofResponses(
+                session.getCardVersion(), responses, resumed);
+        Attributes disclosed = proof.verify(resumed, session.getNonce());
+        assertNotNull(disclosed);
+        assertEquals("s1234567@student.ru.nl", new String(disclosed.get("userID")));
+    }
+}
@@ -31,6 +31,7 @@
 package org.irmacard.credentials.idemix;
 
 import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -41,9 +42,7 @@ import javax.smartcardio.CardException;
 
 import net.sf.scuba.smartcards.CardService;
 
-import org.irmacard.credentials.idemix.smartcard.CardChangedListener;
-import org.irmacard.credentials.idemix.smartcard.IRMACard;
-import org.irmacard.credentials.idemix.smartcard.IRMACardHelper;
+import org.irmacard.credentials.idemix.smartcard.CardJournal;
 import org.irmacard.credentials.idemix.smartcard.SmartCardEmulatorService;
 import org.irmacard.idemix.IdemixService;
 
@@ -101,20 +100,20 @@ public class TestSetup {
     public static final byte[] DEFAULT_CRED_PIN = "0000".getBytes();
     public static final byte[] DEFAULT_CARD_PIN = "000000".getBytes();
 
-    public static final String PATH = "card.json";
+    public static final String PATH = "card.state";
 
     static CardService cs = null;
     public static CardService getCardService() throws CardException {
     	if (cs == null) {
-    		final Path path = Paths.get(System.getProperty("user.dir"), PATH);
-    		IRMACard card = IRMACardHelper.loadState(path);
-    		SmartCardEmulatorService emu = new SmartCardEmulatorService(card);
-    		emu.addListener(new CardChangedListener() {
-    			@Override
-				public void cardChanged(IRMACard card) {
-					IRMACardHelper.storeState(card, path);
-				}
-			});
+    		Path path = Paths.get(System.getProperty("user.dir"), PATH);
+    		CardJournal journal;
+    		try {
+    			journal = CardJournal.open(path);
+    		} catch (IOException e) {
+    			throw new CardException("Could not open card state", e);
+    		}
+    		SmartCardEmulatorService emu = new SmartCardEmulatorService(journal.getCard());
+    		emu.addListener(journal);
     		cs = emu;
     	}
     	return cs;
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.irmacard.idemix.util.IdemixFlags;
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CardJournalTest {
+	private Path dir;
+	private Path path;
+
+	@Before
+	public void createDirectory() throws IOException {
+		dir = Files.createTempDirectory("journal");
+		path = dir.resolve("card.state");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		for (String name : dir.toFile().list()) {
+			Files.delete(dir.resolve(name));
+		}
+		Files.delete(dir);
+	}
+
+	private byte[] logEntry(int value) {
+		byte[] entry = new byte[IdemixLogEntry.SIZE];
+		entry[0] = (byte) value;
+		return entry;
+	}
+
+	private void modify(IRMACard card) {
+		card.getCredentials().put((short) 4, new IRMAIdemixCredential(new IdemixFlags((short) 1)));
+		card.getCredentials().put((short) 8, new IRMAIdemixCredential(new IdemixFlags((short) 2)));
+		card.setMasterSecret(BigInteger.valueOf(1234567));
+		card.credential_pin.verify(new byte[PinCode.PIN_SIZE_INTERNAL]);
+		for (int i = 1; i <= 3; i++) {
+			card.addLog(logEntry(i));
+		}
+	}
+
+	@Test
+	public void replay() throws IOException {
+		CardJournal journal = CardJournal.open(path);
+		IRMACard card = journal.getCard();
+		modify(card);
+		journal.cardChanged(card);
+
+		card.getCredentials().remove((short) 4);
+		card.getCredentials().put((short) 8, new IRMAIdemixCredential(new IdemixFlags((short) 3)));
+		card.addLog(logEntry(4));
+		journal.close();
+		assertTrue(!Files.exists(path));
+
+		IRMACard loaded = CardJournal.open(path).getCard();
+		assertEquals(BigInteger.valueOf(1234567), loaded.getMasterSecret());
+		assertEquals(PinCode.DEFAULT_NUM_TRIES - 1, loaded.credential_pin.getTriesLeft());
+		assertEquals(PinCode.DEFAULT_NUM_TRIES, loaded.card_pin.getTriesLeft());
+		assertEquals(1, loaded.getCredentials().size());
+		assertEquals((short) 3, loaded.getCredentials().get((short) 8)
+				.getIssuerFlags().getPinProtectionMask());
+		assertEquals(card.log_head, loaded.log_head);
+		assertArrayEquals(card.log, loaded.log);
+	}
+
+	@Test
+	public void unchangedCardWritesNothing() throws IOException {
+		CardJournal journal = CardJournal.open(path);
+		modify(journal.getCard());
+		journal.sync();
+		long size = Files.size(dir.resolve("card.state.journal"));
+		journal.sync();
+		journal.close();
+		assertEquals(size, Files.size(dir.resolve("card.state.journal")));
+	}
+
+	@Test
+	public void compaction() throws IOException {
+		CardJournal journal = CardJournal.open(path);
+		IRMACard card = journal.getCard();
+		modify(card);
+		journal.compact();
+		assertTrue(Files.exists(path));
+		assertEquals(0, Files.size(dir.resolve("card.state.journal")));
+
+		card.addLog(logEntry(5));
+		card.getCredentials().remove((short) 8);
+		journal.close();
+
+		IRMACard loaded = CardJournal.open(path).getCard();
+		assertEquals(1, loaded.getCredentials().size());
+		assertNull(loaded.getCredentials().get((short) 8));
+		assertEquals(BigInteger.valueOf(1234567), loaded.getMasterSecret());
+		assertArrayEquals(card.log, loaded.log);
+	}
+
+	@Test
+	public void incompleteRecordIsDiscarded() throws IOException {
+		CardJournal journal = CardJournal.open(path);
+		IRMACard card = journal.getCard();
+		modify(card);
+		journal.close();
+
+		// Simulate a crash halfway through writing a record
+		Path journalPath = dir.resolve("card.state.journal");
+		long size = Files.size(journalPath);
+		try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 0, 0, 0, 0, 42, 3, 0}));
+		}
+
+		journal = CardJournal.open(path);
+		assertEquals(2, journal.getCard().getCredentials().size());
+		assertArrayEquals(card.log, journal.getCard().log);
+		journal.close();
+		assertEquals(size, Files.size(journalPath));
+	}
+}
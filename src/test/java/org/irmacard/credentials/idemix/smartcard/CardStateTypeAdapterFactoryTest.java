@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.IdemixFlags;
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.VerificationSetupData;
+import org.junit.Test;
+
+import com.google.gson.JsonParseException;
+
+public class CardStateTypeAdapterFactoryTest {
+	@Test
+	public void streamingRoundTrip() throws IOException {
+		IRMACard card = new IRMACard();
+		card.setMasterSecret(new BigInteger("123456789012345678901234567890"));
+		card.card_pin.verify(new byte[PinCode.PIN_SIZE_INTERNAL]);
+		card.addLog(new byte[] {3, 0, 0, 0, 1, 0, 4, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+		card.getCredentials().put((short) 4, new IRMAIdemixCredential(new IdemixFlags((short) 0x1234)));
+		card.addVerificationListener(new VerificationStartListener() {
+			@Override
+			public void verificationStarting(VerificationSetupData data) {
+			}
+		});
+
+		String json = IRMACardHelper.serializeState(card);
+		assertTrue(!json.contains("verificationListeners"));
+
+		Path path = Files.createTempFile("card", ".json");
+		try {
+			IRMACardHelper.storeState(card, path);
+			assertEquals(json, new String(Files.readAllBytes(path), "utf-8"));
+
+			IRMACard loaded = IRMACardHelper.loadState(path);
+			assertEquals(card.getMasterSecret(), loaded.getMasterSecret());
+			assertEquals(PinCode.DEFAULT_NUM_TRIES - 1, loaded.card_pin.getTriesLeft());
+			assertArrayEquals(card.card_pin.getCode(), loaded.card_pin.getCode());
+			assertArrayEquals(card.log, loaded.log);
+			assertEquals(card.log_head, loaded.log_head);
+			assertEquals((short) 0x1234, loaded.getCredentials().get((short) 4)
+					.getIssuerFlags().getPinProtectionMask());
+			assertNull(loaded.getCredentials().get((short) 4).getCredential());
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void rejectInvalidLogHead() {
+		String json = IRMACardHelper.serializeState(new IRMACard());
+		for (int head : new int[] { -1, IRMACard.LOG_ENTRIES }) {
+			try {
+				IRMACardHelper.loadState(json.replace("\"log_head\": 0", "\"log_head\": " + head));
+				fail("Accepted log head " + head);
+			} catch (JsonParseException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void loadReflectiveState() {
+		// As written by reflective serialization, before the log was a buffer
+		String json = "{\"verificationListeners\":[],"
+				+ "\"credential_pin\":{\"code\":[48,48,48,48,0,0,0,0],\"verified\":false,\"tries_left\":2},"
+				+ "\"card_pin\":{\"code\":[48,48,48,48,48,48,0,0],\"verified\":false,\"tries_left\":3},"
+				+ "\"master_secret\":42,"
+				+ "\"credentials\":{\"10\":{\"userFlags\":{\"pinProtectionMask\":1,\"RFU\":0},"
+				+ "\"issuerFlags\":{\"pinProtectionMask\":2,\"RFU\":5}}},"
+				+ "\"logs\":[{\"action\":\"NONE\"}]}";
+
+		IRMACard card = IRMACardHelper.loadState(json);
+		assertEquals(BigInteger.valueOf(42), card.getMasterSecret());
+		assertEquals(2, card.credential_pin.getTriesLeft());
+		IRMAIdemixCredential cred = card.getCredentials().get((short) 10);
+		assertEquals((short) 1, cred.getUserFlags().getPinProtectionMask());
+		assertEquals((byte) 5, cred.getIssuerFlags().getRFU());
+		assertEquals(IRMACard.LOG_ENTRIES * 16, card.log.length);
+	}
+
+	@Test
+	public void loadLegacyLog() {
+		// As written before the log was a buffer: a list of entries, newest first
+		String json = "{\"credential_pin\":{\"code\":[48,48,48,48,0,0,0,0],\"verified\":false,\"tries_left\":3},"
+				+ "\"card_pin\":{\"code\":[48,48,48,48,48,48,0,0],\"verified\":false,\"tries_left\":3},"
+				+ "\"credentials\":{},"
+				+ "\"logs\":["
+				+ "{\"timestamp\":1400000300,\"action\":\"REMOVE\",\"credential\":10,"
+				+ "\"terminal\":[0,0,0,0],\"disclose\":0,\"data\":[0,0,0,0,0]},"
+				+ "{\"timestamp\":1400000200,\"action\":\"VERIFY\",\"credential\":10,"
+				+ "\"terminal\":[1,2,3,4],\"disclose\":6,\"data\":[0,0,0,0,0]},"
+				+ "{\"timestamp\":1400000100,\"action\":\"ISSUE\",\"credential\":10,"
+				+ "\"terminal\":[0,0,0,0],\"disclose\":0,\"data\":[0,0,0,0,0]},"
+				+ "{\"timestamp\":0,\"action\":\"NONE\",\"credential\":0,"
+				+ "\"terminal\":[0,0,0,0],\"disclose\":0,\"data\":[0,0,0,0,0]}]}";
+
+		IRMACard card = IRMACardHelper.loadState(json);
+		ResponseAPDU response = card.processAdministrationLog(
+				IdemixSmartcard.getLogCommand(null, (byte) 0).getAPDU());
+		byte[] data = response.getData();
+
+		IdemixLogEntry.Action[] actions = { IdemixLogEntry.Action.REMOVE,
+				IdemixLogEntry.Action.VERIFY, IdemixLogEntry.Action.ISSUE,
+				IdemixLogEntry.Action.NONE, IdemixLogEntry.Action.NONE };
+		for (int i = 0; i < actions.length; i++) {
+			IdemixLogEntry entry = new IdemixLogEntry(Arrays.copyOfRange(data,
+					i * IdemixLogEntry.SIZE, (i + 1) * IdemixLogEntry.SIZE));
+			assertEquals(actions[i], entry.getAction());
+		}
+
+		IdemixLogEntry verify = new IdemixLogEntry(Arrays.copyOfRange(data,
+				IdemixLogEntry.SIZE, 2 * IdemixLogEntry.SIZE));
+		assertEquals((short) 10, verify.getCredential());
+		assertEquals((short) 6, verify.getDisclose());
+		assertEquals(1400000200000L, verify.getTimestamp().getTime());
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, verify.getTerminal());
+
+		// New entries go before the migrated ones
+		card.addLog(new IdemixLogEntry(IdemixLogEntry.Action.REMOVE, 1400000400, (short) 11, new byte[4]));
+		response = card.processAdministrationLog(IdemixSmartcard.getLogCommand(null, (byte) 0).getAPDU());
+		assertEquals((short) 11, new IdemixLogEntry(Arrays.copyOf(response.getData(),
+				IdemixLogEntry.SIZE)).getCredential());
+		assertEquals(IdemixLogEntry.Action.REMOVE, new IdemixLogEntry(Arrays.copyOfRange(
+				response.getData(), IdemixLogEntry.SIZE, 2 * IdemixLogEntry.SIZE)).getAction());
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.irmacard.idemix.util.IdemixFlags;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CardStoreTest {
+	private Path path;
+
+	@Before
+	public void createFile() throws IOException {
+		path = Files.createTempFile("cards", ".store");
+	}
+
+	@After
+	public void deleteFile() throws IOException {
+		Files.delete(path);
+	}
+
+	@Test
+	public void storeAndReopen() throws IOException {
+		CardStore store = CardStore.create(path, 16, 1024);
+		for (long id = 0; id < 10; id++) {
+			IRMACard card = new IRMACard();
+			card.setMasterSecret(BigInteger.valueOf(id + 100));
+			store.putCard(id * 16, card);
+		}
+		assertEquals(10, store.size());
+
+		// Write back a modified card
+		IRMACard card = store.getCard(48);
+		card.getCredentials().put((short) 7, new IRMAIdemixCredential(new IdemixFlags()));
+		store.cardChanged(card);
+		assertTrue(store.removeCard(64));
+		assertTrue(!store.removeCard(64));
+		store.close();
+
+		store = CardStore.open(path);
+		assertEquals(9, store.size());
+		assertTrue(!store.contains(64));
+		assertNull(store.getCard(64));
+		assertEquals(BigInteger.valueOf(109), store.getCard(144).getMasterSecret());
+		assertEquals(1, store.getCard(48).getCredentials().size());
+		assertSame(store.getCard(48), store.getCard(48));
+
+		// Removed slots are reused
+		store.putCard(1000, new IRMACard());
+		assertEquals(10, store.size());
+		store.close();
+	}
+
+	@Test
+	public void unusedCardsAreDropped() throws IOException, InterruptedException {
+		CardStore store = CardStore.create(path, 64, 1024);
+		for (long id = 0; id < 32; id++) {
+			store.putCard(id, new IRMACard());
+		}
+		store.close();
+
+		store = CardStore.open(path);
+		IRMACard kept = store.getCard(5);
+		for (long id = 0; id < 32; id++) {
+			store.getCard(id);
+		}
+		for (int i = 0; i < 50 && store.cached() > 1; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+
+		// Only the card still in use is kept, and can be written back
+		assertEquals(1, store.cached());
+		assertSame(kept, store.getCard(5));
+		kept.setMasterSecret(BigInteger.ONE);
+		store.store(kept);
+		store.close();
+	}
+
+	@Test
+	public void limits() throws IOException {
+		CardStore store = CardStore.create(path, 2, 1024);
+		store.putCard(1, new IRMACard());
+		store.putCard(2, new IRMACard());
+		store.putCard(2, new IRMACard());
+		try {
+			store.putCard(3, new IRMACard());
+			fail("Stored more cards than slots");
+		} catch (IOException e) {
+			// expected
+		}
+		store.close();
+
+		store = CardStore.create(path, 2, 64);
+		try {
+			store.putCard(1, new IRMACard());
+			fail("Stored a card larger than a slot");
+		} catch (IOException e) {
+			// expected
+		}
+		store.close();
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.irmacard.idemix.util.IdemixFlags;
+import org.junit.Test;
+
+public class CredentialMapTest {
+	@Test
+	public void putGetRemove() {
+		CredentialMap map = new CredentialMap();
+		IRMAIdemixCredential[] creds = new IRMAIdemixCredential[10];
+
+		short[] ids = new short[] {7, -3, 1200, 4, 0, 55, -800, 9, 31, 2};
+		for (int i = 0; i < ids.length; i++) {
+			creds[i] = new IRMAIdemixCredential(new IdemixFlags());
+			assertNull(map.put(ids[i], creds[i]));
+		}
+		assertEquals(ids.length, map.size());
+
+		for (int i = 0; i < ids.length; i++) {
+			assertSame(creds[i], map.get(ids[i]));
+		}
+		assertNull(map.get((short) 3));
+
+		// Keys are iterated in ascending order
+		for (int i = 1; i < map.size(); i++) {
+			assertTrue(map.keyAt(i - 1) < map.keyAt(i));
+		}
+
+		assertSame(creds[0], map.remove((short) 7));
+		assertNull(map.remove((short) 7));
+		assertEquals(ids.length - 1, map.size());
+		assertTrue(!map.containsKey((short) 7));
+		assertSame(creds[1], map.get((short) -3));
+	}
+
+	@Test
+	public void jsonRoundTrip() {
+		IRMACard card = new IRMACard();
+		card.getCredentials().put((short) 4, new IRMAIdemixCredential(new IdemixFlags((short) 0x1234)));
+		card.getCredentials().put((short) 10, new IRMAIdemixCredential(new IdemixFlags()));
+
+		IRMACard loaded = IRMACardHelper.loadState(IRMACardHelper.serializeState(card));
+		CredentialMap credentials = loaded.getCredentials();
+		assertEquals(2, credentials.size());
+		assertEquals((short) 4, credentials.keyAt(0));
+		assertEquals((short) 10, credentials.keyAt(1));
+		assertEquals((short) 0x1234, credentials.get((short) 4).getIssuerFlags().getPinProtectionMask());
+	}
+}
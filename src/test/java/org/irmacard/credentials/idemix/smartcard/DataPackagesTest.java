@@ -30,13 +30,19 @@
 
 package org.irmacard.credentials.idemix.smartcard;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.Random;
 
+import org.irmacard.idemix.util.AdminRemove;
+import org.irmacard.idemix.util.AdminSelect;
+import org.irmacard.idemix.util.CardVersion;
 import org.irmacard.idemix.util.IdemixFlags;
 import org.irmacard.idemix.util.IssuanceSetupData;
+import org.irmacard.idemix.util.VerificationSetupData;
 import org.junit.Test;
 
 public class DataPackagesTest {
@@ -81,4 +87,45 @@ public class DataPackagesTest {
 		assertEquals(rfu, target_flags.getRFU());
 	}
 
+	@Test
+	public void packUnPackAtOffset() {
+		Random rnd = new Random();
+
+		short id = (short) rnd.nextInt();
+		short mask = (short) rnd.nextInt();
+		BigInteger context = new BigInteger(VerificationSetupData.SIZE_CONTEXT * 8 - 9, rnd);
+		int timestamp = rnd.nextInt();
+
+		byte[] buffer = new byte[VerificationSetupData.SIZE + 7];
+		int length = VerificationSetupData.encode(buffer, 5, id, mask, context, timestamp, null);
+		assertEquals(VerificationSetupData.SIZE, length);
+		assertArrayEquals(new VerificationSetupData(id, mask, context, timestamp).getBytes(),
+				Arrays.copyOfRange(buffer, 5, 5 + length));
+
+		VerificationSetupData target = new VerificationSetupData(buffer, 5);
+		assertEquals(id, target.getID());
+		assertEquals(mask, target.getDisclosureMask());
+		assertEquals(context, target.getContext());
+		assertEquals(timestamp, target.getTimestamp());
+
+		assertEquals(AdminSelect.SIZE, AdminSelect.encode(buffer, 3, id));
+		assertEquals(id, new AdminSelect(buffer, 3).getID());
+
+		assertEquals(AdminRemove.SIZE, AdminRemove.encode(buffer, 1, timestamp));
+		assertEquals(timestamp, new AdminRemove(buffer, 1).getTimeStamp());
+	}
+
+	@Test
+	public void packIssuanceSetupDataLegacy() {
+		Random rnd = new Random();
+		BigInteger context = new BigInteger(IssuanceSetupData.SIZE_CONTEXT * 8, rnd);
+		IssuanceSetupData isd = new IssuanceSetupData((short) 10, (short) 5,
+				new IdemixFlags(), context, rnd.nextInt());
+
+		byte[] legacy = isd.getBytes(new CardVersion(0, 7, 1));
+		assertEquals(IssuanceSetupData.SIZE_LEGACY, legacy.length);
+		assertEquals(context, new BigInteger(1,
+				Arrays.copyOfRange(legacy, 2, 2 + IssuanceSetupData.SIZE_CONTEXT)));
+		assertArrayEquals(isd.getBytes(), isd.getBytes(new CardVersion(0, 8)));
+	}
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.irmacard.idemix.util.IdemixFlags;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class IRMACardCodecTest {
+	private IRMACard getCard() {
+		IRMACard card = new IRMACard();
+		card.card_pin.verify(new byte[PinCode.PIN_SIZE_INTERNAL]);
+		card.setMasterSecret(BigInteger.ONE.shiftLeft(255).add(BigInteger.TEN));
+		card.log[3] = 0x42;
+		card.log_head = 17;
+		card.getCredentials().put((short) 4, new IRMAIdemixCredential(new IdemixFlags((short) 0x1234)));
+		IRMAIdemixCredential cred = new IRMAIdemixCredential(new IdemixFlags());
+		cred.setUserFlags(new IdemixFlags((short) 0x0003, (byte) 1));
+		card.getCredentials().put((short) -2, cred);
+		return card;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		IRMACard card = getCard();
+		byte[] data = IRMACardCodec.encode(card);
+		assertTrue(IRMACardCodec.isEncoded(data));
+		assertTrue(data.length < IRMACardHelper.serializeState(card).length());
+
+		IRMACard loaded = IRMACardCodec.decode(data);
+		assertEquals(card.getMasterSecret(), loaded.getMasterSecret());
+		assertEquals(PinCode.DEFAULT_NUM_TRIES - 1, loaded.card_pin.getTriesLeft());
+		assertEquals(PinCode.DEFAULT_NUM_TRIES, loaded.credential_pin.getTriesLeft());
+		assertArrayEquals(card.card_pin.getCode(), loaded.card_pin.getCode());
+		assertEquals(17, loaded.log_head);
+		assertArrayEquals(card.log, loaded.log);
+
+		CredentialMap credentials = loaded.getCredentials();
+		assertEquals(2, credentials.size());
+		assertEquals((short) 0x1234, credentials.get((short) 4).getIssuerFlags().getPinProtectionMask());
+		assertArrayEquals(new byte[] {0, 3, 1}, credentials.get((short) -2).getUserFlags().getFlagBytes());
+		assertNull(credentials.get((short) -2).getCredential());
+
+		// Without a master secret
+		loaded = IRMACardCodec.decode(IRMACardCodec.encode(new IRMACard()));
+		assertNull(loaded.getMasterSecret());
+		assertEquals(0, loaded.getCredentials().size());
+	}
+
+	@Test
+	public void manyCredentials() throws IOException {
+		IRMACard card = getCard();
+		CredentialMap credentials = card.getCredentials();
+		for (short id = 1; credentials.size() < 128; id++) {
+			credentials.put(id, new IRMAIdemixCredential(new IdemixFlags(id)));
+		}
+
+		byte[] data = IRMACardCodec.encode(card);
+		assertTrue(data.length < IRMACardHelper.serializeState(card).length());
+		assertEquals(128, IRMACardCodec.decode(data).getCredentials().size());
+	}
+
+	@Test
+	public void unsupportedVersion() throws IOException {
+		byte[] data = IRMACardCodec.encode(getCard());
+		data[4] = (byte) (IRMACardCodec.VERSION + 1);
+		try {
+			IRMACardCodec.decode(data);
+			fail("Decoded unsupported version");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void treeRoundTrip() throws IOException {
+		JsonObject object = new JsonObject();
+		object.add("n", new JsonPrimitive(BigInteger.ONE.shiftLeft(1023).subtract(BigInteger.ONE)));
+		object.add("negative", new JsonPrimitive(-12345));
+		object.add("ratio", new JsonPrimitive(0.5));
+		object.add("name", new JsonPrimitive("IRMA"));
+		object.add("flag", new JsonPrimitive(true));
+		object.add("nothing", JsonNull.INSTANCE);
+		JsonArray array = new JsonArray();
+		array.add(new JsonPrimitive(BigInteger.ZERO));
+		array.add(new JsonObject());
+		object.add("list", array);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IRMACardCodec.writeTree(new DataOutputStream(bytes), object);
+		JsonElement decoded = IRMACardCodec.readTree(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+
+		assertEquals(object.toString(), decoded.toString());
+	}
+
+	@Test
+	public void rejectInvalidLengths() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IRMACardCodec.writeTree(new DataOutputStream(bytes), new JsonPrimitive(BigInteger.TEN));
+		byte[] integer = bytes.toByteArray();
+
+		bytes.reset();
+		JsonArray array = new JsonArray();
+		array.add(JsonNull.INSTANCE);
+		IRMACardCodec.writeTree(new DataOutputStream(bytes), array);
+		byte[] list = bytes.toByteArray();
+
+		for (int length : new int[] { -1, 0, 2, Integer.MAX_VALUE }) {
+			assertInvalidTree(withLength(integer, length));
+		}
+		for (int count : new int[] { -1, 2, Integer.MAX_VALUE }) {
+			assertInvalidTree(withLength(list, count));
+		}
+	}
+
+	private static byte[] withLength(byte[] tree, int length) {
+		byte[] result = tree.clone();
+		ByteBuffer.wrap(result, 1, 4).putInt(length);
+		return result;
+	}
+
+	private static void assertInvalidTree(byte[] tree) {
+		try {
+			IRMACardCodec.readTree(new DataInputStream(new ByteArrayInputStream(tree)));
+			fail("Decoded invalid tree");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void helperDetectsFormat() throws IOException {
+		Path path = Files.createTempFile("card", ".bin");
+		try {
+			IRMACardHelper.storeState(getCard(), path, IRMACardHelper.Format.BINARY);
+			assertEquals(2, IRMACardHelper.loadState(path).getCredentials().size());
+
+			IRMACardHelper.storeState(getCard(), path, IRMACardHelper.Format.JSON);
+			assertEquals(2, IRMACardHelper.loadState(path).getCredentials().size());
+		} finally {
+			Files.delete(path);
+		}
+	}
+}
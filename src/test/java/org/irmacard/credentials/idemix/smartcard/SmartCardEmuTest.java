@@ -32,11 +32,28 @@ package org.irmacard.credentials.idemix.smartcard;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
 import net.sf.scuba.smartcards.ISO7816;
 import net.sf.scuba.smartcards.ProtocolCommand;
+import net.sf.scuba.smartcards.ProtocolCommands;
 import net.sf.scuba.smartcards.ResponseAPDU;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.irmacard.idemix.IdemixService;
 import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.AdminSelect;
+import org.irmacard.idemix.util.IdemixFlags;
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.IssuanceSetupData;
 import org.junit.Test;
 
 public class SmartCardEmuTest {
@@ -89,4 +106,265 @@ public class SmartCardEmuTest {
 
 		System.out.println(response);
 	}
+
+	@Test
+	public void testLogWrapAround() {
+		IRMACard card = new IRMACard();
+
+		// Overfill the log so that the buffer wraps around
+		for (short i = 1; i <= IRMACard.LOG_ENTRIES + 5; i++) {
+			card.addLog(new IdemixLogEntry(IdemixLogEntry.Action.REMOVE, i, i, new byte[4]));
+		}
+
+		int perApdu = 255 / IdemixLogEntry.SIZE;
+		short expected = IRMACard.LOG_ENTRIES + 5;
+		for (int start = 0; start < IRMACard.LOG_ENTRIES; start += perApdu) {
+			ProtocolCommand cmd = IdemixSmartcard.getLogCommand(null, (byte) start);
+			ResponseAPDU response = card.processAdministrationLog(cmd.getAPDU());
+			assertEquals((short) response.getSW(), ISO7816.SW_NO_ERROR);
+
+			byte[] data = response.getData();
+			assertEquals(perApdu * IdemixLogEntry.SIZE, data.length);
+			for (int i = 0; i < perApdu; i++) {
+				IdemixLogEntry entry = new IdemixLogEntry(Arrays.copyOfRange(data,
+						i * IdemixLogEntry.SIZE, (i + 1) * IdemixLogEntry.SIZE));
+				assertEquals(IdemixLogEntry.Action.REMOVE, entry.getAction());
+				assertEquals(expected--, entry.getCredential());
+			}
+		}
+	}
+
+	@Test
+	public void testFork() {
+		IRMACard template = new IRMACard();
+		IRMAIdemixCredential cred = new IRMAIdemixCredential(new IdemixFlags());
+		template.getCredentials().put((short) 4, cred);
+		template.addLog(new IdemixLogEntry(IdemixLogEntry.Action.ISSUE, 1, (short) 4, new byte[4]));
+
+		IRMACard fork = template.fork();
+		assertSame(cred, fork.getCredentials().get((short) 4));
+		assertSame(template.log, fork.log);
+
+		// Changes to the fork do not show up in the template and vice versa
+		fork.getCredentials().remove((short) 4);
+		fork.addLog(new IdemixLogEntry(IdemixLogEntry.Action.REMOVE, 2, (short) 4, new byte[4]));
+		template.getCredentials().put((short) 5, new IRMAIdemixCredential(new IdemixFlags()));
+
+		assertTrue(template.getCredentials().containsKey((short) 4));
+		assertFalse(fork.getCredentials().containsKey((short) 4));
+		assertFalse(fork.getCredentials().containsKey((short) 5));
+		assertEquals(IdemixLogEntry.Action.ISSUE, new IdemixLogEntry(Arrays.copyOfRange(
+				template.log, template.log_head * IdemixLogEntry.SIZE,
+				(template.log_head + 1) * IdemixLogEntry.SIZE)).getAction());
+	}
+
+	@Test
+	public void testVirtualClockLatency() throws CardServiceException {
+		SmartCardEmulatorService service = new SmartCardEmulatorService();
+		VirtualClock clock = new VirtualClock();
+		service.setClock(clock);
+		service.setLatencyModel(new FixedLatencyModel(10000000L)
+				.setLatency(ISO7816.INS_SELECT, 50000000L));
+		service.open();
+
+		service.transmit(IdemixSmartcard.selectApplicationCommand.getAPDU());
+		assertEquals(50000000L, clock.nanoTime());
+
+		service.transmit(IdemixSmartcard.sendPinCommand(null,
+				IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CRED_PIN).getAPDU());
+		assertEquals(60000000L, clock.nanoTime());
+	}
+
+	@Test
+	public void testPinTracking() throws CardServiceException {
+		SmartCardEmulatorService emulator = new SmartCardEmulatorService();
+		VirtualClock clock = new VirtualClock();
+		emulator.setClock(clock);
+		emulator.setLatencyModel(new FixedLatencyModel(1L));
+		IdemixService service = new IdemixService(emulator);
+		service.open();
+		long sent = clock.nanoTime();
+
+		// Only the first of repeated PIN commands reaches the card
+		assertEquals(-1, service.sendPin(IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CRED_PIN));
+		assertEquals(-1, service.sendPin(IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CRED_PIN));
+		assertEquals(-1, service.queryPin(IdemixSmartcard.P2_PIN_ATTRIBUTE));
+		assertEquals(sent + 1, clock.nanoTime());
+		assertEquals(2, service.getSavedPinCommands());
+
+		// A different PIN is always sent
+		assertEquals(2, service.sendPin(IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CARD_PIN));
+		assertEquals(sent + 2, clock.nanoTime());
+		assertEquals(-1, service.sendPin(IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CRED_PIN));
+		assertEquals(sent + 3, clock.nanoTime());
+
+		// Selecting the applet again resets the verification
+		service.selectApplication();
+		sent = clock.nanoTime();
+		assertEquals(-1, service.sendPin(IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CRED_PIN));
+		assertEquals(sent + 1, clock.nanoTime());
+		assertEquals(2, service.getSavedPinCommands());
+
+		// PIN commands in a batch are not tracked
+		ProtocolCommands batch = new ProtocolCommands();
+		batch.add(IdemixSmartcard.sendPinCommand(null,
+				IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CRED_PIN));
+		service.execute(batch);
+		assertEquals(sent + 2, clock.nanoTime());
+		assertEquals(2, service.getSavedPinCommands());
+	}
+
+	@Test
+	public void testLogicalChannels() {
+		IRMACard card = new IRMACard();
+		card.getCredentials().put((short) 4, new IRMAIdemixCredential(new IdemixFlags()));
+		ResponseAPDU response;
+
+		response = card.processAPDU(IdemixSmartcard.sendPinCommand(null,
+				IdemixSmartcard.P2_PIN_ADMIN, PinCode.DEFAULT_CARD_PIN).getAPDU());
+		assertEquals((short) response.getSW(), ISO7816.SW_NO_ERROR);
+
+		response = card.processAPDU(IdemixSmartcard.openChannelCommand(null).getAPDU());
+		assertEquals((short) response.getSW(), ISO7816.SW_NO_ERROR);
+		assertArrayEquals(new byte[] { 0x01 }, response.getData());
+
+		// Select a credential on channel 1 only
+		byte cla = IdemixSmartcard.CLA_IRMACARD | 0x01;
+		response = card.processAPDU(new CommandAPDU(cla, IdemixSmartcard.INS_ADMIN_CREDENTIAL,
+				0, 0, new AdminSelect((short) 4).getBytes()));
+		assertEquals((short) response.getSW(), ISO7816.SW_NO_ERROR);
+
+		CommandAPDU flags = IdemixSmartcard.getCredentialFlagsCommand(null).getAPDU();
+		response = card.processAPDU(flags);
+		assertEquals((short) response.getSW(), ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		response = card.processAPDU(new CommandAPDU(cla, IdemixSmartcard.INS_ADMIN_FLAGS, 0, 0));
+		assertEquals((short) response.getSW(), ISO7816.SW_NO_ERROR);
+
+		// After closing, the channel can no longer be used
+		response = card.processAPDU(IdemixSmartcard.closeChannelCommand(null, 1).getAPDU());
+		assertEquals((short) response.getSW(), ISO7816.SW_NO_ERROR);
+		response = card.processAPDU(new CommandAPDU(cla, IdemixSmartcard.INS_ADMIN_FLAGS, 0, 0));
+		assertEquals((short) response.getSW(), IRMACard.SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+	}
+
+	@Test
+	public void testLogicalChannelService() throws CardServiceException {
+		IRMACard card = new IRMACard();
+		card.getCredentials().put((short) 4, new IRMAIdemixCredential(new IdemixFlags()));
+		final List<Integer> classes = new ArrayList<>();
+		SmartCardEmulatorService emulator = new SmartCardEmulatorService(card) {
+			@Override
+			public ResponseAPDU transmit(CommandAPDU apdu) throws CardServiceException {
+				classes.add(apdu.getCLA());
+				return super.transmit(apdu);
+			}
+		};
+
+		IdemixService service = new IdemixService(emulator);
+		service.open();
+		service.sendCardPin(PinCode.DEFAULT_CARD_PIN);
+
+		IdemixService channel = service.openLogicalChannel();
+		assertEquals(1, channel.getLogicalChannel());
+
+		// Commands of the channel service carry its channel in the CLA byte
+		classes.clear();
+		channel.selectCredential((short) 4);
+		channel.getCredentialFlags();
+		assertEquals(2, classes.size());
+		for (int cla : classes) {
+			assertEquals(1, cla & 0x03);
+		}
+
+		// The credential is removed on the basic channel while it is still
+		// selected on the other one
+		service.selectCredential((short) 4);
+		service.removeCredential((short) 4);
+		try {
+			channel.getCredentialFlags();
+			fail("Flags of a removed credential");
+		} catch (CardServiceException e) {
+			assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, (short) e.getSW());
+		}
+		ResponseAPDU response = channel.transmit(new CommandAPDU(IdemixSmartcard.CLA_IRMACARD,
+				IdemixSmartcard.INS_ADMIN_ATTRIBUTE, 1, 0));
+		assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, (short) response.getSW());
+
+		// Closing the channel service closes only its channel
+		channel.close();
+		response = channel.transmit(new CommandAPDU(IdemixSmartcard.CLA_IRMACARD,
+				IdemixSmartcard.INS_ADMIN_FLAGS, 0, 0));
+		assertEquals(IRMACard.SW_LOGICAL_CHANNEL_NOT_SUPPORTED, (short) response.getSW());
+		assertTrue(service.isOpen());
+		assertTrue(service.getCredentials().isEmpty());
+	}
+
+	@Test
+	public void testCardEvents() throws CardServiceException {
+		IRMACard card = new IRMACard();
+		final List<CardEvent.Type> events = new ArrayList<>();
+		card.addCardEventListener(new CardEventListener() {
+			@Override
+			public void cardEvent(CardEvent event) {
+				events.add(event.getType());
+			}
+		});
+
+		SmartCardEmulatorService service = new SmartCardEmulatorService(card);
+		final int[] notified = new int[1];
+		service.addListener(new CardChangedListener() {
+			@Override
+			public void cardChanged(IRMACard card) {
+				notified[0]++;
+			}
+		});
+
+		// Verifying the correct PIN does not change the persistent state
+		service.open();
+		service.transmit(IdemixSmartcard.sendPinCommand(null,
+				IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CRED_PIN).getAPDU());
+		service.close();
+		assertEquals(0, notified[0]);
+		assertTrue(events.isEmpty());
+
+		service.open();
+		service.transmit(IdemixSmartcard.sendPinCommand(null,
+				IdemixSmartcard.P2_PIN_ADMIN, PinCode.DEFAULT_CRED_PIN).getAPDU());
+		service.transmit(new CommandAPDU(IdemixSmartcard.CLA_IRMACARD,
+				IdemixSmartcard.INS_GENERATE_SECRET, 0, 0));
+		service.close();
+		assertEquals(1, notified[0]);
+		assertEquals(Arrays.asList(CardEvent.Type.PIN_STATE_CHANGED,
+				CardEvent.Type.MASTER_SECRET_INITIALISED), events);
+
+		// Changes made outside of a session are noticed as well
+		long modifications = card.getModificationCount();
+		card.getCredentials().put((short) 4, new IRMAIdemixCredential(new IdemixFlags()));
+		assertTrue(card.getModificationCount() > modifications);
+		card.setCredentials(new CredentialMap());
+		assertTrue(card.getModificationCount() > modifications + 1);
+		card.setMasterSecret(BigInteger.ONE);
+		assertEquals(Arrays.asList(CardEvent.Type.PIN_STATE_CHANGED,
+				CardEvent.Type.MASTER_SECRET_INITIALISED,
+				CardEvent.Type.CREDENTIALS_REPLACED,
+				CardEvent.Type.MASTER_SECRET_INITIALISED), events);
+		service.open();
+		service.close();
+		assertEquals(2, notified[0]);
+
+		// Starting an issuance adds an empty credential
+		events.clear();
+		service.open();
+		service.transmit(IdemixSmartcard.sendPinCommand(null,
+				IdemixSmartcard.P2_PIN_ATTRIBUTE, PinCode.DEFAULT_CRED_PIN).getAPDU());
+		IssuanceSetupData setup = new IssuanceSetupData((short) 7, (short) 2,
+				new IdemixFlags(), BigInteger.ONE, 0);
+		ResponseAPDU response = service.transmit(new CommandAPDU(IdemixSmartcard.CLA_IRMACARD,
+				IdemixSmartcard.INS_ISSUE_CREDENTIAL, 0, 0, setup.getBytes()));
+		service.close();
+		assertEquals(ISO7816.SW_NO_ERROR, (short) response.getSW());
+		assertTrue(card.getCredentials().containsKey((short) 7));
+		assertEquals(Arrays.asList(CardEvent.Type.CREDENTIAL_CREATED,
+				CardEvent.Type.LOG_APPENDED), events);
+	}
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.smartcard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBehindPersisterTest {
+	private Path dir;
+
+	@Before
+	public void createDirectory() throws IOException {
+		dir = Files.createTempDirectory("persister");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		for (String name : dir.toFile().list()) {
+			Files.delete(dir.resolve(name));
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void coalesceChanges() throws InterruptedException {
+		WriteBehindPersister persister = new WriteBehindPersister(1, TimeUnit.HOURS,
+				100, 100, WriteBehindPersister.SyncPolicy.DATA, IRMACardHelper.Format.BINARY);
+		Path path = dir.resolve("card");
+		CardChangedListener listener = persister.listenerFor(path);
+
+		IRMACard card = new IRMACard();
+		for (int i = 1; i <= 10; i++) {
+			card.setMasterSecret(BigInteger.valueOf(i));
+			listener.cardChanged(card);
+		}
+		persister.flush();
+
+		assertEquals(1, persister.getWritten());
+		assertEquals(9, persister.getCoalesced());
+		assertEquals(BigInteger.TEN, IRMACardHelper.loadState(path).getMasterSecret());
+		persister.close();
+	}
+
+	@Test
+	public void flushOnCountAndClose() throws InterruptedException {
+		WriteBehindPersister persister = new WriteBehindPersister(1, TimeUnit.HOURS,
+				2, 4, WriteBehindPersister.SyncPolicy.NONE, IRMACardHelper.Format.JSON);
+		persister.enqueue(new IRMACard(), dir.resolve("a"));
+		persister.enqueue(new IRMACard(), dir.resolve("b"));
+
+		// Reaching the flush count wakes up the writer
+		for (int i = 0; i < 100 && persister.getWritten() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, persister.getWritten());
+
+		persister.enqueue(new IRMACard(), dir.resolve("c"));
+		persister.close();
+		assertEquals(3, persister.getWritten());
+		assertTrue(Files.exists(dir.resolve("c")));
+	}
+
+	@Test
+	public void backpressure() throws InterruptedException {
+		WriteBehindPersister persister = new WriteBehindPersister(200, TimeUnit.MILLISECONDS,
+				2, 2, WriteBehindPersister.SyncPolicy.NONE, IRMACardHelper.Format.BINARY);
+		for (int i = 0; i < 20; i++) {
+			persister.enqueue(new IRMACard(), dir.resolve("card" + i));
+		}
+		persister.close();
+
+		assertEquals(20, persister.getWritten());
+		assertTrue(persister.getStalls() > 0);
+	}
+}
@@ -0,0 +1,92 @@
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.TLVReader;
+import org.junit.Test;
+
+public class TestCardVersion {
+    /** The FCI returned by the card emulator: version 0.8 alpha0 */
+    private static final byte[] FCI = new byte[] { 0x6F, 0x16, (byte) 0xA5, 0x14,
+            0x10, 0x12, 0x02, 0x01, 0x00, 0x02, 0x01, 0x08, 0x10, 0x0A, 0x0C,
+            0x05, 0x61, 0x6C, 0x70, 0x68, 0x61, 0x02, 0x01, 0x00 };
+
+    @Test
+    public void testParseFCI() {
+        CardVersion cv = new CardVersion(FCI);
+        assertEquals(0, cv.getMajor());
+        assertEquals(8, cv.getMinor());
+        assertNull(cv.getMaintenance());
+        assertNull(cv.getBuild());
+        assertEquals(Integer.valueOf(0), cv.getCounter());
+        assertEquals(CardVersion.Type.ALPHA, cv.getType());
+        assertEquals("0.8 alpha0", cv.toString());
+    }
+
+    @Test
+    public void testParseLegacy() {
+        CardVersion cv = new CardVersion(new byte[] { 0x00, 0x00, 0x07, 0x02 });
+        assertEquals(0, cv.compareTo(new CardVersion(0, 7, 2)));
+
+        cv = new CardVersion(new byte[0]);
+        assertEquals(0, cv.compareTo(new CardVersion(0, 6, 1, "or older")));
+    }
+
+    @Test
+    public void testParseLongForm() {
+        // The same FCI, with long form lengths and a build number
+        byte[] fci = new byte[] { 0x6F, (byte) 0x81, 0x1D, (byte) 0xA5, (byte) 0x82, 0x00, 0x19,
+                0x10, 0x17, 0x02, 0x01, 0x00, 0x02, 0x01, 0x08, 0x02, 0x01, 0x01,
+                0x02, 0x01, 0x05, 0x10, 0x09, 0x0C, 0x04, 0x62, 0x65, 0x74, 0x61,
+                0x02, 0x01, 0x02 };
+        CardVersion cv = new CardVersion(fci);
+        assertEquals("0.8.1.5 beta2", cv.toString());
+    }
+
+    @Test
+    public void testMalformed() {
+        byte[] truncated = new byte[FCI.length - 3];
+        System.arraycopy(FCI, 0, truncated, 0, truncated.length);
+
+        try {
+            new CardVersion(truncated);
+            fail("Accepted truncated FCI");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInterning() {
+        CardVersion cv = CardVersion.valueOf(FCI);
+        assertSame(cv, CardVersion.valueOf(FCI.clone()));
+        assertEquals(0, cv.compareTo(new CardVersion(FCI)));
+    }
+
+    @Test
+    public void testTLVReader() {
+        TLVReader reader = new TLVReader(FCI);
+        assertTrue(reader.next());
+        assertEquals(0x6F, reader.getTag());
+        assertEquals(0x16, reader.getLength());
+        assertFalse(reader.next());
+
+        TLVReader details = new TLVReader(FCI, 12, 12);
+        assertTrue(details.next());
+        assertEquals(0x10, details.getTag());
+        TLVReader inner = details.enter();
+        assertTrue(inner.find(0x0C));
+        assertEquals("alpha", inner.getString());
+        assertArrayEquals("alpha".getBytes(), inner.getBytes());
+        assertTrue(inner.next());
+        assertEquals(0, inner.getInt());
+        assertFalse(inner.next());
+    }
+}
@@ -0,0 +1,114 @@
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.LogArchive;
+import org.irmacard.idemix.util.LogExporter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLogArchive {
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("log", ".export");
+        Files.delete(path);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    private static IdemixLogEntry verification(int timestamp, short credential, short mask) {
+        IdemixLogEntry entry = new IdemixLogEntry(IdemixLogEntry.Action.VERIFY,
+                timestamp, credential, new byte[] { 0, 0, 0, 7 });
+        entry.setDisclose(mask);
+        return entry;
+    }
+
+    @Test
+    public void testExportAndRead() throws IOException {
+        try (LogExporter exporter = LogExporter.open(path, 4)) {
+            for (int i = 0; i < 10; i++) {
+                exporter.append(i % 3, verification(1000 + i, (short) (10 + i % 2), (short) 0x3c));
+            }
+
+            IdemixLogEntry issue = new IdemixLogEntry(IdemixLogEntry.Action.ISSUE,
+                    2000, (short) 11, new byte[4]);
+            exporter.append(5, issue.getBytes(), 0);
+            exporter.append(5, new IdemixLogEntry().getBytes(), 0);
+            assertEquals(11, exporter.getExported());
+        }
+
+        try (LogArchive archive = LogArchive.open(path)) {
+            assertEquals(11, archive.size());
+            assertEquals(3, archive.getBlocks().size());
+
+            int verifications = 0, row = 0;
+            for (LogArchive.Block block : archive.getBlocks()) {
+                IntBuffer cards = block.getCards();
+                IntBuffer timestamps = block.getTimestamps();
+                IntBuffer terminals = block.getTerminals();
+                ShortBuffer credentials = block.getCredentials();
+                ShortBuffer disclosures = block.getDisclosures();
+                ByteBuffer actions = block.getActions();
+
+                for (int i = 0; i < block.size(); i++, row++) {
+                    if (row < 10) {
+                        assertEquals(row % 3, cards.get(i));
+                        assertEquals(1000 + row, timestamps.get(i));
+                        assertEquals(7, terminals.get(i));
+                        assertEquals(10 + row % 2, credentials.get(i));
+                        assertEquals(0x3c, disclosures.get(i));
+                        assertEquals(LogArchive.ACTION_VERIFY, actions.get(i));
+                        verifications++;
+                    } else {
+                        assertEquals(5, cards.get(i));
+                        assertEquals(2000, timestamps.get(i));
+                        assertEquals(0, disclosures.get(i));
+                        assertEquals(LogArchive.ACTION_ISSUE, actions.get(i));
+                    }
+                }
+            }
+            assertEquals(10, verifications);
+        }
+    }
+
+    @Test
+    public void testAppendAfterPartialBlock() throws IOException {
+        try (LogExporter exporter = LogExporter.open(path, 4)) {
+            for (int i = 0; i < 6; i++) {
+                exporter.append(1, verification(i, (short) 10, (short) 0));
+            }
+        }
+
+        // Simulate a crash in the middle of writing the second block
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        try (LogArchive archive = LogArchive.open(path)) {
+            assertEquals(4, archive.size());
+        }
+
+        try (LogExporter exporter = LogExporter.open(path, 4)) {
+            exporter.append(2, verification(100, (short) 10, (short) 0));
+        }
+        try (LogArchive archive = LogArchive.open(path)) {
+            assertEquals(5, archive.size());
+            assertEquals(2, archive.getBlocks().get(1).getCards().get(0));
+        }
+    }
+}
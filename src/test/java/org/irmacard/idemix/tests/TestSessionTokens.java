@@ -0,0 +1,122 @@
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.ProtocolSession;
+import org.irmacard.idemix.util.SessionTokens;
+import org.irmacard.idemix.util.SessionTokens.InvalidTokenException;
+import org.junit.Test;
+
+public class TestSessionTokens {
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+    private static final BigInteger NONCE = new BigInteger("1208925819614629174706175");
+
+    private static ProtocolSession session(CardVersion cv, long created) {
+        return new ProtocolSession(ProtocolSession.Type.VERIFICATION,
+                "irma-demo", "Surfnet", "rootNone", NONCE, cv, 0, created);
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    @Test
+    public void testRoundTrip() throws InvalidTokenException {
+        SessionTokens tokens = new SessionTokens(KEY, 5, TimeUnit.MINUTES);
+        CardVersion cv = new CardVersion(0, 8, 2, null, "beta", 3);
+        ProtocolSession session = session(cv, now()).nextRound();
+
+        String token = tokens.encode(session);
+        assertTrue(token.matches("[A-Za-z0-9_-]+"));
+
+        ProtocolSession decoded = tokens.decode(token);
+        assertEquals(ProtocolSession.Type.VERIFICATION, decoded.getType());
+        assertEquals("irma-demo", decoded.getSchemeManager());
+        assertEquals("Surfnet", decoded.getOwner());
+        assertEquals("rootNone", decoded.getName());
+        assertEquals(NONCE, decoded.getNonce());
+        assertEquals(1, decoded.getRound());
+        assertEquals(session.getCreated(), decoded.getCreated());
+        assertEquals(0, cv.compareTo(decoded.getCardVersion()));
+        assertEquals("beta3", decoded.getCardVersion().getExtra());
+        assertNull(decoded.getCardVersion().getBuild());
+    }
+
+    @Test
+    public void testLargestToken() throws InvalidTokenException {
+        SessionTokens tokens = new SessionTokens(KEY, 5, TimeUnit.MINUTES);
+        String name = repeat('x', 255);
+        CardVersion cv = new CardVersion(0, 8, 2, 1, name, 3);
+
+        byte[] bytes = new byte[255];
+        bytes[0] = 0x7f;
+        BigInteger nonce = new BigInteger(1, bytes);
+        ProtocolSession session = new ProtocolSession(ProtocolSession.Type.ISSUANCE,
+                name, name, name, nonce, cv, 0, now());
+
+        ProtocolSession decoded = tokens.decode(tokens.encode(session));
+        assertEquals(name, decoded.getSchemeManager());
+        assertEquals(nonce, decoded.getNonce());
+        assertEquals(0, cv.compareTo(decoded.getCardVersion()));
+
+        try {
+            tokens.encode(new ProtocolSession(ProtocolSession.Type.ISSUANCE,
+                    name, name, name, nonce.shiftLeft(8), cv, 0, now()));
+            fail("Accepted a nonce of 256 bytes");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTamperedToken() {
+        SessionTokens tokens = new SessionTokens(KEY, 5, TimeUnit.MINUTES);
+        String token = tokens.encode(session(new CardVersion(0, 8), now()));
+
+        char c = token.charAt(10);
+        String tampered = token.substring(0, 10) + (c == 'A' ? 'B' : 'A') + token.substring(11);
+        assertInvalid(tokens, tampered);
+        assertInvalid(tokens, token.substring(0, token.length() - 2));
+        assertInvalid(tokens, token + "!");
+    }
+
+    @Test
+    public void testOtherKey() {
+        SessionTokens tokens = new SessionTokens(KEY, 5, TimeUnit.MINUTES);
+        byte[] other = KEY.clone();
+        other[0] ^= 1;
+        String token = new SessionTokens(other, 5, TimeUnit.MINUTES)
+                .encode(session(new CardVersion(0, 8), now()));
+        assertInvalid(tokens, token);
+    }
+
+    @Test
+    public void testExpiredToken() {
+        SessionTokens tokens = new SessionTokens(KEY, 5, TimeUnit.MINUTES);
+        String token = tokens.encode(session(new CardVersion(0, 8), now() - 600));
+        assertInvalid(tokens, token);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void assertInvalid(SessionTokens tokens, String token) {
+        try {
+            tokens.decode(token);
+            fail("Accepted invalid token " + token);
+        } catch (InvalidTokenException e) {
+            // expected
+        }
+    }
+}